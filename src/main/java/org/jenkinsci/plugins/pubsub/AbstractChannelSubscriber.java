@@ -28,6 +28,8 @@ import hudson.Util;
 import hudson.security.ACL;
 import org.springframework.security.core.Authentication;
 
+import java.util.Set;
+
 /**
  * Simple asynchronous {@link ChannelSubscriber} {@link ExtensionPoint} for Jenkins.
  *
@@ -81,4 +83,17 @@ public abstract class AbstractChannelSubscriber implements ChannelSubscriber, Ex
     public EventFilter getEventFilter() {
         return null;
     }
+
+    /**
+     * Get the names of the events on the channel that the subscriber is interested in.
+     * <p>
+     * Override this method to only receive some of the events on the channel
+     * e.g. {@link Events.JobChannel#job_run_started} and {@link Events.JobChannel#job_run_ended}.
+     * Default is {@code null} i.e. all events on the channel.
+     *
+     * @return The event names, or {@code null} for all events.
+     */
+    public Set<String> getEventNames() {
+        return null;
+    }
 }
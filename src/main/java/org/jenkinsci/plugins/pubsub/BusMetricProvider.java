@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Publishes the {@link GuavaPubsubBus} metrics to the Jenkins Metrics plugin, if installed.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Extension(optional = true)
+public class BusMetricProvider extends MetricProvider {
+
+    private static final String PREFIX = "pubsub";
+
+    @NonNull
+    @Override
+    public MetricSet getMetricSet() {
+        Map<String, Metric> metrics = new HashMap<>();
+
+        metrics.put(name(PREFIX, "published", "count"), gauge(BusMetrics::getPublishedCount));
+        metrics.put(name(PREFIX, "published", "rate"), gauge(BusMetrics::getPublishRate));
+        metrics.put(name(PREFIX, "published", "skipped"), gauge(BusMetrics::getSkippedCount));
+        metrics.put(name(PREFIX, "delivered", "count"), gauge(BusMetrics::getDeliveredCount));
+        metrics.put(name(PREFIX, "delivery", "latency", "mean"), gauge(BusMetrics::getDeliveryLatencyMeanMillis));
+        metrics.put(name(PREFIX, "delivery", "latency", "p50"), gauge(BusMetrics::getDeliveryLatencyP50Millis));
+        metrics.put(name(PREFIX, "delivery", "latency", "p99"), gauge(BusMetrics::getDeliveryLatencyP99Millis));
+        metrics.put(name(PREFIX, "delivery", "latency", "p999"), gauge(BusMetrics::getDeliveryLatencyP999Millis));
+        metrics.put(name(PREFIX, "delivery", "latency", "max"), gauge(BusMetrics::getDeliveryLatencyMaxMillis));
+        metrics.put(name(PREFIX, "handler", "time", "mean"), gauge(BusMetrics::getHandlerTimeMeanMillis));
+        metrics.put(name(PREFIX, "handler", "time", "p99"), gauge(BusMetrics::getHandlerTimeP99Millis));
+        metrics.put(name(PREFIX, "executor", "queue"), gauge(BusMetrics::getExecutorQueueDepth));
+        metrics.put(name(PREFIX, "executor", "active"), gauge(BusMetrics::getExecutorActiveThreads));
+        metrics.put(name(PREFIX, "executor", "size"), gauge(BusMetrics::getExecutorPoolSize));
+        metrics.put(name(PREFIX, "executor", "rejected"), gauge(BusMetrics::getExecutorRejectedCount));
+        metrics.put(name(PREFIX, "executor", "caller", "runs"), gauge(BusMetrics::getExecutorCallerRunCount));
+        for (String pool : ExecutorPool.getNames()) {
+            metrics.put(name(PREFIX, "pool", pool, "size"), poolGauge(pool, ExecutorPool::getThreads));
+            metrics.put(name(PREFIX, "pool", pool, "utilization"), poolGauge(pool, ExecutorPool::getUtilization));
+            metrics.put(name(PREFIX, "pool", pool, "queue"), poolGauge(pool, p -> p.getExecutor().getQueue().size()));
+            metrics.put(name(PREFIX, "pool", pool, "active"), poolGauge(pool, p -> p.getExecutor().getActiveCount()));
+            metrics.put(name(PREFIX, "pool", pool, "rejected"), poolGauge(pool, ExecutorPool::getRejectedCount));
+            metrics.put(name(PREFIX, "pool", pool, "caller", "runs"), poolGauge(pool, ExecutorPool::getCallerRunCount));
+        }
+        metrics.put(name(PREFIX, "subscribers", "isolated"), gauge(BusMetrics::getIsolatedSubscriberCount));
+        metrics.put(name(PREFIX, "subscribers", "isolated", "dropped"), gauge(BusMetrics::getIsolatedDroppedCount));
+        metrics.put(name(PREFIX, "runcache", "hitrate"), gauge(BusMetrics::getRunCacheHitRate));
+        metrics.put(name(PREFIX, "startup", "time"), gauge(BusMetrics::getStartupMillis));
+        metrics.put(name(PREFIX, "startup", "subscribers", "time"), gauge(BusMetrics::getAutoSubscriberRegistrationMillis));
+
+        return () -> metrics;
+    }
+
+    private static Gauge<Double> gauge(@NonNull ToDoubleFunction<BusMetrics> value) {
+        return () -> {
+            BusMetrics busMetrics = getBusMetrics();
+            return (busMetrics != null ? value.applyAsDouble(busMetrics) : 0);
+        };
+    }
+
+    private static Gauge<Double> poolGauge(@NonNull String poolName, @NonNull ToDoubleFunction<ExecutorPool> value) {
+        return gauge(busMetrics -> {
+            ExecutorPool pool = busMetrics.getPool(poolName);
+            return (pool != null ? value.applyAsDouble(pool) : 0);
+        });
+    }
+
+    private static @CheckForNull BusMetrics getBusMetrics() {
+        PubsubBus bus = PubsubBus.getBus();
+        if (bus instanceof GuavaPubsubBus) {
+            return ((GuavaPubsubBus) bus).getMetrics();
+        }
+        return null;
+    }
+}
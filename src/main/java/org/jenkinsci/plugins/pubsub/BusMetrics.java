@@ -0,0 +1,486 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link GuavaPubsubBus} metrics registry.
+ * <p>
+ * Covers publish rates per channel, publish to delivery latency, executor backlog (per thread pool) and
+ * per subscriber handler time. Everything recorded on the publish and delivery paths is
+ * a lock-free counter or histogram update, so the metrics are always on.
+ * <p>
+ * Publish rates are kept for up to <strong><code>org.jenkinsci.plugins.pubsub.BusMetrics.MAX_CHANNELS</code></strong>
+ * channels (default 100), the first ones published on. The channels after that are counted together, as
+ * {@value #OTHER_CHANNELS}, so channels with generated names don't grow the metrics without bound.
+ * <p>
+ * Exposed through JMX (see {@link BusMetricsMXBean}) and, if installed, the Jenkins
+ * Metrics plugin (see {@link BusMetricProvider}).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class BusMetrics implements BusMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(BusMetrics.class.getName());
+    private static final String OBJECT_NAME = "org.jenkinsci.plugins.pubsub:type=PubsubBus";
+    static final String OTHER_CHANNELS = "(other)";
+
+    private final RateMeter published = new RateMeter();
+    private final Map<String, RateMeter> channelPublished = new ConcurrentHashMap<>();
+    private final int maxChannels = Math.max(0, Integer.getInteger(BusMetrics.class.getName() + ".MAX_CHANNELS", 100));
+    private final RateMeter otherChannelsPublished = new RateMeter();
+    private final LongAdder skipped = new LongAdder();
+    private volatile long startupNanos;
+    private volatile long autoSubscriberRegistrationNanos;
+    private final LongAdder delivered = new LongAdder();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram handlerTime = new LatencyHistogram();
+    private final Map<String, HandlerStats> subscriberHandlerTimes = new ConcurrentHashMap<>();
+    private final AtomicInteger isolatedSubscribers = new AtomicInteger();
+    private final LongAdder isolatedDropped = new LongAdder();
+    private final Supplier<Map<String, ExecutorPool>> pools;
+    private ObjectName objectName;
+
+    BusMetrics(@NonNull Supplier<Map<String, ExecutorPool>> pools) {
+        this.pools = pools;
+    }
+
+    /**
+     * Get the publish meter for a channel.
+     * @param channelName The channel name.
+     * @return The channel publish meter.
+     */
+    @NonNull RateMeter channelMeter(@NonNull String channelName) {
+        RateMeter meter = channelPublished.get(channelName);
+        if (meter != null) {
+            return meter;
+        }
+        if (channelPublished.size() >= maxChannels) {
+            return otherChannelsPublished;
+        }
+        return channelPublished.computeIfAbsent(channelName, name -> new RateMeter());
+    }
+
+    /**
+     * Record a message being published on a channel.
+     * @param channelMeter The channel publish meter.
+     */
+    void published(@NonNull RateMeter channelMeter) {
+        published.mark();
+        channelMeter.mark();
+    }
+
+    /**
+     * Record the time it took to start the bus.
+     * @param nanos The bus startup time.
+     */
+    void started(long nanos) {
+        startupNanos = nanos;
+    }
+
+    /**
+     * Record the time it took to register the auto subscribers.
+     * @param nanos The registration time.
+     */
+    void autoSubscribersRegistered(long nanos) {
+        autoSubscriberRegistrationNanos = nanos;
+    }
+
+    /**
+     * Record a publish being skipped because nothing could receive the message.
+     */
+    void publishSkipped() {
+        skipped.increment();
+    }
+
+    /**
+     * Get the handler time stats for a subscriber type.
+     * @param subscriberType The subscriber type.
+     * @return The handler time stats.
+     */
+    @NonNull HandlerStats handlerStats(@NonNull Class<?> subscriberType) {
+        return subscriberHandlerTimes.computeIfAbsent(subscriberType.getName(), name -> new HandlerStats());
+    }
+
+    /**
+     * Record a message being delivered to a subscriber.
+     * @param message The published message.
+     * @param startNanos {@link System#nanoTime()} at which the subscriber was handed the message.
+     * @param endNanos {@link System#nanoTime()} at which the subscriber returned.
+     * @param handlerStats The handler time stats for the subscriber type.
+     */
+    void delivered(@NonNull Message message, long startNanos, long endNanos, @NonNull HandlerStats handlerStats) {
+        long handlerNanos = endNanos - startNanos;
+        delivered.increment();
+        if (message.publishNanoTime != 0) {
+            deliveryLatency.record(startNanos - message.publishNanoTime);
+        }
+        handlerTime.record(handlerNanos);
+        handlerStats.record(handlerNanos);
+    }
+
+    /**
+     * Record a slow subscriber being moved to its own lane.
+     */
+    void subscriberIsolated() {
+        isolatedSubscribers.incrementAndGet();
+    }
+
+    /**
+     * Record a slow subscriber being moved back to the shared lane (or unsubscribed).
+     */
+    void subscriberRecovered() {
+        isolatedSubscribers.decrementAndGet();
+    }
+
+    /**
+     * Record a message being dropped because a slow subscriber's lane was full.
+     */
+    void isolatedMessageDropped() {
+        isolatedDropped.increment();
+    }
+
+    /**
+     * Register the JMX MBean.
+     */
+    synchronized void register() {
+        if (objectName != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            for (int instance = 2; ; instance++) {
+                try {
+                    server.registerMBean(this, name);
+                    objectName = name;
+                    return;
+                } catch (InstanceAlreadyExistsException e) {
+                    // e.g. more than one bus instance in tests.
+                    name = new ObjectName(OBJECT_NAME + ",instance=" + instance);
+                }
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Unable to register the PubsubBus metrics MBean.", e);
+        }
+    }
+
+    /**
+     * Unregister the JMX MBean.
+     */
+    synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Unable to unregister the PubsubBus metrics MBean.", e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    /**
+     * Get the JMX MBean object name.
+     * @return The object name, or {@code null} if the MBean is not registered.
+     */
+    synchronized @CheckForNull ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public long getPublishedCount() {
+        return published.getCount();
+    }
+
+    @Override
+    public double getStartupMillis() {
+        return toMillis(startupNanos);
+    }
+
+    @Override
+    public double getAutoSubscriberRegistrationMillis() {
+        return toMillis(autoSubscriberRegistrationNanos);
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    @Override
+    public double getPublishRate() {
+        return published.getOneMinuteRate();
+    }
+
+    @Override
+    public Map<String, Long> getChannelPublishedCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        channelPublished.forEach((channelName, meter) -> counts.put(channelName, meter.getCount()));
+        if (otherChannelsPublished.getCount() > 0) {
+            counts.put(OTHER_CHANNELS, otherChannelsPublished.getCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getChannelPublishRates() {
+        Map<String, Double> rates = new TreeMap<>();
+        channelPublished.forEach((channelName, meter) -> rates.put(channelName, meter.getOneMinuteRate()));
+        if (otherChannelsPublished.getCount() > 0) {
+            rates.put(OTHER_CHANNELS, otherChannelsPublished.getOneMinuteRate());
+        }
+        return rates;
+    }
+
+    @Override
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    @Override
+    public double getDeliveryLatencyMeanMillis() {
+        return toMillis(deliveryLatency.getMean());
+    }
+
+    @Override
+    public double getDeliveryLatencyP50Millis() {
+        return toMillis(deliveryLatency.getPercentile(0.5));
+    }
+
+    @Override
+    public double getDeliveryLatencyP99Millis() {
+        return toMillis(deliveryLatency.getPercentile(0.99));
+    }
+
+    @Override
+    public double getDeliveryLatencyP999Millis() {
+        return toMillis(deliveryLatency.getPercentile(0.999));
+    }
+
+    @Override
+    public double getDeliveryLatencyMaxMillis() {
+        return toMillis(deliveryLatency.getMax());
+    }
+
+    @Override
+    public double getHandlerTimeMeanMillis() {
+        return toMillis(handlerTime.getMean());
+    }
+
+    @Override
+    public double getHandlerTimeP99Millis() {
+        return toMillis(handlerTime.getPercentile(0.99));
+    }
+
+    @Override
+    public Map<String, Double> getSubscriberHandlerTimeMeanMillis() {
+        Map<String, Double> times = new TreeMap<>();
+        subscriberHandlerTimes.forEach((type, stats) -> times.put(type, toMillis(stats.getMean())));
+        return times;
+    }
+
+    @Override
+    public Map<String, Double> getSubscriberHandlerTimeMaxMillis() {
+        Map<String, Double> times = new TreeMap<>();
+        subscriberHandlerTimes.forEach((type, stats) -> times.put(type, toMillis(stats.max.get())));
+        return times;
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        int depth = 0;
+        for (ExecutorPool pool : getPools().values()) {
+            depth += pool.getExecutor().getQueue().size();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getExecutorActiveThreads() {
+        int active = 0;
+        for (ExecutorPool pool : getPools().values()) {
+            active += pool.getExecutor().getActiveCount();
+        }
+        return active;
+    }
+
+    @Override
+    public int getExecutorPoolSize() {
+        int size = 0;
+        for (ExecutorPool pool : getPools().values()) {
+            size += pool.getExecutor().getPoolSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long getExecutorRejectedCount() {
+        long rejected = 0;
+        for (ExecutorPool pool : getPools().values()) {
+            rejected += pool.getRejectedCount();
+        }
+        return rejected;
+    }
+
+    @Override
+    public long getExecutorCallerRunCount() {
+        long callerRuns = 0;
+        for (ExecutorPool pool : getPools().values()) {
+            callerRuns += pool.getCallerRunCount();
+        }
+        return callerRuns;
+    }
+
+    @Override
+    public Map<String, Integer> getPoolSizes() {
+        Map<String, Integer> sizes = new TreeMap<>();
+        getPools().forEach((name, pool) -> sizes.put(name, pool.getThreads()));
+        return sizes;
+    }
+
+    @Override
+    public Map<String, Double> getPoolUtilization() {
+        Map<String, Double> utilization = new TreeMap<>();
+        getPools().forEach((name, pool) -> utilization.put(name, pool.getUtilization()));
+        return utilization;
+    }
+
+    @Override
+    public Map<String, Integer> getPoolQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        getPools().forEach((name, pool) -> depths.put(name, pool.getExecutor().getQueue().size()));
+        return depths;
+    }
+
+    @Override
+    public Map<String, Long> getPoolRejectedCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        getPools().forEach((name, pool) -> counts.put(name, pool.getRejectedCount()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getPoolCallerRunCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        getPools().forEach((name, pool) -> counts.put(name, pool.getCallerRunCount()));
+        return counts;
+    }
+
+    @Override
+    public int getIsolatedSubscriberCount() {
+        return isolatedSubscribers.get();
+    }
+
+    @Override
+    public long getIsolatedDroppedCount() {
+        return isolatedDropped.sum();
+    }
+
+    @Override
+    public double getRunCacheHitRate() {
+        return RunCache.getStats().hitRate();
+    }
+
+    @Override
+    public long getRunCacheSize() {
+        return RunCache.size();
+    }
+
+    @Override
+    public void reset() {
+        published.reset();
+        skipped.reset();
+        channelPublished.values().forEach(RateMeter::reset);
+        otherChannelsPublished.reset();
+        delivered.reset();
+        deliveryLatency.reset();
+        handlerTime.reset();
+        subscriberHandlerTimes.values().forEach(HandlerStats::reset);
+        isolatedDropped.reset();
+    }
+
+    /**
+     * Get a bus thread pool.
+     * @param name The pool name.
+     * @return The pool, or {@code null} if there is no such pool.
+     */
+    @CheckForNull ExecutorPool getPool(@NonNull String name) {
+        return getPools().get(name);
+    }
+
+    private @NonNull Map<String, ExecutorPool> getPools() {
+        Map<String, ExecutorPool> pools = this.pools.get();
+        return (pools != null ? pools : Map.of());
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Handler time stats for a subscriber type.
+     */
+    static final class HandlerStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        double getMean() {
+            long n = count.sum();
+            return (n == 0 ? 0 : (double) total.sum() / n);
+        }
+
+        void reset() {
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link GuavaPubsubBus} metrics.
+ * <p>
+ * Registered under the <code>org.jenkinsci.plugins.pubsub:type=PubsubBus</code> object name.
+ * Latencies are in milliseconds and rates in events per second (one minute moving average).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public interface BusMetricsMXBean {
+
+    /**
+     * Get the number of messages published on all channels.
+     * @return The number of messages published.
+     */
+    long getPublishedCount();
+
+    /**
+     * Get the number of messages not published because nothing could receive them
+     * i.e. no subscribers on the channel.
+     * @return The number of messages skipped.
+     */
+    long getSkippedCount();
+
+    /**
+     * Get the publish rate across all channels.
+     * @return The publish rate.
+     */
+    double getPublishRate();
+
+    /**
+     * Get the number of messages published, by channel name. Only the first channels published on
+     * are tracked (see <code>org.jenkinsci.plugins.pubsub.BusMetrics.MAX_CHANNELS</code>). The others are
+     * counted together, as <code>(other)</code>.
+     * @return The number of messages published, by channel name.
+     */
+    Map<String, Long> getChannelPublishedCounts();
+
+    /**
+     * Get the publish rate, by channel name.
+     * @return The publish rate, by channel name.
+     */
+    Map<String, Double> getChannelPublishRates();
+
+    /**
+     * Get the number of messages delivered to subscribers.
+     * @return The number of messages delivered.
+     */
+    long getDeliveredCount();
+
+    /**
+     * Get the mean time from a message being published to it being handed to a subscriber.
+     * @return The mean publish to delivery latency.
+     */
+    double getDeliveryLatencyMeanMillis();
+
+    /**
+     * Get the 50th percentile publish to delivery latency.
+     * @return The 50th percentile publish to delivery latency.
+     */
+    double getDeliveryLatencyP50Millis();
+
+    /**
+     * Get the 99th percentile publish to delivery latency.
+     * @return The 99th percentile publish to delivery latency.
+     */
+    double getDeliveryLatencyP99Millis();
+
+    /**
+     * Get the 99.9th percentile publish to delivery latency.
+     * @return The 99.9th percentile publish to delivery latency.
+     */
+    double getDeliveryLatencyP999Millis();
+
+    /**
+     * Get the largest publish to delivery latency.
+     * @return The largest publish to delivery latency.
+     */
+    double getDeliveryLatencyMaxMillis();
+
+    /**
+     * Get the mean time spent in {@link ChannelSubscriber#onMessage(Message)}.
+     * @return The mean subscriber handler time.
+     */
+    double getHandlerTimeMeanMillis();
+
+    /**
+     * Get the 99th percentile time spent in {@link ChannelSubscriber#onMessage(Message)}.
+     * @return The 99th percentile subscriber handler time.
+     */
+    double getHandlerTimeP99Millis();
+
+    /**
+     * Get the mean time spent in {@link ChannelSubscriber#onMessage(Message)}, by subscriber class.
+     * @return The mean subscriber handler time, by subscriber class.
+     */
+    Map<String, Double> getSubscriberHandlerTimeMeanMillis();
+
+    /**
+     * Get the largest time spent in {@link ChannelSubscriber#onMessage(Message)}, by subscriber class.
+     * @return The largest subscriber handler time, by subscriber class.
+     */
+    Map<String, Double> getSubscriberHandlerTimeMaxMillis();
+
+    /**
+     * Get the number of dispatch tasks waiting for a bus thread.
+     * @return The executor backlog.
+     */
+    int getExecutorQueueDepth();
+
+    /**
+     * Get the number of bus threads currently dispatching messages.
+     * @return The number of active bus threads.
+     */
+    int getExecutorActiveThreads();
+
+    /**
+     * Get the number of bus threads.
+     * @return The number of bus threads.
+     */
+    int getExecutorPoolSize();
+
+    /**
+     * Get the number of message deliveries dropped because a bus thread pool queue was full.
+     * @return The number of dropped deliveries, across all pools.
+     */
+    long getExecutorRejectedCount();
+
+    /**
+     * Get the number of dispatch tasks run on the publishing (or dispatching) thread because a bus
+     * thread pool queue was full. Nothing is lost, but the publisher is held up.
+     * @return The number of tasks run on the calling thread, across all pools.
+     */
+    long getExecutorCallerRunCount();
+
+    /**
+     * Get the number of threads each bus thread pool currently runs tasks on.
+     * @return The pool size, by pool name.
+     */
+    Map<String, Integer> getPoolSizes();
+
+    /**
+     * Get the share of each bus thread pool's threads currently dispatching messages.
+     * @return The utilization (0 to 1), by pool name.
+     */
+    Map<String, Double> getPoolUtilization();
+
+    /**
+     * Get the number of dispatch tasks waiting for a thread, per bus thread pool.
+     * @return The executor backlog, by pool name.
+     */
+    Map<String, Integer> getPoolQueueDepths();
+
+    /**
+     * Get the number of message deliveries dropped because the pool queue was full, per bus thread pool.
+     * @return The number of dropped deliveries, by pool name.
+     */
+    Map<String, Long> getPoolRejectedCounts();
+
+    /**
+     * Get the number of dispatch tasks run on the calling thread because the pool queue was full, per
+     * bus thread pool.
+     * @return The number of tasks run on the calling thread, by pool name.
+     */
+    Map<String, Long> getPoolCallerRunCounts();
+
+    /**
+     * Get the number of slow subscribers currently isolated on their own lane.
+     * @return The number of isolated subscribers.
+     */
+    int getIsolatedSubscriberCount();
+
+    /**
+     * Get the number of messages dropped because an isolated subscriber's lane was full.
+     * @return The number of dropped messages.
+     */
+    long getIsolatedDroppedCount();
+
+    /**
+     * Get the time it took to start the bus (when first used).
+     * @return The bus startup time, or zero if not known.
+     */
+    double getStartupMillis();
+
+    /**
+     * Get the time it took to register the auto subscribers (in the background),
+     * the last time they were registered.
+     * @return The registration time, or zero if not known.
+     */
+    double getAutoSubscriberRegistrationMillis();
+
+    /**
+     * Get the {@link RunCache} hit rate.
+     * @return The {@link RunCache} hit rate, between 0 and 1.
+     */
+    double getRunCacheHitRate();
+
+    /**
+     * Get the number of runs in the {@link RunCache}.
+     * @return The number of runs in the {@link RunCache}.
+     */
+    long getRunCacheSize();
+
+    /**
+     * Clear the counters and histograms.
+     */
+    void reset();
+}
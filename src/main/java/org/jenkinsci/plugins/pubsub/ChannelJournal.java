@@ -0,0 +1,385 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of the messages published on a single channel.
+ * <p>
+ * The journal is a directory of fixed size, memory-mapped segment files, named by the
+ * sequence number of the first message they hold. Each segment starts with a header:
+ * <pre>
+ *     int  magic ("PSJ1")
+ *     int  version
+ * </pre>
+ * followed by records:
+ * <pre>
+ *     int  length    (of the rest of the record, 0 marks the end of the segment data)
+ *     int  crc       (CRC32C of seq, timestamp and payload)
+ *     long seq       ({@link EventProps.Jenkins#jenkins_channel_seq})
+ *     long timestamp ({@link EventProps.Jenkins#jenkins_event_timestamp})
+ *     ...  payload   (the message, encoded by {@link MessageCodec})
+ * </pre>
+ * A record's length is written after the rest of the record, so a partially written record
+ * (e.g. after a crash) is never read, and a record whose crc doesn't match (e.g. a torn write
+ * after a power failure) ends the segment.
+ * <p>
+ * A sparse index (every {@link #INDEX_INTERVAL} records) of sequence numbers and timestamps
+ * is kept in memory for each segment, rebuilt by scanning the segments when the journal is
+ * opened.
+ * <p>
+ * Appends are made by a single writer thread (see {@link EventJournal}). Reads can happen
+ * on any thread.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class ChannelJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(ChannelJournal.class.getName());
+
+    static final int MAGIC = 0x50534A31; // "PSJ1"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 24;
+    static final int INDEX_INTERVAL = 64;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final String channelName;
+    private final File directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final CRC32C crc = new CRC32C();
+    private long lastSequence;
+
+    ChannelJournal(@NonNull String channelName, @NonNull File directory, int segmentSize) throws IOException {
+        this.channelName = channelName;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create journal directory " + directory);
+        }
+        File[] segmentFiles = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (segmentFiles != null) {
+            Arrays.sort(segmentFiles);
+            for (File segmentFile : segmentFiles) {
+                try {
+                    Segment segment = Segment.open(segmentFile);
+                    segments.add(segment);
+                    if (segment.recordCount > 0) {
+                        lastSequence = segment.lastSequence;
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Ignoring unreadable journal segment " + segmentFile, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the sequence number of the last message in the journal.
+     * @return The sequence number of the last message in the journal, or 0 if it is empty.
+     */
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Append a message to the journal. Writer thread only.
+     * @param sequence The message channel sequence number.
+     * @param timestamp The message timestamp.
+     * @param payload The encoded message.
+     * @return {@code true} if a new segment was started.
+     */
+    synchronized boolean append(long sequence, long timestamp, @NonNull ByteBuffer payload) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + payload.remaining();
+        if (SEGMENT_HEADER_SIZE + recordSize + 4 > segmentSize) {
+            LOGGER.log(Level.WARNING, "Not journaling message {0} on channel ''{1}''. It is larger than the journal segment size ({2} bytes).",
+                    new Object[] {sequence, channelName, segmentSize});
+            return false;
+        }
+
+        boolean rolled = false;
+        Segment segment = (segments.isEmpty() ? null : segments.get(segments.size() - 1));
+        // Leave room for the (zero) length that marks the end of the segment.
+        if (segment == null || segment.writePosition + recordSize + 4 > segment.buffer.capacity()) {
+            if (segment != null) {
+                segment.flush();
+            }
+            segment = Segment.create(new File(directory, String.format("%020d%s", sequence, SEGMENT_SUFFIX)), segmentSize);
+            segments.add(segment);
+            rolled = true;
+        }
+
+        crc.reset();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putLong(sequence).putLong(timestamp).flip();
+        crc.update(header);
+        crc.update(payload.duplicate());
+
+        MappedByteBuffer buffer = segment.buffer;
+        int position = segment.writePosition;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putLong(position + 8, sequence);
+        buffer.putLong(position + 16, timestamp);
+        buffer.put(position + RECORD_HEADER_SIZE, payload, payload.position(), payload.remaining());
+        // Length last, making the record visible to readers (and recovery).
+        buffer.putInt(position, recordSize - 4);
+        segment.appended(sequence, timestamp, position + recordSize);
+        lastSequence = sequence;
+
+        return rolled;
+    }
+
+    /**
+     * Force appended messages to disk.
+     */
+    synchronized void flush() {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).flush();
+        }
+    }
+
+    /**
+     * Read the messages in the journal, starting with the first message whose sequence
+     * number is greater than or equal to the specified sequence number.
+     * @param fromSequence The sequence number.
+     * @param consumer The message consumer. Returns {@code false} to stop reading.
+     */
+    synchronized void read(long fromSequence, @NonNull Predicate<Message> consumer) {
+        for (Segment segment : segments) {
+            if (segment.recordCount == 0 || segment.lastSequence < fromSequence) {
+                continue;
+            }
+            int position = segment.indexedPosition(fromSequence);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (position < segment.writePosition) {
+                int length = buffer.getInt(position);
+                long sequence = buffer.getLong(position + 8);
+                if (sequence >= fromSequence) {
+                    ByteBuffer payload = buffer.duplicate();
+                    payload.limit(position + 4 + length).position(position + RECORD_HEADER_SIZE);
+                    if (!consumer.test(MessageCodec.decode(payload))) {
+                        return;
+                    }
+                }
+                position += 4 + length;
+            }
+        }
+    }
+
+    /**
+     * Find the sequence number of the first message with a timestamp greater than or
+     * equal to the specified timestamp.
+     * @param timestamp The timestamp (milliseconds).
+     * @return The sequence number, or {@code null} if there are no such messages.
+     */
+    synchronized @CheckForNull Long findSequence(long timestamp) {
+        for (Segment segment : segments) {
+            if (segment.recordCount == 0 || segment.maxTimestamp < timestamp) {
+                continue;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int position = segment.indexedPositionForTimestamp(timestamp);
+            while (position < segment.writePosition) {
+                int length = buffer.getInt(position);
+                if (buffer.getLong(position + 16) >= timestamp) {
+                    return buffer.getLong(position + 8);
+                }
+                position += 4 + length;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Delete the oldest segments, while the journal is bigger than the specified size or
+     * the segments only contain messages older than the specified timestamp. The segment
+     * currently being written to is never deleted.
+     * @param maxBytes The maximum journal size.
+     * @param minTimestamp The timestamp of the oldest message to keep.
+     */
+    synchronized void applyRetention(long maxBytes, long minTimestamp) {
+        long totalBytes = (long) segments.size() * segmentSize;
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (totalBytes <= maxBytes && oldest.maxTimestamp >= minTimestamp) {
+                break;
+            }
+            segments.remove(0);
+            totalBytes -= segmentSize;
+            // The mapping itself is released when the buffer is garbage collected.
+            if (!oldest.file.delete()) {
+                LOGGER.log(Level.FINE, "Failed to delete journal segment {0}", oldest.file);
+            }
+        }
+    }
+
+    /**
+     * Get the number of segment files in the journal.
+     * @return The number of segment files in the journal.
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    synchronized void close() {
+        flush();
+        segments.clear();
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writePosition = SEGMENT_HEADER_SIZE;
+        private int flushedPosition = SEGMENT_HEADER_SIZE;
+        private long lastSequence;
+        private long maxTimestamp = Long.MIN_VALUE;
+        private int recordCount;
+        // Sparse index. The timestamps are the max timestamp up to the indexed record,
+        // so they are ordered, even if the message timestamps are not (quite).
+        private long[] indexSequences = new long[16];
+        private long[] indexTimestamps = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexSize;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private static Segment create(File file, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Segment segment = new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                segment.buffer.putInt(0, MAGIC);
+                segment.buffer.putInt(4, VERSION);
+                segment.flushedPosition = 0;
+                return segment;
+            }
+        }
+
+        private static Segment open(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Segment segment = new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+                if (channel.size() < SEGMENT_HEADER_SIZE || segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION) {
+                    throw new IOException("Not a journal segment.");
+                }
+                segment.recover();
+                return segment;
+            }
+        }
+
+        private void recover() {
+            CRC32C crc = new CRC32C();
+            int position = SEGMENT_HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length < RECORD_HEADER_SIZE - 4 || position + 4 + length > buffer.capacity()) {
+                    break;
+                }
+                ByteBuffer record = buffer.duplicate();
+                record.limit(position + 4 + length).position(position + 8);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    LOGGER.log(Level.WARNING, "Truncating journal segment {0} at a corrupt record (position {1}).", new Object[] {file, position});
+                    break;
+                }
+                appended(buffer.getLong(position + 8), buffer.getLong(position + 16), position + 4 + length);
+                position += 4 + length;
+            }
+            // Make sure a corrupt tail is not mistaken for a record later.
+            if (position + 4 <= buffer.capacity()) {
+                buffer.putInt(position, 0);
+            }
+            flushedPosition = writePosition;
+        }
+
+        private void appended(long sequence, long timestamp, int newWritePosition) {
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            if (recordCount % INDEX_INTERVAL == 0) {
+                if (indexSize == indexSequences.length) {
+                    indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+                    indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                }
+                indexSequences[indexSize] = sequence;
+                indexTimestamps[indexSize] = maxTimestamp;
+                indexPositions[indexSize] = writePosition;
+                indexSize++;
+            }
+            lastSequence = sequence;
+            recordCount++;
+            writePosition = newWritePosition;
+        }
+
+        private int indexedPosition(long sequence) {
+            int i = Arrays.binarySearch(indexSequences, 0, indexSize, sequence);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return (i < 0 ? SEGMENT_HEADER_SIZE : indexPositions[i]);
+        }
+
+        private int indexedPositionForTimestamp(long timestamp) {
+            // The last index entry whose (max) timestamp is before the one we want.
+            int low = 0;
+            int high = indexSize - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimestamps[mid] < timestamp) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return (found < 0 ? SEGMENT_HEADER_SIZE : indexPositions[found]);
+        }
+
+        private void flush() {
+            if (writePosition > flushedPosition) {
+                buffer.force(flushedPosition, writePosition - flushedPosition);
+                flushedPosition = writePosition;
+            }
+        }
+    }
+}
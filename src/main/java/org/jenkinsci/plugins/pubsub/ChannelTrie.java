@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wildcard channel name patterns, held in a trie keyed on the pattern segments, for finding
+ * all of the patterns that match a channel name without testing each pattern in turn.
+ * <p>
+ * Channel names are hierarchical, with segments separated by a dot e.g. {@code jenkins.job}.
+ * In a pattern, a {@code *} segment matches any one segment, except as the last segment,
+ * where it matches one or more segments. So:
+ * <ul>
+ *     <li>{@code *} matches every channel.</li>
+ *     <li>{@code job.*} matches {@code job.run} and {@code job.run.step}, but not {@code job}.</li>
+ *     <li>{@code *.job} matches {@code jenkins.job}, but not {@code jenkins.job.run} or {@code job}.</li>
+ * </ul>
+ * Not thread safe.
+ *
+ * @param <T> The type of the values registered against patterns.
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class ChannelTrie<T> {
+
+    static final String WILDCARD = "*";
+    private static final String SEPARATOR = "\\.";
+
+    private final Node<T> root = new Node<>();
+
+    /**
+     * Is the channel name a wildcard pattern.
+     * @param channelName The channel name.
+     * @return {@code true} if it has a {@code *} segment, otherwise {@code false}.
+     */
+    static boolean isPattern(@NonNull String channelName) {
+        if (channelName.indexOf('*') == -1) {
+            return false;
+        }
+        for (String segment : channelName.split(SEPARATOR)) {
+            if (segment.equals(WILDCARD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Register a value against a pattern.
+     * @param pattern The pattern.
+     * @param value The value.
+     */
+    void add(@NonNull String pattern, @NonNull T value) {
+        String[] segments = pattern.split(SEPARATOR);
+        Node<T> node = root;
+        int last = segments.length - 1;
+        for (int i = 0; i < last; i++) {
+            node = node.child(segments[i], true);
+        }
+        if (segments[last].equals(WILDCARD)) {
+            node.tailValues.add(value);
+        } else {
+            node.child(segments[last], true).values.add(value);
+        }
+    }
+
+    /**
+     * Remove a value registered against a pattern.
+     * @param pattern The pattern.
+     * @param value The value.
+     * @return {@code true} if the value was registered against the pattern, otherwise {@code false}.
+     */
+    boolean remove(@NonNull String pattern, @NonNull T value) {
+        String[] segments = pattern.split(SEPARATOR);
+        List<Node<T>> path = new ArrayList<>(segments.length + 1);
+        Node<T> node = root;
+        path.add(node);
+        int last = segments.length - 1;
+        boolean tail = segments[last].equals(WILDCARD);
+        for (int i = 0; i < (tail ? last : segments.length); i++) {
+            node = node.child(segments[i], false);
+            if (node == null) {
+                return false;
+            }
+            path.add(node);
+        }
+        if (!(tail ? node.tailValues : node.values).remove(value)) {
+            return false;
+        }
+        // Prune the branch, if it's now empty.
+        for (int i = path.size() - 1; i > 0 && path.get(i).isEmpty(); i--) {
+            path.get(i - 1).removeChild(segments[i - 1]);
+        }
+        return true;
+    }
+
+    /**
+     * Get the values registered against the patterns that match a channel name.
+     * @param channelName The (concrete) channel name.
+     * @return The values. A value registered against more than one matching pattern is listed once.
+     */
+    @NonNull List<T> match(@NonNull String channelName) {
+        List<T> matches = new ArrayList<>();
+        match(root, channelName.split(SEPARATOR), 0, matches);
+        return matches;
+    }
+
+    boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    private static <T> void match(Node<T> node, String[] segments, int index, List<T> matches) {
+        if (index == segments.length) {
+            addAll(node.values, matches);
+            return;
+        }
+        // At least one segment left.
+        addAll(node.tailValues, matches);
+        Node<T> child = node.child(segments[index], false);
+        if (child != null) {
+            match(child, segments, index + 1, matches);
+        }
+        if (node.wildcard != null) {
+            match(node.wildcard, segments, index + 1, matches);
+        }
+    }
+
+    private static <T> void addAll(List<T> values, List<T> matches) {
+        for (T value : values) {
+            if (!matches.contains(value)) {
+                matches.add(value);
+            }
+        }
+    }
+
+    private static final class Node<T> {
+        private Map<String, Node<T>> children;
+        private Node<T> wildcard;
+        // Patterns ending at this node.
+        private final List<T> values = new ArrayList<>(1);
+        // Patterns ending with a "*" after this node i.e. match one or more further segments.
+        private final List<T> tailValues = new ArrayList<>(1);
+
+        private Node<T> child(String segment, boolean create) {
+            if (segment.equals(WILDCARD)) {
+                if (wildcard == null && create) {
+                    wildcard = new Node<>();
+                }
+                return wildcard;
+            }
+            Node<T> child = (children != null ? children.get(segment) : null);
+            if (child == null && create) {
+                if (children == null) {
+                    children = new HashMap<>();
+                }
+                child = new Node<>();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        private void removeChild(String segment) {
+            if (segment.equals(WILDCARD)) {
+                wildcard = null;
+            } else if (children != null) {
+                children.remove(segment);
+            }
+        }
+
+        private boolean isEmpty() {
+            return values.isEmpty() && tailValues.isEmpty() && wildcard == null && (children == null || children.isEmpty());
+        }
+    }
+}
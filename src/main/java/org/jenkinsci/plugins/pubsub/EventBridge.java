@@ -0,0 +1,783 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.security.AccessControlled;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forwards the messages published on selected channels to peer controllers, and republishes
+ * the messages received from peers on the local bus.
+ * <p>
+ * Each controller listens for connections from its peers, and connects to each of its peers,
+ * over TCP or a Unix domain socket. An outbound connection carries the local messages to the
+ * peer. Messages received from a peer are republished on the local bus, with
+ * {@link EventProps.Jenkins#jenkins_instance_url} set to the URL of the peer they came from.
+ * Republished messages are not forwarded again, so every controller needs to be connected to
+ * every other controller it wants events from (a full mesh), but events never loop.
+ * <p>
+ * Messages that were access controlled on the peer (e.g. {@link RunMessage}s, or any other
+ * {@link AccessControlledMessage} type) can't be access checked against the local controller's
+ * items, so they are republished as messages that require {@link Jenkins#ADMINISTER}. Other
+ * messages are republished as {@link SimpleMessage}s.
+ *
+ * <h2>Wire format</h2>
+ * A connection is a sequence of frames:
+ * <pre>
+ *     int   length (of type + payload)
+ *     byte  type
+ *     ...   payload
+ * </pre>
+ * The connecting controller sends a {@code HELLO} frame (shared token, its instance URL and its
+ * epoch, an id that changes each time the bridge starts). The accepting controller checks the
+ * token and replies with a {@code RESUME} frame, holding the last channel sequence number it has
+ * received from that instance on each channel. If the epoch has changed, the instance has
+ * restarted, and may have started its sequence numbers again, so those are forgotten. The
+ * connecting controller then replays the messages after those sequence numbers, from its
+ * {@link EventHistory event history}, before carrying on with live messages in {@code BATCH}
+ * frames (a count, followed by {@link MessageCodec} encoded messages, each length prefixed).
+ * An empty {@code BATCH} is sent every second while idle, so a dropped connection is noticed.
+ * So, messages published while a connection was down are not lost, as long as they are still
+ * in the history.
+ * <p>
+ * An accepting controller only republishes the channels it forwards itself, and drops anything
+ * a peer sends on other channels.
+ *
+ * <h2>Security</h2>
+ * The token and the messages are sent in cleartext, and the messages can hold anything published
+ * on the forwarded channels. So, by default, the bridge only listens on and connects to loopback
+ * addresses and Unix domain sockets. Connecting controllers on different hosts needs a TLS tunnel
+ * (e.g. stunnel or an SSH tunnel) or an otherwise private network between them, and
+ * <code>ALLOW_REMOTE</code> set. A connection must present the token within
+ * {@value #HANDSHAKE_TIMEOUT_SECONDS} seconds, in a frame of at most {@value #MAX_HELLO_SIZE}
+ * bytes, and only <code>MAX_CONNECTIONS</code> connections are accepted at a time.
+ *
+ * <h2>Configuration</h2>
+ * Configured through system properties (all prefixed with <code>org.jenkinsci.plugins.pubsub.EventBridge.</code>):
+ * <ul>
+ *     <li><code>LISTEN</code>: The address to listen on for peer connections e.g. <code>127.0.0.1:9099</code>,
+ *     <code>9099</code> (the loopback address), or <code>unix:/path/to/socket</code>. Not set by default
+ *     i.e. don't accept connections.</li>
+ *     <li><code>PEERS</code>: Comma separated list of peer addresses to connect to, in the same format.</li>
+ *     <li><code>CHANNELS</code>: Comma separated list of channels to forward to the peers. Default <code>job</code>.</li>
+ *     <li><code>TOKEN</code>: Shared secret that peers must present. Required.</li>
+ *     <li><code>ALLOW_REMOTE</code>: Allow <code>LISTEN</code> and <code>PEERS</code> addresses other than loopback
+ *     addresses. Only set this when the connections are carried over TLS, or a private network. Default <code>false</code>.</li>
+ *     <li><code>MAX_CONNECTIONS</code>: The maximum number of inbound connections at a time. Default <code>16</code>.</li>
+ * </ul>
+ * The bridge is only available with the default {@link GuavaPubsubBus} implementation.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class EventBridge implements MessageSink {
+
+    private static final Logger LOGGER = Logger.getLogger(EventBridge.class.getName());
+
+    private static final String PROPERTY_PREFIX = EventBridge.class.getName() + ".";
+
+    static final byte FRAME_HELLO = 1;
+    static final byte FRAME_RESUME = 2;
+    static final byte FRAME_BATCH = 3;
+
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // The token, the instance URL and the epoch. Checked before the token is.
+    static final int MAX_HELLO_SIZE = 4096;
+    static final int HANDSHAKE_TIMEOUT_SECONDS = 10;
+    private static final int MAX_CONNECTIONS = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + "MAX_CONNECTIONS", 16));
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int QUEUE_SIZE = 10000;
+    private static final long MAX_RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private static volatile EventBridge instance;
+
+    private final GuavaPubsubBus bus;
+    private final Set<String> channels;
+    private final byte[] token;
+    private final String instanceUrl;
+    private final long reconnectDelay;
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    private final List<Inbound> inbound = new CopyOnWriteArrayList<>();
+    private final String epoch = UUID.randomUUID().toString();
+    // Last sequence numbers received, per origin instance.
+    private final Map<String, Origin> received = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private ServerSocketChannel server;
+    private volatile boolean closed;
+
+    EventBridge(@NonNull GuavaPubsubBus bus, @NonNull Set<String> channels, @NonNull String token, @NonNull String instanceUrl, long reconnectDelay) {
+        this.bus = bus;
+        this.channels = Set.copyOf(channels);
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.instanceUrl = instanceUrl;
+        this.reconnectDelay = reconnectDelay;
+        for (String channel : this.channels) {
+            // Needed for resuming after a dropped connection.
+            bus.enableHistory(channel);
+        }
+        bus.addSink(this);
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void start() {
+        String token = System.getProperty(PROPERTY_PREFIX + "TOKEN");
+        String listen = System.getProperty(PROPERTY_PREFIX + "LISTEN");
+        String peerList = System.getProperty(PROPERTY_PREFIX + "PEERS");
+        if (listen == null && peerList == null) {
+            return;
+        }
+        if (token == null || token.isEmpty()) {
+            LOGGER.log(Level.WARNING, "Event bridge not started. The {0}TOKEN system property is not set.", PROPERTY_PREFIX);
+            return;
+        }
+        SocketAddress listenAddress;
+        List<SocketAddress> peerAddresses = new ArrayList<>();
+        try {
+            listenAddress = (listen != null ? parseAddress(listen) : null);
+            if (peerList != null) {
+                for (String peer : split(peerList)) {
+                    peerAddresses.add(parseAddress(peer));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Failed to start the event bridge.", e);
+            return;
+        }
+        if (!Boolean.getBoolean(PROPERTY_PREFIX + "ALLOW_REMOTE")) {
+            List<SocketAddress> addresses = new ArrayList<>(peerAddresses);
+            if (listenAddress != null) {
+                addresses.add(listenAddress);
+            }
+            for (SocketAddress address : addresses) {
+                if (!isLocal(address)) {
+                    LOGGER.log(Level.WARNING, "Event bridge not started. {0} is not a loopback address, and the bridge doesn''t encrypt"
+                            + " its connections. Carry them over TLS (e.g. stunnel or an SSH tunnel), and set {1}ALLOW_REMOTE.",
+                            new Object[] {address, PROPERTY_PREFIX});
+                    return;
+                }
+            }
+        }
+        PubsubBus bus = PubsubBus.getBus();
+        if (!(bus instanceof GuavaPubsubBus)) {
+            LOGGER.log(Level.WARNING, "Event bridge not started. Not supported by bus implementation {0}.", bus.getClass().getName());
+            return;
+        }
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        String rootUrl = (jenkins != null ? jenkins.getRootUrl() : null);
+        if (rootUrl == null) {
+            LOGGER.log(Level.WARNING, "Event bridge not started. The Jenkins URL is not configured.");
+            return;
+        }
+
+        EventBridge bridge = new EventBridge((GuavaPubsubBus) bus, split(System.getProperty(PROPERTY_PREFIX + "CHANNELS", Events.JobChannel.NAME)),
+                token, rootUrl, TimeUnit.SECONDS.toMillis(1));
+        try {
+            if (listenAddress != null) {
+                bridge.listen(listenAddress);
+            }
+            for (SocketAddress peer : peerAddresses) {
+                bridge.connect(peer);
+            }
+            instance = bridge;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to start the event bridge.", e);
+            bridge.close();
+        }
+    }
+
+    @Terminator
+    public static void stop() {
+        EventBridge bridge = instance;
+        if (bridge != null) {
+            instance = null;
+            bridge.close();
+        }
+    }
+
+    /**
+     * Listen for peer connections.
+     * @param address The address to listen on.
+     * @return The bound address e.g. the actual port, if listening on port 0.
+     */
+    synchronized @NonNull SocketAddress listen(@NonNull SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        SocketAddress boundAddress = server.getLocalAddress();
+        startThread("EventBridge.acceptor[" + boundAddress + "]", this::accept);
+        return boundAddress;
+    }
+
+    /**
+     * Connect to a peer, forwarding the local messages to it.
+     * @param address The peer address.
+     */
+    void connect(@NonNull SocketAddress address) {
+        Peer peer = new Peer(address);
+        peers.add(peer);
+        startThread("EventBridge.peer[" + address + "]", peer::run);
+    }
+
+    @Override
+    public boolean accepts(@NonNull String channelName) {
+        return channels.contains(channelName);
+    }
+
+    @Override
+    public void onPublish(@NonNull Message message) {
+        if (message.bridged || !channels.contains(message.getChannelName())) {
+            return;
+        }
+        for (Peer peer : peers) {
+            peer.offer(message);
+        }
+    }
+
+    /**
+     * Get the number of messages not forwarded to a peer because its queue was full.
+     * @return The number of messages not forwarded.
+     */
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Get the number of peers currently connected to, and forwarding messages.
+     * @return The number of connected peers.
+     */
+    int getConnectedPeerCount() {
+        int count = 0;
+        for (Peer peer : peers) {
+            if (peer.connected) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drop the inbound peer connections e.g. for testing reconnect.
+     */
+    void dropInboundConnections() {
+        for (Inbound connection : inbound) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        bus.removeSink(this);
+        closeQuietly(server);
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        dropInboundConnections();
+        if (server != null) {
+            try {
+                SocketAddress address = server.getLocalAddress();
+                if (address instanceof UnixDomainSocketAddress) {
+                    Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to clean up event bridge socket.", e);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                if (inbound.size() >= MAX_CONNECTIONS) {
+                    LOGGER.log(Level.WARNING, "Event bridge connection from {0} rejected. Already at {1}MAX_CONNECTIONS ({2}).",
+                            new Object[] {channel.getRemoteAddress(), PROPERTY_PREFIX, MAX_CONNECTIONS});
+                    closeQuietly(channel);
+                    continue;
+                }
+                Inbound connection = new Inbound(channel);
+                inbound.add(connection);
+                startThread("EventBridge.inbound[" + channel.getRemoteAddress() + "]", connection::run);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Event bridge failed to accept a connection.", e);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * An outbound connection to a peer, carrying the local messages.
+     */
+    private final class Peer {
+        private final SocketAddress address;
+        private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private volatile boolean connected;
+        private volatile SocketChannel channel;
+
+        private Peer(SocketAddress address) {
+            this.address = address;
+        }
+
+        private void offer(Message message) {
+            // While disconnected, messages are picked up from the history on reconnect.
+            if (connected && !queue.offer(message)) {
+                dropped.increment();
+            }
+        }
+
+        private void run() {
+            long delay = reconnectDelay;
+            while (!closed) {
+                try {
+                    channel = openChannel(address);
+                    delay = reconnectDelay;
+                    forward(channel);
+                } catch (IOException e) {
+                    if (!closed) {
+                        LOGGER.log(Level.FINE, "Event bridge connection to " + address + " failed. Retrying in " + delay + "ms.", e);
+                    }
+                } finally {
+                    connected = false;
+                    queue.clear();
+                    closeQuietly(channel);
+                }
+                if (!closed) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+                }
+            }
+        }
+
+        private void forward(SocketChannel channel) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+            FrameWriter hello = new FrameWriter();
+            hello.data.writeInt(token.length);
+            hello.data.write(token);
+            hello.data.writeUTF(instanceUrl);
+            hello.data.writeUTF(epoch);
+            hello.writeTo(out, FRAME_HELLO);
+            out.flush();
+
+            DataInputStream resume = readFrame(in, FRAME_RESUME, MAX_FRAME_SIZE);
+            Map<String, Long> lastSent = new HashMap<>();
+            int count = resume.readInt();
+            for (int i = 0; i < count; i++) {
+                lastSent.put(resume.readUTF(), resume.readLong());
+            }
+
+            // Queue live messages from now on, and only then take the history, so nothing is
+            // missed in between. Anything in both is only sent once.
+            connected = true;
+            List<Message> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            for (String channelName : channels) {
+                Long after = lastSent.get(channelName);
+                if (after != null) {
+                    for (Message message : bus.getHistory(channelName, EventCursor.afterSequence(after))) {
+                        if (!message.bridged) {
+                            batch.add(message);
+                        }
+                        if (batch.size() == MAX_BATCH_SIZE) {
+                            sendBatch(out, batch, lastSent);
+                        }
+                    }
+                }
+            }
+            sendBatch(out, batch, lastSent);
+            LOGGER.log(Level.INFO, "Event bridge connected to {0}.", address);
+
+            while (!closed) {
+                Message message;
+                try {
+                    message = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (message != null) {
+                    batch.add(message);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    sendBatch(out, batch, lastSent);
+                } else {
+                    // Nothing is ever read back, so an empty batch is how a dead connection
+                    // gets noticed (and resumed) while idle.
+                    new FrameWriter().writeTo(out, FRAME_BATCH, 0);
+                    out.flush();
+                }
+            }
+        }
+
+        private void sendBatch(DataOutputStream out, List<Message> batch, Map<String, Long> lastSent) throws IOException {
+            FrameWriter frame = new FrameWriter();
+            int count = 0;
+            for (Message message : batch) {
+                String channelName = message.getChannelName();
+                Long sequence = message.getChannelSequence();
+                if (channelName == null || sequence == null) {
+                    continue;
+                }
+                Long last = lastSent.get(channelName);
+                if (last != null && sequence <= last) {
+                    continue;
+                }
+                lastSent.put(channelName, sequence);
+                ByteBuffer encoded = MessageCodec.encode(message);
+                frame.data.writeInt(encoded.remaining());
+                frame.data.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+                count++;
+            }
+            batch.clear();
+            if (count > 0) {
+                frame.writeTo(out, FRAME_BATCH, count);
+                out.flush();
+            }
+        }
+
+        private void close() {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * An inbound connection from a peer, carrying its messages.
+     */
+    private final class Inbound {
+        private final SocketChannel channel;
+        private volatile boolean dropped;
+        private boolean unexpectedChannelLogged;
+
+        private Inbound(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void run() {
+            String origin = null;
+            // Channels.newInputStream doesn't honor SO_TIMEOUT, so close the connection instead.
+            ScheduledFuture<?> handshakeTimeout = Timer.get().schedule(this::close, HANDSHAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+                DataInputStream hello = readFrame(in, FRAME_HELLO, MAX_HELLO_SIZE);
+                byte[] peerToken = new byte[readLength(hello)];
+                hello.readFully(peerToken);
+                origin = hello.readUTF();
+                String originEpoch = hello.readUTF();
+                if (!MessageDigest.isEqual(token, peerToken)) {
+                    LOGGER.log(Level.WARNING, "Event bridge connection from {0} ({1}) rejected. Invalid token.", new Object[] {channel.getRemoteAddress(), origin});
+                    return;
+                }
+
+                Map<String, Long> lastReceived = received.compute(origin, (url, last) -> {
+                    if (last != null && last.epoch.equals(originEpoch)) {
+                        return last;
+                    }
+                    if (last != null) {
+                        LOGGER.log(Level.FINE, "Event bridge peer {0} restarted. Starting its sequence numbers again.", url);
+                    }
+                    return new Origin(originEpoch);
+                }).lastReceived;
+                FrameWriter resume = new FrameWriter();
+                resume.data.writeInt(lastReceived.size());
+                for (Map.Entry<String, Long> entry : lastReceived.entrySet()) {
+                    resume.data.writeUTF(entry.getKey());
+                    resume.data.writeLong(entry.getValue());
+                }
+                resume.writeTo(out, FRAME_RESUME);
+                out.flush();
+                if (!handshakeTimeout.cancel(false)) {
+                    return;
+                }
+
+                while (!closed) {
+                    DataInputStream batch = readFrame(in, FRAME_BATCH, MAX_FRAME_SIZE);
+                    int count = batch.readInt();
+                    for (int i = 0; i < count; i++) {
+                        byte[] encoded = new byte[readLength(batch)];
+                        batch.readFully(encoded);
+                        republish(origin, lastReceived, MessageCodec.decode(ByteBuffer.wrap(encoded)));
+                    }
+                }
+            } catch (EOFException e) {
+                LOGGER.log(Level.FINE, "Event bridge connection from {0} closed.", origin);
+            } catch (IOException | RuntimeException e) {
+                if (!closed && !dropped) {
+                    LOGGER.log(Level.WARNING, "Event bridge connection from " + origin + " failed.", e);
+                }
+            } finally {
+                handshakeTimeout.cancel(false);
+                close();
+                inbound.remove(this);
+            }
+        }
+
+        private void republish(String origin, Map<String, Long> lastReceived, Message received) {
+            String channelName = received.getChannelName();
+            Long sequence = received.getChannelSequence();
+            if (channelName == null || sequence == null) {
+                return;
+            }
+            if (!channels.contains(channelName)) {
+                if (!unexpectedChannelLogged) {
+                    unexpectedChannelLogged = true;
+                    LOGGER.log(Level.WARNING, "Event bridge peer {0} sent messages on channel {1}, which isn''t in {2}CHANNELS. Dropping them.",
+                            new Object[] {origin, channelName, PROPERTY_PREFIX});
+                }
+                return;
+            }
+            Long last = lastReceived.get(channelName);
+            if (last != null && sequence <= last) {
+                return;
+            }
+            lastReceived.put(channelName, sequence);
+
+            Message message;
+            // Including MessageCodec.RestrictedMessage i.e. access controlled types the codec doesn't know.
+            if (received instanceof AccessControlledMessage) {
+                message = new BridgedMessage();
+            } else {
+                message = new SimpleMessage(false);
+            }
+            message.putAll(received);
+            // The local bus gives it a local sequence number.
+            message.remove(EventProps.Jenkins.jenkins_channel_seq.name());
+            message.set(EventProps.Jenkins.jenkins_instance_url, origin);
+            message.bridged = true;
+            // Straight onto the channel. The message was already enriched on the peer.
+            bus.publisher(channelName).publish(message);
+        }
+
+        private void close() {
+            dropped = true;
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * The last sequence numbers received from a peer, per channel, since it (last) started.
+     */
+    private static final class Origin {
+        private final String epoch;
+        private final Map<String, Long> lastReceived = new ConcurrentHashMap<>();
+
+        private Origin(String epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * A message received from a peer controller that was access controlled on the peer. It can't be
+     * checked against the peer's ACLs here, so it requires {@link Jenkins#ADMINISTER}.
+     */
+    static final class BridgedMessage extends AccessControlledMessage<BridgedMessage> {
+
+        private static final long serialVersionUID = -1L;
+
+        @Override
+        protected @NonNull Permission getRequiredPermission() {
+            return Jenkins.ADMINISTER;
+        }
+
+        @Override
+        protected @CheckForNull AccessControlled getAccessControlled() {
+            return Jenkins.getInstanceOrNull();
+        }
+
+        @Override
+        public Message clone() {
+            BridgedMessage clone = new BridgedMessage();
+            clone.clear();
+            clone.putAll(this);
+            clone.bridged = bridged;
+            return clone;
+        }
+    }
+
+    private static final class FrameWriter {
+        private final java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(bytes);
+
+        private void writeTo(DataOutputStream out, byte type) throws IOException {
+            out.writeInt(bytes.size() + 1);
+            out.writeByte(type);
+            bytes.writeTo(out);
+        }
+
+        private void writeTo(DataOutputStream out, byte type, int count) throws IOException {
+            out.writeInt(bytes.size() + 5);
+            out.writeByte(type);
+            out.writeInt(count);
+            bytes.writeTo(out);
+        }
+    }
+
+    private static DataInputStream readFrame(DataInputStream in, byte expectedType, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > maxLength) {
+            throw new IOException("Invalid event bridge frame length " + length + ".");
+        }
+        byte type = in.readByte();
+        if (type != expectedType) {
+            throw new IOException("Unexpected event bridge frame type " + type + ". Expected " + expectedType + ".");
+        }
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+        return new DataInputStream(new java.io.ByteArrayInputStream(payload));
+    }
+
+    /**
+     * Read the length of a field in a frame, checking it against what's left of the frame.
+     */
+    private static int readLength(DataInputStream frame) throws IOException {
+        int length = frame.readInt();
+        if (length < 0 || length > frame.available()) {
+            throw new IOException("Invalid event bridge field length " + length + ".");
+        }
+        return length;
+    }
+
+    private static SocketChannel openChannel(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(address);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    /**
+     * Parse a peer address.
+     * @param address <code>host:port</code>, <code>port</code> (on the loopback address) or <code>unix:/path/to/socket</code>.
+     * @return The socket address.
+     */
+    static @NonNull SocketAddress parseAddress(@NonNull String address) {
+        if (address.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(Path.of(address.substring("unix:".length())));
+        }
+        if (!address.isEmpty() && address.chars().allMatch(Character::isDigit)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid event bridge address '" + address + "'. Expected host:port or unix:/path.");
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Is the address only reachable from this host?
+     */
+    static boolean isLocal(@NonNull SocketAddress address) {
+        if (address instanceof UnixDomainSocketAddress) {
+            return true;
+        }
+        InetSocketAddress inetAddress = (InetSocketAddress) address;
+        return !inetAddress.isUnresolved() && inetAddress.getAddress().isLoopbackAddress();
+    }
+
+    private static Set<String> split(String list) {
+        Set<String> values = new LinkedHashSet<>(Arrays.asList(list.trim().split("\\s*,\\s*")));
+        values.remove("");
+        return values;
+    }
+
+    private static void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(@CheckForNull java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing event bridge connection.", e);
+            }
+        }
+    }
+}
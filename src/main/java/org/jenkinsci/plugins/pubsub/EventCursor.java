@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A position in a channel's event history, from which a subscription can be resumed.
+ * <p>
+ * Create a cursor from the {@link Message#getChannelSequence() sequence number} of the last
+ * message received (e.g. before a client lost its connection), or from a timestamp.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ * @see PubsubBus#subscribe2From(String, ChannelSubscriber, org.springframework.security.core.Authentication, EventFilter, EventCursor)
+ */
+public final class EventCursor {
+
+    private final long sequence;
+    private final long timestamp;
+
+    private EventCursor(long sequence, long timestamp) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Create a cursor positioned after the message with the specified channel sequence number.
+     * @param lastSequence The sequence number of the last message received. 0 for all messages.
+     * @return The cursor.
+     */
+    public static @NonNull EventCursor afterSequence(long lastSequence) {
+        return new EventCursor(lastSequence, -1);
+    }
+
+    /**
+     * Create a cursor positioned at the first message with a timestamp greater than or equal to
+     * the specified timestamp.
+     * @param timestampMillis The timestamp, in milliseconds.
+     * @return The cursor.
+     */
+    public static @NonNull EventCursor fromTimestamp(long timestampMillis) {
+        return new EventCursor(-1, timestampMillis);
+    }
+
+    /**
+     * Is this a timestamp based cursor.
+     * @return {@code true} if this is a timestamp based cursor, {@code false} if it is sequence
+     * number based.
+     */
+    public boolean isTimestamp() {
+        return timestamp >= 0;
+    }
+
+    /**
+     * Get the sequence number of the last message received.
+     * @return The sequence number, or -1 for a timestamp based cursor.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the cursor timestamp.
+     * @return The timestamp, in milliseconds, or -1 for a sequence number based cursor.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return (isTimestamp() ? "timestamp:" + timestamp : "sequence:" + sequence);
+    }
+}
@@ -23,14 +23,276 @@
  */
 package org.jenkinsci.plugins.pubsub;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
 /**
  * Event filter.
+ * <p>
+ * The properties set on the filter must be set on the message, with the same values. Conditions
+ * can also be added for matching property values by prefix, regular expression, set membership,
+ * inequality or numeric range. A message must match all of the properties and conditions.
+ * <p>
+ * <strong>Note</strong> that the bus compiles the filter when subscribing, so changes made to
+ * the filter after that are not picked up.
+ *
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
 public final class EventFilter extends Message<EventFilter> {
+
+    private static final long serialVersionUID = -1L;
+
+    final List<Condition> conditions = new ArrayList<>();
+
     EventFilter() {
         // Don't set any of the "default" properties. The filter should start "clean",
         // adding the filtering properties after construction.
         super(false);
     }
+
+    /**
+     * Match messages where the named property starts with a prefix.
+     * @param name Property name.
+     * @param prefix The prefix.
+     * @return {@code this} filter instance.
+     */
+    public EventFilter startsWith(@NonNull String name, @NonNull String prefix) {
+        conditions.add(new Prefix(name, prefix));
+        return this;
+    }
+
+    /**
+     * Match messages where the named property matches a regular expression.
+     * @param name Property name.
+     * @param regex The regular expression. The whole property value must match.
+     * @return {@code this} filter instance.
+     * @throws java.util.regex.PatternSyntaxException Invalid regular expression.
+     */
+    public EventFilter matches(@NonNull String name, @NonNull String regex) {
+        conditions.add(new Regex(name, Pattern.compile(regex)));
+        return this;
+    }
+
+    /**
+     * Match messages where the named property is one of a set of values.
+     * @param name Property name.
+     * @param values The values.
+     * @return {@code this} filter instance.
+     */
+    public EventFilter in(@NonNull String name, @NonNull Collection<String> values) {
+        conditions.add(new In(name, values));
+        return this;
+    }
+
+    /**
+     * Match messages where the named property is not set, or is set to a different value.
+     * @param name Property name.
+     * @param value The value.
+     * @return {@code this} filter instance.
+     */
+    public EventFilter notEquals(@NonNull String name, @NonNull String value) {
+        conditions.add(new NotEquals(name, value));
+        return this;
+    }
+
+    /**
+     * Match messages where the named property is a whole number within a range
+     * e.g. {@link EventProps.Jenkins#jenkins_event_timestamp}.
+     * @param name Property name.
+     * @param min The minimum value (inclusive). {@link Long#MIN_VALUE} for no minimum.
+     * @param max The maximum value (inclusive). {@link Long#MAX_VALUE} for no maximum.
+     * @return {@code this} filter instance.
+     */
+    public EventFilter range(@NonNull String name, long min, long max) {
+        conditions.add(new Range(name, min, max));
+        return this;
+    }
+
+    /**
+     * A condition on a message property value.
+     */
+    abstract static class Condition implements Serializable {
+        private static final long serialVersionUID = -1L;
+
+        final String name;
+
+        Condition(@NonNull String name) {
+            this.name = name;
+        }
+
+        /**
+         * Does the property value match.
+         * @param value The property value, or {@code null} if not set on the message.
+         */
+        abstract boolean test(String value);
+
+        /**
+         * Relative cost of {@link #test(String)}, used to order the checks.
+         */
+        abstract int cost();
+
+        /**
+         * The condition argument(s), for comparing conditions.
+         */
+        abstract Object argument();
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Condition that = (Condition) o;
+            return name.equals(that.name) && argument().equals(that.argument());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(getClass(), name, argument());
+        }
+    }
+
+    private static final class NotEquals extends Condition {
+        private static final long serialVersionUID = -1L;
+        private final String value;
+
+        private NotEquals(String name, String value) {
+            super(name);
+            this.value = value;
+        }
+
+        @Override
+        boolean test(String value) {
+            return !this.value.equals(value);
+        }
+
+        @Override
+        Object argument() {
+            return value;
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+    }
+
+    private static final class In extends Condition {
+        private static final long serialVersionUID = -1L;
+        private final Set<String> values;
+
+        private In(String name, Collection<String> values) {
+            super(name);
+            this.values = Set.copyOf(values);
+        }
+
+        @Override
+        boolean test(String value) {
+            return value != null && values.contains(value);
+        }
+
+        @Override
+        Object argument() {
+            return values;
+        }
+
+        @Override
+        int cost() {
+            return 2;
+        }
+    }
+
+    private static final class Prefix extends Condition {
+        private static final long serialVersionUID = -1L;
+        private final String prefix;
+
+        private Prefix(String name, String prefix) {
+            super(name);
+            this.prefix = prefix;
+        }
+
+        @Override
+        boolean test(String value) {
+            return value != null && value.startsWith(prefix);
+        }
+
+        @Override
+        Object argument() {
+            return prefix;
+        }
+
+        @Override
+        int cost() {
+            return 2;
+        }
+    }
+
+    private static final class Range extends Condition {
+        private static final long serialVersionUID = -1L;
+        private final long min;
+        private final long max;
+
+        private Range(String name, long min, long max) {
+            super(name);
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        boolean test(String value) {
+            if (value == null) {
+                return false;
+            }
+            try {
+                long number = Long.parseLong(value);
+                return number >= min && number <= max;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        @Override
+        int cost() {
+            return 3;
+        }
+
+        @Override
+        Object argument() {
+            return List.of(min, max);
+        }
+    }
+
+    private static final class Regex extends Condition {
+        private static final long serialVersionUID = -1L;
+        private final Pattern pattern;
+
+        private Regex(String name, Pattern pattern) {
+            super(name);
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean test(String value) {
+            return value != null && pattern.matcher(value).matches();
+        }
+
+        @Override
+        Object argument() {
+            return List.of(pattern.pattern(), pattern.flags());
+        }
+
+        @Override
+        int cost() {
+            return 10;
+        }
+    }
 }
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded, in-memory history of the most recent messages published on a channel.
+ * <p>
+ * The history is bounded by a message count and an (estimated) size in bytes, whichever
+ * is reached first. The oldest messages are dropped to make room for new ones.
+ * <p>
+ * Messages are held as clones, with any domain model objects that were resolved for the
+ * published message (e.g. the {@link hudson.model.Run} of a {@link RunMessage}) dropped,
+ * so the history doesn't keep them in memory. They are looked up again if a replayed
+ * message needs them e.g. for an access control check.
+ * <p>
+ * Use system properties <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.MAX_MESSAGES</code></strong>
+ * (default 1000, 0 to disable the history) and <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.MAX_BYTES</code></strong>
+ * (default 1 MB) to configure the bounds, per channel. A channel only keeps a history while
+ * it has subscribers, and for <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.RETAIN_SECONDS</code></strong>
+ * (default 300) after the last one leaves, unless it is listed in the
+ * <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.CHANNELS</code></strong> system
+ * property (comma separated).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventHistory {
+
+    static final int MAX_MESSAGES = Integer.getInteger(EventHistory.class.getName() + ".MAX_MESSAGES", 1000);
+    static final long MAX_BYTES = Long.getLong(EventHistory.class.getName() + ".MAX_BYTES", 1024 * 1024);
+    static final Set<String> CHANNELS = Set.copyOf(Arrays.asList(System.getProperty(EventHistory.class.getName() + ".CHANNELS", "").trim().split("\\s*,\\s*")));
+
+    // Rough per object overheads, for estimating the size of a message.
+    private static final int MESSAGE_OVERHEAD = 96;
+    private static final int PROPERTY_OVERHEAD = 80;
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final Entry[] entries;
+    private int head;
+    private int size;
+    private long bytes;
+
+    EventHistory(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.entries = new Entry[maxMessages];
+    }
+
+    /**
+     * Add a published message to the history.
+     * <p>
+     * Messages must be added in channel sequence order.
+     * @param message The published message.
+     */
+    synchronized void add(@NonNull Message message) {
+        Long sequence = message.getChannelSequence();
+        if (sequence == null) {
+            return;
+        }
+
+        Message copy = message.clone();
+        if (message instanceof AccessControlledMessage && !(copy instanceof AccessControlledMessage)) {
+            // The message type does not clone itself properly. Keep the message itself,
+            // rather than lose its access control on replay.
+            copy = message;
+        } else {
+            copy.forgetResolved();
+            copy.bridged = message.bridged;
+        }
+        Entry entry = new Entry(sequence, timestampOf(copy), copy, estimateSize(copy));
+
+        while (size > 0 && (size == maxMessages || bytes + entry.bytes > maxBytes)) {
+            removeOldest();
+        }
+        entries[(head + size) % maxMessages] = entry;
+        size++;
+        bytes += entry.bytes;
+    }
+
+    /**
+     * Get the messages in the history from a cursor position.
+     * <p>
+     * If the cursor is older than the oldest message in the history, all of the messages
+     * in the history are returned. A timestamp cursor is positioned at the first message
+     * (in sequence order) with a timestamp greater than or equal to the cursor timestamp,
+     * and all of the messages from there on are returned, whatever their timestamps.
+     * @param cursor The cursor.
+     * @return The messages, in sequence order.
+     */
+    synchronized @NonNull List<Message> from(@NonNull EventCursor cursor) {
+        int start = 0;
+        if (cursor.isTimestamp()) {
+            // Timestamps are not necessarily in order (e.g. set by the publisher), so scan
+            // for the position rather than search.
+            while (start < size && entry(start).timestamp < cursor.getTimestamp()) {
+                start++;
+            }
+        } else if (size > 0) {
+            long offset = cursor.getSequence() + 1 - entry(0).sequence;
+            start = (int) Math.max(0, Math.min(size, offset));
+        }
+
+        List<Message> messages = new ArrayList<>(size - start);
+        for (int i = start; i < size; i++) {
+            messages.add(entry(i).message);
+        }
+        return messages;
+    }
+
+    /**
+     * Get the number of messages in the history.
+     * @return The number of messages in the history.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the estimated size of the messages in the history.
+     * @return The estimated size of the messages in the history, in bytes.
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private Entry entry(int i) {
+        return entries[(head + i) % maxMessages];
+    }
+
+    private void removeOldest() {
+        Entry oldest = entries[head];
+        entries[head] = null;
+        head = (head + 1) % maxMessages;
+        size--;
+        bytes -= oldest.bytes;
+    }
+
+    private static long timestampOf(Message message) {
+        try {
+            Long timestamp = message.getTimestampMillis();
+            return (timestamp != null ? timestamp : System.currentTimeMillis());
+        } catch (NumberFormatException e) {
+            return System.currentTimeMillis();
+        }
+    }
+
+    static long estimateSize(@NonNull Message message) {
+        long size = MESSAGE_OVERHEAD;
+        for (Map.Entry<Object, Object> property : message.entrySet()) {
+            size += PROPERTY_OVERHEAD + 2L * (property.getKey().toString().length() + property.getValue().toString().length());
+        }
+        return size;
+    }
+
+    private static final class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final Message message;
+        private final long bytes;
+
+        private Entry(long sequence, long timestamp, Message message, long bytes) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.message = message;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional, persistent journal of the messages published on the bus.
+ * <p>
+ * Each channel has its own {@link ChannelJournal} (a directory of memory-mapped segment files).
+ * Published messages are handed to a single writer thread through a bounded queue, so journaling
+ * never blocks the publisher. The writer appends all of the messages waiting in the queue and then
+ * forces them to disk together (group commit). If the writer can't keep up and the queue fills,
+ * messages are not journaled (and counted, see {@link #getDroppedCount()}).
+ * <p>
+ * The journal is enabled by setting the <strong><code>org.jenkinsci.plugins.pubsub.EventJournal.ENABLED</code></strong>
+ * system property to <code>true</code>. Other system properties (all prefixed with
+ * <code>org.jenkinsci.plugins.pubsub.EventJournal.</code>):
+ * <ul>
+ *     <li><code>DIR</code>: The journal directory. Default <code>$JENKINS_HOME/pubsub/journal</code>.</li>
+ *     <li><code>SEGMENT_SIZE_MB</code>: The segment file size. Default 16 MB.</li>
+ *     <li><code>MAX_SIZE_MB</code>: The maximum journal size, per channel. Default 256 MB.</li>
+ *     <li><code>MAX_AGE_HOURS</code>: The age after which messages are removed. Default 24 hours.</li>
+ *     <li><code>QUEUE_SIZE</code>: The writer queue size. Default 10000 messages.</li>
+ * </ul>
+ * Retention is applied a segment at a time i.e. a segment file is deleted once it takes the journal
+ * over its maximum size or all of its messages are older than the maximum age.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventJournal implements MessageSink {
+
+    private static final Logger LOGGER = Logger.getLogger(EventJournal.class.getName());
+
+    private static final String PROPERTY_PREFIX = EventJournal.class.getName() + ".";
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final long RETENTION_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final BlockingQueue<Message> queue;
+    private final Map<String, ChannelJournal> channels = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong accepted = new AtomicLong();
+    private volatile long processed;
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile boolean dropWarningLogged;
+    private long lastRetentionCheck;
+
+    EventJournal(@NonNull File directory, int segmentSize, long maxBytes, long maxAgeMillis, int queueSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.writer = new Thread(this::write, "EventJournal.writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Create the journal, as configured by system properties.
+     * @return The journal, or {@code null} if journaling is not enabled.
+     */
+    static @CheckForNull EventJournal create() {
+        if (!Boolean.getBoolean(PROPERTY_PREFIX + "ENABLED")) {
+            return null;
+        }
+        String dir = System.getProperty(PROPERTY_PREFIX + "DIR");
+        File directory;
+        if (dir != null) {
+            directory = new File(dir);
+        } else {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            if (jenkins == null) {
+                LOGGER.log(Level.WARNING, "Event journal not enabled. No journal directory configured and no Jenkins instance.");
+                return null;
+            }
+            directory = new File(jenkins.getRootDir(), "pubsub/journal");
+        }
+        return new EventJournal(directory,
+                Integer.getInteger(PROPERTY_PREFIX + "SEGMENT_SIZE_MB", 16) * 1024 * 1024,
+                Long.getLong(PROPERTY_PREFIX + "MAX_SIZE_MB", 256) * 1024 * 1024,
+                TimeUnit.HOURS.toMillis(Long.getLong(PROPERTY_PREFIX + "MAX_AGE_HOURS", 24)),
+                Integer.getInteger(PROPERTY_PREFIX + "QUEUE_SIZE", 10000));
+    }
+
+    @Override
+    public void onPublish(@NonNull Message message) {
+        if (!closed && queue.offer(message)) {
+            accepted.incrementAndGet();
+        } else {
+            dropped.increment();
+            if (!dropWarningLogged) {
+                dropWarningLogged = true;
+                LOGGER.log(Level.WARNING, "Event journal writer queue full. Messages are not being journaled. Consider increasing the {0}QUEUE_SIZE system property.", PROPERTY_PREFIX);
+            }
+        }
+    }
+
+    /**
+     * Get the sequence number of the last message journaled on a channel.
+     * @param channelName The channel name.
+     * @return The sequence number, or 0 if nothing has been journaled on the channel.
+     */
+    long getLastSequence(@NonNull String channelName) {
+        ChannelJournal journal = getChannelJournal(channelName);
+        return (journal != null ? journal.getLastSequence() : 0);
+    }
+
+    /**
+     * Read the journaled messages on a channel, starting with the message with the specified
+     * sequence number (or the oldest journaled message, if that message is no longer in the journal).
+     * <p>
+     * Messages waiting on the writer queue are not included.
+     * @param channelName The channel name.
+     * @param fromSequence The sequence number.
+     * @param consumer The message consumer. Returns {@code false} to stop reading.
+     */
+    void read(@NonNull String channelName, long fromSequence, @NonNull Predicate<Message> consumer) {
+        ChannelJournal journal = getChannelJournal(channelName);
+        if (journal != null) {
+            journal.read(fromSequence, consumer);
+        }
+    }
+
+    /**
+     * Find the sequence number of the first journaled message on a channel with a timestamp greater
+     * than or equal to the specified timestamp.
+     * @param channelName The channel name.
+     * @param timestamp The timestamp (milliseconds).
+     * @return The sequence number, or {@code null} if there is no such message.
+     */
+    @CheckForNull Long findSequence(@NonNull String channelName, long timestamp) {
+        ChannelJournal journal = getChannelJournal(channelName);
+        return (journal != null ? journal.findSequence(timestamp) : null);
+    }
+
+    /**
+     * Get the number of messages that were not journaled because the writer queue was full.
+     * @return The number of messages that were not journaled.
+     */
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Wait for the messages currently on the writer queue to be journaled.
+     * @param timeout The max time to wait, in milliseconds.
+     * @return {@code true} if the queue was drained, otherwise {@code false}.
+     */
+    boolean awaitWritten(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long target = accepted.get();
+        synchronized (queue) {
+            while (processed < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                queue.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channels.values().forEach(ChannelJournal::close);
+        channels.clear();
+    }
+
+    private void write() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        Set<ChannelJournal> written = new HashSet<>();
+        while (true) {
+            try {
+                Message first = queue.poll(RETENTION_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                }
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    continue;
+                }
+                // Closing. Write whatever is left.
+                queue.drainTo(batch);
+            }
+
+            boolean rolled = false;
+            for (Message message : batch) {
+                rolled |= append(message, written);
+            }
+            // Group commit.
+            for (ChannelJournal journal : written) {
+                journal.flush();
+            }
+            int batchSize = batch.size();
+            batch.clear();
+            written.clear();
+
+            long now = System.currentTimeMillis();
+            if (rolled || now - lastRetentionCheck > RETENTION_CHECK_INTERVAL) {
+                for (ChannelJournal journal : channels.values()) {
+                    journal.applyRetention(maxBytes, now - maxAgeMillis);
+                }
+                lastRetentionCheck = now;
+            }
+
+            synchronized (queue) {
+                processed += batchSize;
+                queue.notifyAll();
+            }
+            if (closed && queue.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private boolean append(Message message, Set<ChannelJournal> written) {
+        String channelName = message.getChannelName();
+        Long sequence = message.getChannelSequence();
+        if (channelName == null || sequence == null) {
+            return false;
+        }
+        ChannelJournal journal = getChannelJournal(channelName);
+        if (journal == null) {
+            return false;
+        }
+        Long timestamp = message.getTimestampMillis();
+        try {
+            boolean rolled = journal.append(sequence, (timestamp != null ? timestamp : System.currentTimeMillis()), MessageCodec.encode(message));
+            written.add(journal);
+            return rolled;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to journal message " + sequence + " on channel '" + channelName + "'.", e);
+            return false;
+        }
+    }
+
+    private @CheckForNull ChannelJournal getChannelJournal(@NonNull String channelName) {
+        ChannelJournal journal = channels.get(channelName);
+        if (journal == null) {
+            synchronized (channels) {
+                journal = channels.get(channelName);
+                if (journal == null) {
+                    try {
+                        journal = new ChannelJournal(channelName, new File(directory, toDirectoryName(channelName)), segmentSize);
+                        channels.put(channelName, journal);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to open the journal for channel '" + channelName + "'.", e);
+                    }
+                }
+            }
+        }
+        return journal;
+    }
+
+    static @NonNull String toDirectoryName(@NonNull String channelName) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : channelName.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            // A leading dot is escaped, so "." and ".." can't name the journal directory or its parent.
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || (c == '.' && name.length() > 0) || c == '-' || c == '_') {
+                name.append(c);
+            } else {
+                name.append('%').append(String.format("%02X", (int) c));
+            }
+        }
+        return name.toString();
+    }
+}
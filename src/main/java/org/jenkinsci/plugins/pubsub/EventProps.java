@@ -92,6 +92,13 @@ public interface EventProps {
          * Jenkins domain object URL.
          */
         jenkins_object_url,
+        /**
+         * The message sequence number on its channel, set by the bus when the message is published.
+         * <p>
+         * Sequence numbers increase (by one) with each message published on the channel, and
+         * identify a position in the channel's event history e.g. for resuming a subscription.
+         */
+        jenkins_channel_seq,
     }
 
     /**
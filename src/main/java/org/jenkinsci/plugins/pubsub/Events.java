@@ -23,6 +23,7 @@
  */
 package org.jenkinsci.plugins.pubsub;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.model.Item;
 import hudson.model.Queue;
 import hudson.model.listeners.ItemListener;
@@ -58,19 +59,19 @@ public interface Events {
          * Job created.
          * @see ItemListener#onCreated(Item)
          */
-        job_crud_created,
+        job_crud_created(MessagePriority.NORMAL),
 
         /**
          * Job deleted.
          * @see ItemListener#onDeleted(Item)
          */
-        job_crud_deleted,
+        job_crud_deleted(MessagePriority.NORMAL),
         
         /**
          * Job updated.
          * @see ItemListener#onUpdated(Item)
          */
-        job_crud_updated,
+        job_crud_updated(MessagePriority.LOW),
         
         /**
          * Job renamed.
@@ -78,7 +79,7 @@ public interface Events {
          * @see EventProps.Item#item_rename_after
          * @see ItemListener#onRenamed(Item, String, String)
          */
-        job_crud_renamed,
+        job_crud_renamed(MessagePriority.NORMAL),
         
         // Job run events
         
@@ -86,56 +87,70 @@ public interface Events {
          * Job run queue entered.
          * @see hudson.model.queue.QueueListener#onEnterWaiting(Queue.WaitingItem)  
          */
-        job_run_queue_enter,
+        job_run_queue_enter(MessagePriority.LOW),
         /**
          * Job run queue buildable.
          * @see hudson.model.queue.QueueListener#onEnterBuildable(Queue.BuildableItem) 
          */
-        job_run_queue_buildable,
+        job_run_queue_buildable(MessagePriority.LOW),
         /**
          * Job run queue left.
          * @see hudson.model.queue.QueueListener#onLeft(Queue.LeftItem)  
          */
-        job_run_queue_left,
+        job_run_queue_left(MessagePriority.NORMAL),
         /**
          * Job run queue blocked.
          * @see hudson.model.queue.QueueListener#onEnterBlocked(Queue.BlockedItem)
          */
-        job_run_queue_blocked,
+        job_run_queue_blocked(MessagePriority.LOW),
         /**
          * Job run started.
          */
-        job_run_started,
+        job_run_started(MessagePriority.HIGH),
         /**
          * Job run SCM checkout.
          */
-        job_run_scm_checkout,
+        job_run_scm_checkout(MessagePriority.NORMAL),
         /**
          * Job run paused.
          */
-        job_run_paused,
+        job_run_paused(MessagePriority.HIGH),
         /**
          * Job run unpaused.
          */
-        job_run_unpaused,
+        job_run_unpaused(MessagePriority.HIGH),
         /**
          * Job run ended.
          */
-        job_run_ended,
+        job_run_ended(MessagePriority.HIGH),
         /**
          * Job run artifact fingerprinting.
          */
-        job_run_artifact_fingerprinting,
+        job_run_artifact_fingerprinting(MessagePriority.LOW),
         /**
          * Job run queue task complete.
          * <p>
          * Fires after the run has ended.
          */
-        job_run_queue_task_complete;
+        job_run_queue_task_complete(MessagePriority.NORMAL);
 
         /**
          * The channel name.
          */
         public static final String NAME = "job";
+
+        private final MessagePriority priority;
+
+        JobChannel(@NonNull MessagePriority priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Get the default delivery priority for the event.
+         * @return The default delivery priority.
+         */
+        public @NonNull MessagePriority getPriority() {
+            return priority;
+        }
     }
 }
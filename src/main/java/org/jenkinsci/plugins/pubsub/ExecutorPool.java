@@ -0,0 +1,427 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A named {@link GuavaPubsubBus} thread pool.
+ * <p>
+ * Every channel is delivered on exactly one pool, so a flood of messages on one channel only
+ * competes for threads with the other channels on the same pool. There is always a
+ * <code>default</code> pool, plus the pools named in the comma separated
+ * <strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOLS</code></strong> system property
+ * (default <code>job</code>). Each pool is configured through the following system properties,
+ * where <code>&lt;name&gt;</code> is the pool name:
+ * <ul>
+ *     <li><strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOL.&lt;name&gt;.CHANNELS</code></strong>:
+ *     Comma separated list of the channels delivered on the pool. The <code>job</code> pool defaults to
+ *     the {@link Events.JobChannel job channel}. Channels not assigned to a pool use the default pool.</li>
+ *     <li><strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOL.&lt;name&gt;.THREADS</code></strong>:
+ *     The number of threads. Defaults to <code>MAX_THREADS</code>. If the pool is sized adaptively (see
+ *     {@link PoolSizer}), this is the initial number of threads, otherwise the pool falls back to 0 threads when idle.</li>
+ *     <li><strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOL.&lt;name&gt;.MIN_THREADS</code></strong>:
+ *     The number of threads an adaptively sized pool is kept at, even when idle (default 1).</li>
+ *     <li><strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOL.&lt;name&gt;.MAX_THREADS</code></strong>:
+ *     The number of threads an adaptively sized pool can grow to. Defaults to twice the number of processors, or
+ *     <code>THREADS</code> if that is more.</li>
+ *     <li><strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOL.&lt;name&gt;.QUEUE_SIZE</code></strong>:
+ *     The max number of tasks waiting for a thread, 0 (the default) for no limit. When the queue is full, the
+ *     lowest priority delivery waiting is dropped, and ordered deliveries run on the publishing thread instead.
+ *     Both are counted.</li>
+ *     <li><strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOL.&lt;name&gt;.KEEP_ALIVE_SECONDS</code></strong>:
+ *     How long an idle thread is kept before it is stopped (default 10 seconds).</li>
+ * </ul>
+ * <p>
+ * Message deliveries submitted with a {@link MessagePriority} wait on a lane per priority, and the pool's
+ * queue only holds a dispatch token for each of them. When a token gets a thread, it runs the next delivery
+ * picked by a smooth weighted round robin over the priorities (see {@link MessagePriority#weight}), falling
+ * back to the highest priority lane with deliveries waiting. So higher priority deliveries overtake lower
+ * priority ones, but a backlogged lane still gets its share of the threads.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class ExecutorPool {
+
+    private static final Logger LOGGER = Logger.getLogger(ExecutorPool.class.getName());
+
+    static final String DEFAULT = "default";
+    static final String JOB = "job";
+
+    private static final String PROPERTY_PREFIX = GuavaPubsubBus.class.getName() + ".";
+    private static final MessagePriority[] SCHEDULE = schedule();
+
+    private final String name;
+    private final int minThreads;
+    private final int maxThreads;
+    private final int queueSize;
+    private final DispatchExecutor executor;
+    private final KeyedExecutor orderedExecutor;
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicBoolean rejectionLogged = new AtomicBoolean();
+    private final LongAdder callerRuns = new LongAdder();
+    private final AtomicBoolean callerRunLogged = new AtomicBoolean();
+    private final Queue<Runnable>[] priorityLanes;
+    private final AtomicLong dispatchCount = new AtomicLong();
+    private final Runnable dispatchToken = this::dispatch;
+
+    @SuppressWarnings("unchecked")
+    private ExecutorPool(@NonNull String name, int threads, int minThreads, int maxThreads, int queueSize, long keepAliveSeconds, int orderedLanes, boolean adaptive) {
+        this.name = name;
+        this.priorityLanes = new Queue[MessagePriority.values().length];
+        for (int i = 0; i < priorityLanes.length; i++) {
+            priorityLanes[i] = new ConcurrentLinkedQueue<>();
+        }
+        threads = Math.max(1, threads);
+        if (adaptive) {
+            this.minThreads = Math.max(1, Math.min(minThreads, threads));
+            this.maxThreads = Math.max(threads, maxThreads);
+        } else {
+            this.minThreads = threads;
+            this.maxThreads = threads;
+        }
+        this.queueSize = Math.max(0, queueSize);
+        // Note: with a plain (unbounded or bounded) queue the pool never grows beyond its core size, so
+        // the core size is the thread count. A fixed size pool allows core threads to time out (falling
+        // back to 0 when idle). An adaptively sized pool is shrunk by the PoolSizer instead, down to
+        // MIN_THREADS, so a burst doesn't have to start threads.
+        BlockingQueue<Runnable> queue = (this.queueSize > 0 ? new ArrayBlockingQueue<>(this.queueSize) : new LinkedBlockingQueue<>());
+        String threadName = (DEFAULT.equals(name) ? "GuavaPubsubBus.ThreadPoolExecutor" : "GuavaPubsubBus.ThreadPoolExecutor[" + name + "]");
+        this.executor = new DispatchExecutor(threads, Math.max(1, keepAliveSeconds), queue, threadName);
+        this.executor.allowCoreThreadTimeOut(!adaptive);
+        this.orderedExecutor = (orderedLanes > 0 ? new KeyedExecutor(executor, orderedLanes, this::callerRan) : null);
+    }
+
+    /**
+     * Create the configured pools.
+     * @param defaultThreads The thread count for pools that don't configure one.
+     * @param orderedLanes The number of ordered delivery lanes per pool, or 0 if delivery is not ordered.
+     * @param adaptive Are the pools sized adaptively (see {@link PoolSizer}).
+     * @return The pools, by name. The default pool is always present.
+     */
+    static @NonNull Map<String, ExecutorPool> create(int defaultThreads, int orderedLanes, boolean adaptive) {
+        Map<String, ExecutorPool> pools = new HashMap<>();
+        for (String name : getNames()) {
+            int threads = Integer.getInteger(property(name, "THREADS"), defaultThreads);
+            pools.put(name, new ExecutorPool(name,
+                    threads,
+                    Integer.getInteger(property(name, "MIN_THREADS"), 1),
+                    Integer.getInteger(property(name, "MAX_THREADS"), Math.max(threads, 2 * Runtime.getRuntime().availableProcessors())),
+                    Integer.getInteger(property(name, "QUEUE_SIZE"), 0),
+                    Long.getLong(property(name, "KEEP_ALIVE_SECONDS"), 10),
+                    orderedLanes,
+                    adaptive));
+        }
+        return pools;
+    }
+
+    /**
+     * Get the configured pool names.
+     * @return The pool names, starting with the default pool.
+     */
+    static @NonNull List<String> getNames() {
+        Set<String> names = new LinkedHashSet<>();
+        names.add(DEFAULT);
+        for (String name : System.getProperty(PROPERTY_PREFIX + "POOLS", JOB).split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Get the channel to pool assignments.
+     * @return The pool name, by channel name. Channels not in the map use the default pool.
+     */
+    static @NonNull Map<String, String> getChannelAssignments() {
+        Map<String, String> assignments = new HashMap<>();
+        for (String name : getNames()) {
+            if (DEFAULT.equals(name)) {
+                continue;
+            }
+            String channels = System.getProperty(property(name, "CHANNELS"), (JOB.equals(name) ? Events.JobChannel.NAME : ""));
+            for (String channel : channels.split(",")) {
+                channel = channel.trim();
+                if (!channel.isEmpty() && assignments.putIfAbsent(channel, name) != null) {
+                    LOGGER.warning("Channel '" + channel + "' is assigned to more than one bus thread pool. Using pool '"
+                            + assignments.get(channel) + "'.");
+                }
+            }
+        }
+        return assignments;
+    }
+
+    private static String property(@NonNull String poolName, @NonNull String setting) {
+        return PROPERTY_PREFIX + "POOL." + poolName + "." + setting;
+    }
+
+    @NonNull String getName() {
+        return name;
+    }
+
+    /**
+     * Get the current number of threads the pool runs tasks on.
+     * @return The current pool size.
+     */
+    int getThreads() {
+        return executor.getCorePoolSize();
+    }
+
+    int getMinThreads() {
+        return minThreads;
+    }
+
+    int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * Set the number of threads the pool runs tasks on.
+     * @param threads The new pool size. Clamped to the pool's min and max threads.
+     * @return The new pool size.
+     */
+    synchronized int resize(int threads) {
+        threads = Math.max(minThreads, Math.min(maxThreads, threads));
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            // Idle threads above the new size stop straight away, busy ones once their task completes.
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        return threads;
+    }
+
+    /**
+     * Get the total time spent running tasks on the pool.
+     * @return The total task run time, in nanoseconds.
+     */
+    long getTaskNanos() {
+        return executor.taskNanos.sum();
+    }
+
+    /**
+     * Get the number of tasks run on the pool.
+     * @return The number of completed tasks.
+     */
+    long getTaskCount() {
+        return executor.taskCount.sum();
+    }
+
+    @NonNull ThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Get the ordered delivery executor for the pool.
+     * @return The ordered delivery executor, or {@code null} if delivery is not ordered.
+     */
+    @CheckForNull KeyedExecutor getOrderedExecutor() {
+        return orderedExecutor;
+    }
+
+    /**
+     * Run a message delivery task, ahead of waiting lower priority tasks.
+     * @param priority The message priority.
+     * @param task The task.
+     * @throws RejectedExecutionException The pool queue is full, or the pool is shut down. The lowest
+     * priority task waiting (not necessarily this one) is shed.
+     */
+    void execute(@NonNull MessagePriority priority, @NonNull Runnable task) {
+        priorityLanes[priority.ordinal()].add(task);
+        try {
+            executor.execute(dispatchToken);
+        } catch (RejectedExecutionException e) {
+            // One task more is waiting than there are tokens to run them. Shed the lowest priority one.
+            for (int i = priorityLanes.length - 1; i >= 0; i--) {
+                Runnable shed = priorityLanes[i].poll();
+                if (shed != null) {
+                    if (!executor.isShutdown() && (!(shed instanceof DeliveryTask) || ((DeliveryTask) shed).shed())) {
+                        dropped();
+                    }
+                    break;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Record a message delivery dropped because the pool queue was full.
+     */
+    void dropped() {
+        rejected.increment();
+        if (rejectionLogged.compareAndSet(false, true)) {
+            LOGGER.warning("Bus thread pool '" + name + "' queue is full (" + queueSize + " tasks). Messages on its channels are"
+                    + " being dropped. Consider raising " + property(name, "QUEUE_SIZE") + " or " + property(name, "THREADS") + ".");
+        }
+    }
+
+    /**
+     * Record a task run on the submitting thread because the pool queue was full.
+     */
+    void callerRan() {
+        callerRuns.increment();
+        if (callerRunLogged.compareAndSet(false, true)) {
+            LOGGER.warning("Bus thread pool '" + name + "' queue is full (" + queueSize + " tasks). Messages on its channels are"
+                    + " being delivered on the publishing threads. Consider raising " + property(name, "QUEUE_SIZE") + " or "
+                    + property(name, "THREADS") + ".");
+        }
+    }
+
+    private void dispatch() {
+        Runnable task = priorityLanes[SCHEDULE[(int) (dispatchCount.getAndIncrement() % SCHEDULE.length)].ordinal()].poll();
+        for (int i = 0; task == null && i < priorityLanes.length; i++) {
+            task = priorityLanes[i].poll();
+        }
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Build the dispatch schedule, in which each priority appears {@link MessagePriority#weight} times,
+     * spread as evenly as possible (smooth weighted round robin).
+     */
+    static @NonNull MessagePriority[] schedule() {
+        MessagePriority[] priorities = MessagePriority.values();
+        int total = 0;
+        for (MessagePriority priority : priorities) {
+            total += priority.weight;
+        }
+        MessagePriority[] schedule = new MessagePriority[total];
+        int[] current = new int[priorities.length];
+        for (int n = 0; n < total; n++) {
+            int selected = 0;
+            for (int i = 0; i < priorities.length; i++) {
+                current[i] += priorities[i].weight;
+                if (current[i] > current[selected]) {
+                    selected = i;
+                }
+            }
+            current[selected] -= total;
+            schedule[n] = priorities[selected];
+        }
+        return schedule;
+    }
+
+    /**
+     * Get the number of message deliveries dropped because the pool queue was full.
+     * @return The number of dropped deliveries.
+     */
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Get the number of tasks run on the submitting thread because the pool queue was full.
+     * @return The number of tasks run on the submitting thread.
+     */
+    long getCallerRunCount() {
+        return callerRuns.sum();
+    }
+
+    /**
+     * Get the share of the pool's threads currently busy.
+     * @return The utilization, from 0 to 1.
+     */
+    double getUtilization() {
+        return Math.min(1.0, (double) executor.getActiveCount() / getThreads());
+    }
+
+    boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void rejected(Runnable task, ThreadPoolExecutor threadPool) {
+        if (threadPool.isShutdown()) {
+            throw new RejectedExecutionException("Bus thread pool '" + name + "' is shut down.");
+        }
+        // Let the caller decide what to do with the task, and count it accordingly.
+        throw new RejectedExecutionException("Bus thread pool '" + name + "' queue is full.");
+    }
+
+    /**
+     * One of possibly several tasks delivering the same message, so shedding it doesn't necessarily drop
+     * the delivery.
+     */
+    interface DeliveryTask extends Runnable {
+        /**
+         * Called instead of {@link #run()} when the task is shed because the pool queue is full.
+         * @return {@code true} if the delivery was dropped, {@code false} if other tasks will complete it.
+         */
+        boolean shed();
+    }
+
+    /**
+     * Records the time spent running tasks, as the measure of handler latency used to size the pool.
+     */
+    private final class DispatchExecutor extends ThreadPoolExecutor {
+        private final ThreadLocal<long[]> taskStart = ThreadLocal.withInitial(() -> new long[1]);
+        private final LongAdder taskNanos = new LongAdder();
+        private final LongAdder taskCount = new LongAdder();
+
+        private DispatchExecutor(int threads, long keepAliveSeconds, @NonNull BlockingQueue<Runnable> queue, @NonNull String threadName) {
+            super(threads, threads, keepAliveSeconds, TimeUnit.SECONDS, queue, r -> new Thread(r, threadName), (r, e) -> rejected(r, e));
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable task) {
+            taskStart.get()[0] = System.nanoTime();
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable throwable) {
+            taskNanos.add(System.nanoTime() - taskStart.get()[0]);
+            taskCount.increment();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An {@link EventFilter}, compiled for evaluating against the messages published on a channel.
+ * <p>
+ * The filter properties are flattened into arrays, so evaluating them does not iterate (or lock)
+ * the filter's own property table as {@link Message#containsAll(java.util.Properties)} does. The
+ * names and values are canonicalized through the {@link StringInterner}, as message properties are,
+ * so a value usually matches on identity alone. Otherwise the value's hash (which {@link String}
+ * caches, and which is computed once per published message, however many subscribers check it) is
+ * compared with the one precomputed for the filter before comparing the characters, so a mismatch
+ * is usually rejected without an {@link String#equals(Object)}. The equality checks come first,
+ * being the cheapest and usually the most selective, followed by the other conditions in order of
+ * cost, so a regular expression is only ever run against messages that passed everything else.
+ * <p>
+ * Compiled filters are equal if the filters had the same properties and conditions, so
+ * subscribers with the same filter can share a single evaluation (see {@link SharedFilters}).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class FilterEvaluator {
+
+    private static final EventFilter.Condition[] NO_CONDITIONS = new EventFilter.Condition[0];
+
+    private final String[] names;
+    private final String[] values;
+    private final int[] valueHashes;
+    private final EventFilter.Condition[] conditions;
+
+    private FilterEvaluator(String[] names, String[] values, EventFilter.Condition[] conditions) {
+        this.names = names;
+        this.values = values;
+        this.valueHashes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            valueHashes[i] = values[i].hashCode();
+        }
+        this.conditions = conditions;
+    }
+
+    /**
+     * Compile a filter.
+     * @param filter The filter, or {@code null}.
+     * @return The compiled filter, or {@code null} if there is nothing to filter on.
+     */
+    static @CheckForNull FilterEvaluator compile(@CheckForNull EventFilter filter) {
+        if (filter == null || (filter.isEmpty() && filter.conditions.isEmpty())) {
+            return null;
+        }
+        // Sorted, so equal filters compile to equal arrays.
+        Map<String, String> properties = new TreeMap<>();
+        for (Map.Entry<Object, Object> entry : filter.entrySet()) {
+            String name = StringInterner.name(entry.getKey().toString());
+            properties.put(name, StringInterner.value(name, entry.getValue().toString()));
+        }
+        List<String> names = new ArrayList<>(properties.keySet());
+        List<String> values = new ArrayList<>(properties.values());
+        List<EventFilter.Condition> conditions = new ArrayList<>(filter.conditions);
+        // Stable, so conditions of equal cost are checked in the order they were added.
+        conditions.sort(Comparator.comparingInt(EventFilter.Condition::cost));
+        return new FilterEvaluator(names.toArray(new String[0]), values.toArray(new String[0]),
+                conditions.isEmpty() ? NO_CONDITIONS : conditions.toArray(NO_CONDITIONS));
+    }
+
+    /**
+     * Does the message match the filter.
+     * @param message The message.
+     * @return {@code true} if the message matches, otherwise {@code false}.
+     */
+    boolean test(@NonNull Message message) {
+        for (int i = 0; i < names.length; i++) {
+            String value = message.getProperty(names[i]);
+            if (value != values[i] && (value == null || value.hashCode() != valueHashes[i] || !value.equals(values[i]))) {
+                return false;
+            }
+        }
+        for (EventFilter.Condition condition : conditions) {
+            if (!condition.test(message.getProperty(condition.name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FilterEvaluator)) {
+            return false;
+        }
+        FilterEvaluator that = (FilterEvaluator) o;
+        return Arrays.equals(names, that.names) && Arrays.equals(values, that.values) && Arrays.equals(conditions, that.conditions);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Arrays.hashCode(names) + Arrays.hashCode(values)) + Arrays.hashCode(conditions);
+    }
+}
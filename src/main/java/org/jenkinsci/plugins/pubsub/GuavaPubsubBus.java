@@ -23,38 +23,151 @@
  */
 package org.jenkinsci.plugins.pubsub;
 
-import com.google.common.eventbus.AsyncEventBus;
-import com.google.common.eventbus.EventBus;
-import com.google.common.eventbus.Subscribe;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.security.ACL;
 import hudson.util.CopyOnWriteMap;
 import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.springframework.security.core.Authentication;
 
 /**
  * Default {@link PubsubBus} implementation.
  * <p>
- * An in-memory implementation based on <a href="https://github.com/google/guava/wiki/EventBusExplained">Google's Guava EventBus</a>.
+ * An in-memory implementation, originally based on <a href="https://github.com/google/guava/wiki/EventBusExplained">Google's Guava EventBus</a>
+ * and still following its delivery model i.e. messages are delivered asynchronously, and each subscriber
+ * handles one message at a time.
  * <p>
  * Use system property <strong><code>org.jenkins.pubsub.GuavaPubsubBus.MAX_THREADS</code></strong> to configure the 
- * thread pool size used by the bus. The default value is 5 threads (falling back to 0 when idle).
+ * (initial) thread pool size used by the bus. The default value is 5 threads.
+ * <p>
+ * Channels are assigned to named thread pools, each with its own thread count, queue bound and keep-alive,
+ * so a flood of messages on one channel does not hold up the delivery of messages on channels in other
+ * pools. By default the {@link Events.JobChannel job channel} has a pool of its own, and all other channels
+ * share the default pool (see {@link ExecutorPool} for the configuration properties). The pools are resized
+ * adaptively, within configured bounds, based on their backlog, task run times and CPU load (see {@link PoolSizer}).
+ * <p>
+ * A message is not delivered by one task per subscriber. Instead, a channel's subscribers are split into chunks
+ * of (at most) <strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.FANOUT_CHUNK_SIZE</code></strong>
+ * subscribers (default 256), which are claimed by up to <code>MAX_THREADS</code> tasks, so the cost of publishing
+ * a message does not grow with the number of subscribers. Subscribers in the same chunk are delivered to one after
+ * the other, so a smaller chunk size spreads the work for a message over more threads sooner.
+ * <p>
+ * Subscribers whose {@link ChannelSubscriber#onMessage(Message) handler time} (moving average) exceeds the
+ * <strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.SLOW_SUBSCRIBER_THRESHOLD_MILLIS</code></strong> system
+ * property (default 100 ms, 0 to disable) are moved to their own single threaded lane, so they don't hold up the
+ * delivery of messages to other subscribers. The lane queue is bounded by the
+ * <strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.SLOW_SUBSCRIBER_QUEUE_SIZE</code></strong> system
+ * property (default 1000), dropping the oldest messages when full. The subscriber is moved back to the shared
+ * threads once its handler time drops below half the threshold, and the messages queued on its lane have been
+ * delivered.
+ * <p>
+ * Messages are not guaranteed to be delivered in the order they were published, unless the
+ * <strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.ORDERED_DELIVERY</code></strong> system property is
+ * set to <code>true</code>. Ordered delivery partitions messages by a key property, so that all messages with the
+ * same key (e.g. all of the events for one job, including its runs and queue items) are delivered in publish
+ * order, while messages with different keys are still delivered in parallel. The key is the value of the first
+ * message property, from the comma separated list in the
+ * <strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.ORDERING_KEYS</code></strong> system property
+ * (default <code>job_name,jenkins_object_name</code>), that is set on the message. Messages that have none of
+ * those properties are not ordered.
+ * <p>
+ * Messages waiting for a bus thread are delivered in {@link MessagePriority priority} order, with lower priorities
+ * still getting a share of the threads. The priority defaults per event (see {@link Events.JobChannel#getPriority()})
+ * and can be set by the producer (see {@link Message#setPriority(MessagePriority)}). Messages that are delivered in
+ * order (see above) keep their publish order, whatever their priority.
+ * <p>
+ * Every published message is stamped with its channel sequence number (see
+ * {@link EventProps.Jenkins#jenkins_channel_seq}). Published messages can also be written to a persistent,
+ * per channel journal, by setting the <strong><code>org.jenkinsci.plugins.pubsub.EventJournal.ENABLED</code></strong>
+ * system property to <code>true</code>, and to a memory-mapped ring file for a local consumer process, by setting
+ * the <strong><code>org.jenkinsci.plugins.pubsub.RingFileSink.FILE</code></strong> system property (see
+ * {@link RingFileSink}).
+ * <p>
+ * Channel names are hierarchical, with segments separated by a dot e.g. <code>jenkins.job</code>, and subscribers
+ * can subscribe to wildcard channel patterns e.g. <code>jenkins.*</code> (see {@link ChannelTrie}). A wildcard
+ * subscriber receives the messages published on every matching channel, including channels created after it
+ * subscribed.
+ * <p>
+ * Once a channel has a subscriber, it keeps a bounded, in-memory history of the most recently published messages,
+ * allowing subscribers to {@link #subscribe2From resume from a cursor}. The history is kept for
+ * <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.RETAIN_SECONDS</code></strong> (default 300) after
+ * the last subscriber leaves, so subscribers that all lost their connection at once (e.g. a proxy restart) can
+ * still resume. Channels listed in the
+ * <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.CHANNELS</code></strong> system property (comma
+ * separated) keep a history from the start, whether they have subscribers or not. Use system properties
+ * <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.MAX_MESSAGES</code></strong> (default 1000, 0 to
+ * disable) and <strong><code>org.jenkinsci.plugins.pubsub.EventHistory.MAX_BYTES</code></strong> (default 1 MB)
+ * to configure the history size, per channel. If the journal is enabled, a subscriber resuming from a cursor
+ * older than the history (e.g. after a restart) gets the missing messages from the journal.
+ * <p>
+ * A message published on a channel where nothing can receive it (no subscribers, no history and no
+ * journal or other sink) is dropped by {@link #publish(Message)} before any enrichment, and counted
+ * as skipped in the bus metrics.
+ * <p>
+ * A {@link ChannelSubscriber} has one subscription on the bus. Subscribing it again (on any channel) ends
+ * its previous subscription.
+ * <p>
+ * Bus metrics (publish rates, publish to delivery latency, executor backlog and subscriber
+ * handler times) are exposed through JMX (see {@link BusMetricsMXBean}) and the Jenkins
+ * Metrics plugin, if installed.
  * 
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
 public final class GuavaPubsubBus extends PubsubBus {
     
-    private final Map<String, EventBus> channels = new CopyOnWriteMap.Hash<>();
+    private static final Logger LOGGER = Logger.getLogger(GuavaPubsubBus.class.getName());
+
+    private static final long SLOW_SUBSCRIBER_THRESHOLD_MILLIS = Long.getLong(GuavaPubsubBus.class.getName() + ".SLOW_SUBSCRIBER_THRESHOLD_MILLIS", 100);
+    private static final long SLOW_SUBSCRIBER_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(SLOW_SUBSCRIBER_THRESHOLD_MILLIS);
+    private static final int SLOW_SUBSCRIBER_QUEUE_SIZE = Integer.getInteger(GuavaPubsubBus.class.getName() + ".SLOW_SUBSCRIBER_QUEUE_SIZE", 1000);
+    // Don't judge a subscriber on its first few messages e.g. class loading etc.
+    private static final int SLOW_SUBSCRIBER_MIN_SAMPLES = 10;
+    private static final double HANDLER_TIME_ALPHA = 0.1;
+    private static final int ORDERED_LANES = 64;
+    private static final int FANOUT_CHUNK_SIZE = Math.max(1, Integer.getInteger(GuavaPubsubBus.class.getName() + ".FANOUT_CHUNK_SIZE", 256));
+    private static final GuavaSubscriber[] NO_SUBSCRIBERS = new GuavaSubscriber[0];
+    // Max wait for the journal writer to catch up, when replaying from the journal.
+    private static final long JOURNAL_REPLAY_WAIT_MILLIS = 5000;
+
+    private final Map<String, ChannelBus> channels = new CopyOnWriteMap.Hash<>();
     private final Map<ChannelSubscriber, GuavaSubscriber> subscribers = new CopyOnWriteMap.Hash<>();
-    private ExecutorService executor;
+    // Wildcard subscriptions. Also the lock for creating channels.
+    private final ChannelTrie<GuavaSubscriber> wildcards = new ChannelTrie<>();
+    // Written under the wildcards lock, so publishing can skip it when there are none.
+    private volatile boolean hasWildcards;
+    private final SharedFilters sharedFilters = new SharedFilters();
+    private final List<MessageSink> sinks = new CopyOnWriteArrayList<>();
+    private EventJournal journal;
+    private RingFileSink ringFile;
     private final int MAX_THREADS = Integer.getInteger(GuavaPubsubBus.class.getName() + ".MAX_THREADS", 5);
+    private volatile Map<String, ExecutorPool> pools;
+    private ExecutorPool defaultPool;
+    private Map<String, String> channelPools;
+    private ScheduledFuture<?> poolSizing;
+    private ScheduledFuture<?> historyExpiry;
+    private final BusMetrics metrics = new BusMetrics(() -> pools);
+    private final boolean ORDERED_DELIVERY = Boolean.getBoolean(GuavaPubsubBus.class.getName() + ".ORDERED_DELIVERY");
+    private final long HISTORY_RETAIN_SECONDS = Math.max(0, Long.getLong(EventHistory.class.getName() + ".RETAIN_SECONDS", 300));
+    private final String[] ORDERING_KEYS = System.getProperty(GuavaPubsubBus.class.getName() + ".ORDERING_KEYS",
+            EventProps.Job.job_name + "," + EventProps.Jenkins.jenkins_object_name).split("\\s*,\\s*");
 
     public GuavaPubsubBus() {
         start();
@@ -63,88 +176,917 @@ public final class GuavaPubsubBus extends PubsubBus {
     @NonNull
     @Override
     protected ChannelPublisher publisher(@NonNull String channelName) {
-        final EventBus channelBus = getChannelBus(channelName);
+        if (ChannelTrie.isPattern(channelName)) {
+            throw new IllegalArgumentException("Cannot publish on wildcard channel '" + channelName + "'.");
+        }
+        final ChannelBus channelBus = getChannelBus(channelName);
         return channelBus::post;
     }
 
+    @Override
+    protected boolean hasSubscribers(@NonNull String channelName) {
+        for (MessageSink sink : sinks) {
+            if (sink.accepts(channelName)) {
+                return true;
+            }
+        }
+        ChannelBus channelBus = channels.get(channelName);
+        if (channelBus != null) {
+            return channelBus.hasReceivers();
+        }
+        if (!hasWildcards) {
+            return false;
+        }
+        // Might match a wildcard subscription. The channel is only created if it's published on.
+        synchronized (wildcards) {
+            return !wildcards.match(channelName).isEmpty();
+        }
+    }
+
+    @Override
+    protected void publishSkipped(@NonNull String channelName) {
+        metrics.publishSkipped();
+    }
+
     @Override
     public void subscribe2(@NonNull String channelName, @NonNull ChannelSubscriber subscriber, @NonNull Authentication authentication, @CheckForNull EventFilter eventFilter) {
-        GuavaSubscriber guavaSubscriber = new GuavaSubscriber(subscriber, authentication, eventFilter);
-        EventBus channelBus = getChannelBus(channelName);
-        channelBus.register(guavaSubscriber);
-        subscribers.put(subscriber, guavaSubscriber);
+        subscribe2(channelName, subscriber, authentication, eventFilter, null);
+    }
+
+    @Override
+    public void subscribe2(@NonNull String channelName, @NonNull ChannelSubscriber subscriber, @NonNull Authentication authentication, @CheckForNull EventFilter eventFilter, @CheckForNull Set<String> eventNames) {
+        SharedFilters.Node filterNode = sharedFilters.acquire(eventFilter);
+        GuavaSubscriber guavaSubscriber = new GuavaSubscriber(channelName, subscriber, authentication, filterNode, eventNames, metrics);
+        try {
+            if (ChannelTrie.isPattern(channelName)) {
+                subscribeWildcard(channelName, guavaSubscriber);
+            } else {
+                getChannelBus(channelName).register(guavaSubscriber);
+            }
+        } catch (RuntimeException | Error e) {
+            // Not subscribed, so nothing else would release it.
+            sharedFilters.release(filterNode);
+            throw e;
+        }
+        replace(subscriber, guavaSubscriber);
+    }
+
+    @Override
+    public void subscribe2From(@NonNull String channelName, @NonNull ChannelSubscriber subscriber, @NonNull Authentication authentication, @CheckForNull EventFilter eventFilter, @NonNull EventCursor cursor) {
+        if (ChannelTrie.isPattern(channelName)) {
+            // Sequence numbers are per channel, so a cursor can't span channels.
+            throw new IllegalArgumentException("Cannot subscribe to wildcard channel '" + channelName + "' from a cursor.");
+        }
+        SharedFilters.Node filterNode = sharedFilters.acquire(eventFilter);
+        GuavaSubscriber guavaSubscriber = new GuavaSubscriber(channelName, subscriber, authentication, filterNode, null, metrics);
+        ChannelBus channelBus;
+        try {
+            channelBus = getChannelBus(channelName);
+            // Buffer live messages from the moment the subscriber is registered, and only then take
+            // the history, so nothing published in between can be missed (duplicates are skipped).
+            guavaSubscriber.startReplay();
+            channelBus.register(guavaSubscriber);
+        } catch (RuntimeException | Error e) {
+            sharedFilters.release(filterNode);
+            throw e;
+        }
+        replace(subscriber, guavaSubscriber);
+        List<Message> history = channelBus.getHistory(cursor);
+        EventJournal journal = this.journal;
+        Runnable replay = () -> guavaSubscriber.replay(journal != null ? fromJournal(journal, channelName, cursor, history) : history);
+        ExecutorPool pool = getPool(channelBus.poolName);
+        try {
+            pool.getExecutor().execute(replay);
+        } catch (RejectedExecutionException e) {
+            // The replay can't be dropped (the subscriber would buffer live messages forever).
+            pool.callerRan();
+            replay.run();
+        }
+    }
+
+    /**
+     * Add the journaled messages from a cursor position to the front of the messages from a channel's
+     * history, if the cursor is older than the history e.g. after a restart or a long disconnection.
+     * @param history The messages from the history, in sequence order.
+     * @return The messages, in sequence order.
+     */
+    private static @NonNull List<Message> fromJournal(@NonNull EventJournal journal, @NonNull String channelName, @NonNull EventCursor cursor, @NonNull List<Message> history) {
+        long from;
+        if (cursor.isTimestamp()) {
+            Long sequence = journal.findSequence(channelName, cursor.getTimestamp());
+            if (sequence == null) {
+                return history;
+            }
+            from = sequence;
+        } else {
+            from = cursor.getSequence() + 1;
+        }
+        Long oldest = (history.isEmpty() ? null : history.get(0).getChannelSequence());
+        long to = (oldest != null ? oldest : Long.MAX_VALUE);
+        if (from >= to) {
+            // The history goes back far enough.
+            return history;
+        }
+        if (oldest == null) {
+            // Nothing in the history, so the journal has to go right up to the live messages.
+            try {
+                journal.awaitWritten(JOURNAL_REPLAY_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<Message> messages = new ArrayList<>();
+        journal.read(channelName, from, message -> {
+            Long sequence = message.getChannelSequence();
+            if (sequence == null || sequence >= to) {
+                return false;
+            }
+            messages.add(message);
+            return true;
+        });
+        messages.addAll(history);
+        return messages;
     }
 
     @Override
     public void unsubscribe(@NonNull String channelName, @NonNull ChannelSubscriber subscriber) {
         GuavaSubscriber guavaSubscriber = subscribers.remove(subscriber);
         if (guavaSubscriber != null) {
-            EventBus channelBus = getChannelBus(channelName);
-            channelBus.register(guavaSubscriber);
-            channelBus.unregister(guavaSubscriber);
+            unsubscribe(guavaSubscriber);
+        }
+    }
+
+    /**
+     * Record a new subscription, ending the subscriber's previous subscription (if any).
+     */
+    private void replace(@NonNull ChannelSubscriber subscriber, @NonNull GuavaSubscriber guavaSubscriber) {
+        GuavaSubscriber previous = subscribers.put(subscriber, guavaSubscriber);
+        if (previous != null) {
+            unsubscribe(previous);
+        }
+    }
+
+    private void unsubscribe(@NonNull GuavaSubscriber guavaSubscriber) {
+        // The channel it subscribed to, whatever channel the caller named.
+        if (ChannelTrie.isPattern(guavaSubscriber.channelName)) {
+            unsubscribeWildcard(guavaSubscriber.channelName, guavaSubscriber);
+        } else {
+            getChannelBus(guavaSubscriber.channelName).unregister(guavaSubscriber);
+        }
+        guavaSubscriber.close();
+        sharedFilters.release(guavaSubscriber.filterNode);
+    }
+
+    private void subscribeWildcard(@NonNull String pattern, @NonNull GuavaSubscriber subscriber) {
+        ChannelTrie<Boolean> matcher = new ChannelTrie<>();
+        matcher.add(pattern, Boolean.TRUE);
+        synchronized (wildcards) {
+            wildcards.add(pattern, subscriber);
+            hasWildcards = true;
+            // Channels created from now on pick it up in getChannelBus.
+            for (ChannelBus channelBus : channels.values()) {
+                if (!matcher.match(channelBus.channelName).isEmpty()) {
+                    channelBus.register(subscriber);
+                }
+            }
+        }
+    }
+
+    private void unsubscribeWildcard(@NonNull String pattern, @NonNull GuavaSubscriber subscriber) {
+        synchronized (wildcards) {
+            wildcards.remove(pattern, subscriber);
+            hasWildcards = !wildcards.isEmpty();
+            for (ChannelBus channelBus : channels.values()) {
+                channelBus.unregister(subscriber);
+            }
         }
     }
 
     @Override
     public void start(){
-        if(executor!=null&&!executor.isShutdown()){
+        if(defaultPool!=null&&!defaultPool.isShutdown()){
             return;
         }
-        // Might want to make the executor configuration configurable.
-        executor = new ThreadPoolExecutor( 0, MAX_THREADS, 10L, TimeUnit.SECONDS,
-                                           new LinkedBlockingQueue<>(),
-                                           r -> new Thread( r, "GuavaPubsubBus.ThreadPoolExecutor" ));
+        Map<String, ExecutorPool> pools = ExecutorPool.create(MAX_THREADS, (ORDERED_DELIVERY ? ORDERED_LANES : 0), PoolSizer.INTERVAL_SECONDS > 0);
+        defaultPool = pools.get(ExecutorPool.DEFAULT);
+        channelPools = ExecutorPool.getChannelAssignments();
+        this.pools = pools;
+        if (PoolSizer.INTERVAL_SECONDS > 0) {
+            poolSizing = Timer.get().scheduleWithFixedDelay(new PoolSizer(pools.values()),
+                    PoolSizer.INTERVAL_SECONDS, PoolSizer.INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        if (HISTORY_RETAIN_SECONDS > 0) {
+            // For channels that are not published to again, which would otherwise keep their history.
+            historyExpiry = Timer.get().scheduleWithFixedDelay(() -> channels.values().forEach(ChannelBus::keepsHistory),
+                    HISTORY_RETAIN_SECONDS, HISTORY_RETAIN_SECONDS, TimeUnit.SECONDS);
+        }
+        journal = EventJournal.create();
+        if (journal != null) {
+            sinks.add(journal);
+        }
+        ringFile = RingFileSink.create();
+        if (ringFile != null) {
+            sinks.add(ringFile);
+        }
+        metrics.register();
     }
 
     @Override
     public void shutdown() {
-        if (!executor.isShutdown()) {
-            executor.shutdown();
+        if (poolSizing != null) {
+            poolSizing.cancel(false);
+            poolSizing = null;
         }
+        if (historyExpiry != null) {
+            historyExpiry.cancel(false);
+            historyExpiry = null;
+        }
+        for (ExecutorPool pool : pools.values()) {
+            if (!pool.isShutdown()) {
+                pool.shutdown();
+            }
+        }
+        subscribers.values().forEach(GuavaSubscriber::close);
+        if (journal != null) {
+            sinks.remove(journal);
+            journal.close();
+            journal = null;
+        }
+        if (ringFile != null) {
+            sinks.remove(ringFile);
+            ringFile.close();
+            ringFile = null;
+        }
+        metrics.unregister();
+    }
+
+    /**
+     * Get the event journal.
+     * @return The event journal, or {@code null} if journaling is not enabled.
+     */
+    @CheckForNull EventJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Make sure a channel keeps an event history, even if it has no subscribers.
+     * @param channelName The channel name.
+     */
+    void enableHistory(@NonNull String channelName) {
+        getChannelBus(channelName).pinHistory();
     }
 
-    private EventBus getChannelBus(String channelName) {
-        EventBus channelBus = channels.get(channelName);
+    /**
+     * Get the messages in a channel's event history from a cursor position.
+     * @param channelName The channel name.
+     * @param cursor The cursor.
+     * @return The messages, in sequence order.
+     */
+    @NonNull List<Message> getHistory(@NonNull String channelName, @NonNull EventCursor cursor) {
+        return getChannelBus(channelName).getHistory(cursor);
+    }
+
+    /**
+     * Add a {@link MessageSink}.
+     * @param sink The sink.
+     */
+    void addSink(@NonNull MessageSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * Remove a {@link MessageSink}.
+     * @param sink The sink.
+     */
+    void removeSink(@NonNull MessageSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Get the bus metrics.
+     * @return The bus metrics.
+     */
+    @NonNull BusMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the shared subscriber filters.
+     * @return The shared subscriber filters.
+     */
+    @NonNull SharedFilters getSharedFilters() {
+        return sharedFilters;
+    }
+
+    private ChannelBus getChannelBus(String channelName) {
+        ChannelBus channelBus = channels.get(channelName);
         if (channelBus == null) {
-            channelBus = new AsyncEventBus(channelName, executor);
-            channels.put(channelName, channelBus);
+            synchronized (wildcards) {
+                channelBus = channels.get(channelName);
+                if (channelBus == null) {
+                    channelBus = new ChannelBus(channelName, metrics.channelMeter(channelName), channelPools.getOrDefault(channelName, ExecutorPool.DEFAULT));
+                    // The wildcard subscribers are matched once, when the channel is created, and then
+                    // sit on its dispatch lists like any other subscriber. So the number of wildcard
+                    // patterns adds nothing to the cost of publishing.
+                    for (GuavaSubscriber subscriber : wildcards.match(channelName)) {
+                        channelBus.register(subscriber);
+                    }
+                    channels.put(channelName, channelBus);
+                }
+            }
         }
         return channelBus;
     }
-    
+
+    private @NonNull ExecutorPool getPool(@NonNull String poolName) {
+        // Looked up on each use (not held by the channel), so a restarted bus uses the new pools.
+        ExecutorPool pool = pools.get(poolName);
+        return (pool != null ? pool : defaultPool);
+    }
+
+    /**
+     * The dispatch lists for a channel.
+     * <p>
+     * Subscribers that did not name the events they are interested in are on the
+     * {@link #allEvents} list. Subscribers that did are only on the list for each of those
+     * events, so a published message only touches the subscribers registered for its event
+     * (plus the "all events" subscribers).
+     * <p>
+     * The lists are copy-on-write arrays. Subscribing is rare compared to publishing, so a
+     * publish just reads the current arrays, without locking or copying.
+     */
+    private class ChannelBus {
+        private final String channelName;
+        private volatile GuavaSubscriber[] allEvents = NO_SUBSCRIBERS;
+        private final Map<String, GuavaSubscriber[]> eventSubscribers = new ConcurrentHashMap<>();
+        private final RateMeter publishMeter;
+        private final String poolName;
+        private final AtomicLong sequence;
+        // Created for the first subscriber, and dropped HISTORY_RETAIN_SECONDS after the last one
+        // leaves (unless pinned), so subscribers can resume from it after all of them disconnected.
+        private volatile EventHistory history;
+        private boolean historyPinned;
+        // When the last subscriber left (System.nanoTime), while the history is retained. Guarded by this.
+        private long idleSince;
+        private boolean idle;
+
+        private ChannelBus(@NonNull String channelName, @NonNull RateMeter publishMeter, @NonNull String poolName) {
+            this.channelName = channelName;
+            this.publishMeter = publishMeter;
+            this.poolName = poolName;
+            // Carry on from where the journal (if any) left off, so sequence numbers are not reused.
+            this.sequence = new AtomicLong(journal != null ? journal.getLastSequence(channelName) : 0);
+            if (EventHistory.CHANNELS.contains(channelName)) {
+                pinHistory();
+            }
+        }
+
+        private void post(@NonNull Message message) {
+            message.publishNanoTime = System.nanoTime();
+            metrics.published(publishMeter);
+
+            if (message.getChannelName() == null) {
+                // Published directly on the channel, rather than through publish(Message).
+                message.setChannelName(channelName);
+            }
+            EventHistory history = this.history;
+            if (sinks.isEmpty() && history == null) {
+                message.set(EventProps.Jenkins.jenkins_channel_seq, Long.toString(sequence.incrementAndGet()));
+            } else {
+                // The history and sinks see the messages in sequence order.
+                synchronized (this) {
+                    message.set(EventProps.Jenkins.jenkins_channel_seq, Long.toString(sequence.incrementAndGet()));
+                    if (history != null) {
+                        history.add(message);
+                    }
+                    for (MessageSink sink : sinks) {
+                        sink.onPublish(message);
+                    }
+                }
+            }
+
+            GuavaSubscriber[] eventList = NO_SUBSCRIBERS;
+            String eventName = message.getEventName();
+            if (eventName != null) {
+                eventList = eventSubscribers.getOrDefault(eventName, NO_SUBSCRIBERS);
+            }
+            Fanout fanout = new Fanout(channelName, message, allEvents, eventList, sharedFilters.results(message));
+            if (fanout.isEmpty()) {
+                return;
+            }
+
+            ExecutorPool pool = getPool(poolName);
+            KeyedExecutor orderedExecutor = pool.getOrderedExecutor();
+            if (orderedExecutor != null) {
+                String key = getOrderingKey(message);
+                if (key != null) {
+                    // The keyed task must not complete until the message has been handed to
+                    // all subscribers, so the next message for the key can't overtake it.
+                    try {
+                        orderedExecutor.execute(key, () -> fanout.runAndWait(pool));
+                    } catch (RejectedExecutionException e) {
+                        // The pool is shut down. A full pool runs the lane on this thread instead.
+                    }
+                    return;
+                }
+            }
+            fanout.fork(pool, message.getPriority());
+        }
+
+        private synchronized void register(@NonNull GuavaSubscriber subscriber) {
+            // A history retained for longer than that is no use, as it has a gap.
+            keepsHistory();
+            idle = false;
+            enableHistory();
+            if (subscriber.eventNames == null) {
+                allEvents = add(allEvents, subscriber);
+            } else {
+                for (String eventName : subscriber.eventNames) {
+                    eventSubscribers.put(eventName, add(eventSubscribers.getOrDefault(eventName, NO_SUBSCRIBERS), subscriber));
+                }
+            }
+        }
+
+        private synchronized void unregister(@NonNull GuavaSubscriber subscriber) {
+            if (subscriber.eventNames == null) {
+                allEvents = remove(allEvents, subscriber);
+            } else {
+                for (String eventName : subscriber.eventNames) {
+                    GuavaSubscriber[] eventList = eventSubscribers.get(eventName);
+                    if (eventList != null) {
+                        eventList = remove(eventList, subscriber);
+                        if (eventList.length == 0) {
+                            eventSubscribers.remove(eventName);
+                        } else {
+                            eventSubscribers.put(eventName, eventList);
+                        }
+                    }
+                }
+            }
+            if (!historyPinned && allEvents.length == 0 && eventSubscribers.isEmpty()) {
+                // Retain the history for a while, for subscribers that come back.
+                idle = true;
+                idleSince = System.nanoTime();
+                keepsHistory();
+            }
+        }
+
+        /**
+         * Would a message published on the channel go anywhere i.e. to a subscriber, or into
+         * the channel's history (for resuming subscribers).
+         */
+        private boolean hasReceivers() {
+            return allEvents.length > 0 || !eventSubscribers.isEmpty() || (history != null && keepsHistory());
+        }
+
+        /**
+         * Does the channel (still) keep a history, dropping it if it has been retained for
+         * long enough since the last subscriber left.
+         */
+        private synchronized boolean keepsHistory() {
+            if (idle && System.nanoTime() - idleSince >= TimeUnit.SECONDS.toNanos(HISTORY_RETAIN_SECONDS)) {
+                idle = false;
+                history = null;
+            }
+            return history != null;
+        }
+
+        private synchronized void enableHistory() {
+            if (history == null && EventHistory.MAX_MESSAGES > 0) {
+                history = new EventHistory(EventHistory.MAX_MESSAGES, EventHistory.MAX_BYTES);
+            }
+        }
+
+        private synchronized void pinHistory() {
+            historyPinned = true;
+            idle = false;
+            enableHistory();
+        }
+
+        private @NonNull List<Message> getHistory(@NonNull EventCursor cursor) {
+            EventHistory history = this.history;
+            return (history != null ? history.from(cursor) : List.of());
+        }
+
+        private GuavaSubscriber[] add(GuavaSubscriber[] list, GuavaSubscriber subscriber) {
+            for (GuavaSubscriber registered : list) {
+                if (registered == subscriber) {
+                    return list;
+                }
+            }
+            GuavaSubscriber[] newList = Arrays.copyOf(list, list.length + 1);
+            newList[list.length] = subscriber;
+            return newList;
+        }
+
+        private GuavaSubscriber[] remove(GuavaSubscriber[] list, GuavaSubscriber subscriber) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i] == subscriber) {
+                    GuavaSubscriber[] newList = new GuavaSubscriber[list.length - 1];
+                    System.arraycopy(list, 0, newList, 0, i);
+                    System.arraycopy(list, i + 1, newList, i, list.length - i - 1);
+                    return newList;
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Delivery of one message to the subscribers on a channel's dispatch lists.
+     * <p>
+     * Rather than one executor task per subscriber, the subscribers are split into chunks of
+     * {@link #FANOUT_CHUNK_SIZE}. Up to "parallelism" tasks claim chunks from a shared cursor
+     * until there are none left, so a task that gets a thread early (or has fast subscribers)
+     * simply takes more of the work. The number of tasks per message is therefore bounded by
+     * the number of bus threads, not by the number of subscribers.
+     */
+    private static final class Fanout implements ExecutorPool.DeliveryTask {
+        private final String channelName;
+        private final Message message;
+        private final GuavaSubscriber[] allEvents;
+        private final GuavaSubscriber[] eventList;
+        private final SharedFilters.Results filterResults;
+        private final int size;
+        private final int chunks;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private final AtomicInteger completedChunks = new AtomicInteger();
+        // Forked tasks not shed by the pool. The delivery is only dropped if they all are.
+        private final AtomicInteger forks = new AtomicInteger();
+
+        private Fanout(@NonNull String channelName, @NonNull Message message, @NonNull GuavaSubscriber[] allEvents, @NonNull GuavaSubscriber[] eventList, @NonNull SharedFilters.Results filterResults) {
+            this.channelName = channelName;
+            this.message = message;
+            this.allEvents = allEvents;
+            this.eventList = eventList;
+            this.filterResults = filterResults;
+            this.size = allEvents.length + eventList.length;
+            this.chunks = (size + FANOUT_CHUNK_SIZE - 1) / FANOUT_CHUNK_SIZE;
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Deliver the message asynchronously, on up to one task per pool thread.
+         */
+        private void fork(@NonNull ExecutorPool pool, @NonNull MessagePriority priority) {
+            int tasks = Math.min(chunks, pool.getThreads());
+            // All counted up front, so shedding the first doesn't look like a drop while more are to come.
+            forks.set(tasks);
+            for (int i = 0; i < tasks; i++) {
+                try {
+                    pool.execute(priority, this);
+                } catch (RejectedExecutionException e) {
+                    // Any tasks already submitted claim the remaining chunks.
+                    int unsubmitted = tasks - i - 1;
+                    if (unsubmitted > 0 && forks.addAndGet(-unsubmitted) == 0 && !pool.isShutdown()) {
+                        pool.dropped();
+                    }
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean shed() {
+            // A task that ran (or will run) delivers to every chunk, so it's only dropped if none do.
+            return forks.decrementAndGet() == 0;
+        }
+
+        /**
+         * Deliver the message on the calling thread, helped by up to one pool task per other
+         * pool thread, and wait for the delivery to complete.
+         */
+        private void runAndWait(@NonNull ExecutorPool pool) {
+            int helpers = Math.min(chunks, Math.max(1, pool.getThreads())) - 1;
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    pool.getExecutor().execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The calling thread will do the work instead.
+                    pool.callerRan();
+                    break;
+                }
+            }
+            run();
+            // Wait for chunks claimed by the helpers. They are already running, so this is short.
+            synchronized (this) {
+                while (completedChunks.get() < chunks) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int chunk;
+            while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                try {
+                    int end = Math.min(size, (chunk + 1) * FANOUT_CHUNK_SIZE);
+                    for (int i = chunk * FANOUT_CHUNK_SIZE; i < end; i++) {
+                        GuavaSubscriber subscriber = (i < allEvents.length ? allEvents[i] : eventList[i - allEvents.length]);
+                        try {
+                            // Each distinct filter is evaluated once per message, however many subscribers share it.
+                            if (filterResults.test(subscriber.filterNode)) {
+                                subscriber.onMessage(message);
+                            }
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.SEVERE, "Exception thrown by subscriber " + subscriber.subscriber.getClass().getName()
+                                    + " when delivering message on channel '" + channelName + "'.", e);
+                        }
+                    }
+                } finally {
+                    // Even if a subscriber threw an Error, or runAndWait would wait forever.
+                    if (completedChunks.incrementAndGet() == chunks) {
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private @CheckForNull String getOrderingKey(@NonNull Message message) {
+        for (String orderingKey : ORDERING_KEYS) {
+            String key = message.getProperty(orderingKey);
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
     private static class GuavaSubscriber {
+        // The channel name, or wildcard pattern, subscribed to.
+        private final String channelName;
         private ChannelSubscriber subscriber;
         private Authentication authentication;
-        private final EventFilter eventFilter;
+        private final SharedFilters.Node filterNode;
+        private final Set<String> eventNames;
+        private final BusMetrics metrics;
+        private final BusMetrics.HandlerStats handlerStats;
+        // Handler time moving average, used to detect slow subscribers.
+        private double handlerTimeAverage;
+        private long handledCount;
+        // The subscriber's own lane while it is isolated as a slow subscriber. Set and
+        // handed back under this, but close() clears it without waiting for the lock.
+        private volatile ThreadPoolExecutor isolatedLane;
+        // Is a Handover queued on the isolated lane. Guarded by this.
+        private boolean handoverPending;
+        // Live messages received while replaying history. Guarded by this.
+        private List<Message> replayBuffer;
+        private volatile boolean closed;
 
-        public GuavaSubscriber(@NonNull ChannelSubscriber subscriber, Authentication authentication, EventFilter eventFilter) {
+        public GuavaSubscriber(@NonNull String channelName, @NonNull ChannelSubscriber subscriber, Authentication authentication, SharedFilters.Node filterNode, Set<String> eventNames, @NonNull BusMetrics metrics) {
+            this.channelName = channelName;
             this.subscriber = subscriber;
             if (authentication != null) {
                 this.authentication = authentication;
             } else {
                 this.authentication = Jenkins.ANONYMOUS2;
             }
-            this.eventFilter = eventFilter;
+            this.filterNode = filterNode;
+            if (eventNames != null && !eventNames.isEmpty()) {
+                this.eventNames = Set.copyOf(eventNames);
+            } else {
+                this.eventNames = null;
+            }
+            this.metrics = metrics;
+            this.handlerStats = metrics.handlerStats(subscriber.getClass());
         }
 
-        @Subscribe
-        public void onMessage(@NonNull final Message message) {
-            if (eventFilter != null && !message.containsAll(eventFilter)) {
-                // Don't deliver the message.
+        // One message at a time per subscriber, as with the handlers of a Guava EventBus.
+        private synchronized void onMessage(@NonNull final Message message) {
+            if (replayBuffer != null) {
+                replayBuffer.add(message);
                 return;
             }
+            handle(message);
+        }
+
+        private synchronized void startReplay() {
+            replayBuffer = new ArrayList<>();
+        }
+
+        /**
+         * Deliver messages from the channel history, followed by the live messages buffered
+         * while doing so, and then switch to live delivery.
+         */
+        private void replay(@NonNull List<Message> history) {
+            // The history (and the journal before it) holds consecutive sequence numbers, so a live message
+            // is a duplicate if its sequence number is in the replayed range. Live messages are not delivered in order, so
+            // they can't be checked against the last sequence number seen.
+            long firstReplayed = Long.MAX_VALUE;
+            long lastReplayed = Long.MIN_VALUE;
+            for (Message message : history) {
+                Long sequence = message.getChannelSequence();
+                if (sequence != null) {
+                    firstReplayed = Math.min(firstReplayed, sequence);
+                    lastReplayed = Math.max(lastReplayed, sequence);
+                }
+            }
+            List<Message> messages = history;
+            boolean live = false;
+            while (!closed) {
+                for (Message message : messages) {
+                    if (live) {
+                        Long sequence = message.getChannelSequence();
+                        if (sequence != null && sequence >= firstReplayed && sequence <= lastReplayed) {
+                            // Both in the history and received live.
+                            continue;
+                        }
+                    }
+                    if (filterNode != null && !filterNode.test(message)) {
+                        continue;
+                    }
+                    try {
+                        handle(message);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Exception thrown by subscriber " + subscriber.getClass().getName() + " when replaying message history.", e);
+                    }
+                }
+                synchronized (this) {
+                    if (replayBuffer.isEmpty()) {
+                        replayBuffer = null;
+                        return;
+                    }
+                    messages = replayBuffer;
+                    replayBuffer = new ArrayList<>();
+                }
+                live = true;
+            }
+        }
+
+        // The message has already passed the subscriber's filter.
+        private void handle(@NonNull final Message message) {
             if (message instanceof AccessControlledMessage) {
                 if (authentication != null) {
                     final AccessControlledMessage accMessage = (AccessControlledMessage) message;
                     try (var ignored = ACL.as2(authentication)) {
                         if (accMessage.hasPermission(accMessage.getRequiredPermission())) {
-                            subscriber.onMessage(message.clone());
+                            dispatch(message, true);
                         }
                     }
                 }
             } else {
+                dispatch(message, false);
+            }
+        }
+
+        private void dispatch(@NonNull Message message, boolean asAuthentication) {
+            if (isolatedLane != null) {
+                // The lane is only shut down under the same lock, so a message is either queued
+                // on it ahead of the Handover, or delivered directly after it.
+                synchronized (this) {
+                    ThreadPoolExecutor lane = isolatedLane;
+                    if (lane != null) {
+                        try {
+                            lane.execute(() -> {
+                                if (asAuthentication) {
+                                    try (var ignored = ACL.as2(authentication)) {
+                                        deliver(message);
+                                    }
+                                } else {
+                                    deliver(message);
+                                }
+                            });
+                        } catch (RejectedExecutionException e) {
+                            // Closed i.e. unsubscribed or the bus was shut down, so drop it.
+                        }
+                        return;
+                    }
+                }
+            }
+            deliver(message);
+        }
+
+        private void deliver(@NonNull Message message) {
+            if (closed) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
                 subscriber.onMessage(message.clone());
+            } finally {
+                long end = System.nanoTime();
+                metrics.delivered(message, start, end, handlerStats);
+                if (SLOW_SUBSCRIBER_THRESHOLD_NANOS > 0) {
+                    checkHandlerTime(end - start);
+                }
+            }
+        }
+
+        private void checkHandlerTime(long handlerNanos) {
+            boolean isolated = (isolatedLane != null);
+            synchronized (this) {
+                handledCount++;
+                if (handledCount == 1) {
+                    handlerTimeAverage = handlerNanos;
+                } else {
+                    handlerTimeAverage += HANDLER_TIME_ALPHA * (handlerNanos - handlerTimeAverage);
+                }
+                if (!isolated && handledCount >= SLOW_SUBSCRIBER_MIN_SAMPLES && handlerTimeAverage > SLOW_SUBSCRIBER_THRESHOLD_NANOS) {
+                    isolate();
+                } else if (isolated && handlerTimeAverage < SLOW_SUBSCRIBER_THRESHOLD_NANOS / 2.0) {
+                    recover();
+                }
+            }
+        }
+
+        private synchronized void isolate() {
+            if (isolatedLane != null) {
+                return;
+            }
+            String subscriberType = subscriber.getClass().getName();
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(SLOW_SUBSCRIBER_QUEUE_SIZE),
+                    r -> new Thread(r, "GuavaPubsubBus.SlowSubscriber[" + subscriberType + "]"),
+                    (r, pool) -> {
+                        // Lane is full. Drop the oldest message so the lane keeps up with the newest.
+                        if (!pool.isShutdown()) {
+                            Runnable dropped = pool.getQueue().poll();
+                            if (dropped instanceof Handover) {
+                                // Called under the subscriber lock (see dispatch). Try again on the next recover.
+                                handoverPending = false;
+                            } else {
+                                metrics.isolatedMessageDropped();
+                            }
+                            pool.execute(r);
+                        }
+                    });
+            lane.allowCoreThreadTimeOut(true);
+            isolatedLane = lane;
+            handoverPending = false;
+            metrics.subscriberIsolated();
+            LOGGER.log(Level.WARNING, String.format("Moving slow subscriber %s to its own lane. Handler time: %.1f ms moving average, %.1f ms mean over %d messages (threshold %d ms).",
+                    subscriberType, toMillis(handlerTimeAverage), toMillis(handlerStats.getMean()), handledCount, SLOW_SUBSCRIBER_THRESHOLD_MILLIS));
+        }
+
+        private synchronized void recover() {
+            ThreadPoolExecutor lane = isolatedLane;
+            if (lane == null || handoverPending) {
+                return;
             }
+            // Messages keep going through the lane until the ones already queued on it have been
+            // delivered. Otherwise the shared threads could deliver to the subscriber at the same
+            // time as the lane, and overtake the messages still on it.
+            handoverPending = true;
+            lane.execute(new Handover(lane));
+        }
+
+        /**
+         * Moves a recovered subscriber back to the shared threads, once its lane is empty.
+         * Runs on the lane, so nothing else is being delivered on it.
+         */
+        private final class Handover implements Runnable {
+            private final ThreadPoolExecutor lane;
+
+            private Handover(@NonNull ThreadPoolExecutor lane) {
+                this.lane = lane;
+            }
+
+            @Override
+            public void run() {
+                synchronized (GuavaSubscriber.this) {
+                    if (isolatedLane != lane) {
+                        // Closed.
+                        return;
+                    }
+                    if (!lane.getQueue().isEmpty()) {
+                        // More messages were queued behind us. Go again after them.
+                        lane.execute(this);
+                        return;
+                    }
+                    isolatedLane = null;
+                    handoverPending = false;
+                    lane.shutdown();
+                    metrics.subscriberRecovered();
+                    LOGGER.log(Level.INFO, String.format("Slow subscriber %s recovered. Moving it back to the shared bus threads. Handler time: %.1f ms moving average.",
+                            subscriber.getClass().getName(), toMillis(handlerTimeAverage)));
+                }
+            }
+        }
+
+        private void close() {
+            closed = true;
+            ThreadPoolExecutor lane = isolatedLane;
+            if (lane != null) {
+                isolatedLane = null;
+                lane.shutdown();
+                metrics.subscriberRecovered();
+            }
+        }
+
+        private static double toMillis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
         }
     }
 }
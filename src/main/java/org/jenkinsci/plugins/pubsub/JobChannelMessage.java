@@ -43,7 +43,10 @@ public abstract class JobChannelMessage<T extends JobChannelMessage> extends Acc
 
     private static final Logger LOGGER = Logger.getLogger(JobChannelMessage.class.getName());
 
-    transient Item jobChannelItem;
+    // Looked up lazily, and shared by the bus threads delivering the message, so published through
+    // volatile fields rather than locking. The item is always written before (and read after) the
+    // lookup complete flag, so a thread that sees the flag set also sees the item.
+    transient volatile Item jobChannelItem;
 
     /**
      * Create a Hob message instance.
@@ -71,7 +74,7 @@ public abstract class JobChannelMessage<T extends JobChannelMessage> extends Acc
         return get(EventProps.Job.job_name);
     }
 
-    private transient boolean jobLookupComplete = false;
+    private transient volatile boolean jobLookupComplete = false;
 
     /**
      * Get the Jenkins {@link Item} associated with this message.
@@ -79,21 +82,27 @@ public abstract class JobChannelMessage<T extends JobChannelMessage> extends Acc
      * or {code null} if the message is not associated with a
      * Jenkins {@link Item}.
      */
-    public synchronized @CheckForNull Item getJobChannelItem() {
-        if (jobLookupComplete || jobChannelItem != null) {
+    public @CheckForNull Item getJobChannelItem() {
+        Item item = jobChannelItem;
+        if (item != null) {
+            return item;
+        }
+        if (jobLookupComplete) {
             return jobChannelItem;
         }
-        
+
+        // Threads racing to get here all look up the same item, which is harmless.
         try {
             String jobName = get(EventProps.Job.job_name);
             if (jobName != null) {
                 Jenkins jenkins = Jenkins.get();
-                jobChannelItem = jenkins.getItemByFullName(jobName);
+                item = jenkins.getItemByFullName(jobName);
+                jobChannelItem = item;
             }
         } finally {
             jobLookupComplete = true;
         }
-        return jobChannelItem;
+        return item;
     }
 
     /**
@@ -104,18 +113,36 @@ public abstract class JobChannelMessage<T extends JobChannelMessage> extends Acc
      * @deprecated Use #getJobChannelItem.
      */
     @Deprecated
-    public synchronized @CheckForNull ParameterizedJobMixIn.ParameterizedJob getJob() {
+    public @CheckForNull ParameterizedJobMixIn.ParameterizedJob getJob() {
         LOGGER.warning(String.format("Unexpected call to deprecated method: %s.getJob(). Switch to using getJobChannelItem().", JobChannelMessage.class.getName()));
-        if (jobChannelItem == null) {
-            return null;
-        }
-        if (jobChannelItem instanceof ParameterizedJobMixIn.ParameterizedJob) {
-            return (ParameterizedJobMixIn.ParameterizedJob) jobChannelItem;
+        Item item = jobChannelItem;
+        if (item instanceof ParameterizedJobMixIn.ParameterizedJob) {
+            return (ParameterizedJobMixIn.ParameterizedJob) item;
         }
         return null;
     }
 
-    private synchronized void setJobChannelItem(@NonNull Item jobChannelItem) {
+    /**
+     * Copy the domain model object already resolved for this message to a clone of it,
+     * so the clone does not have to look it up again.
+     * @param clone The clone.
+     */
+    void copyResolvedTo(@NonNull JobChannelMessage clone) {
+        boolean lookupComplete = jobLookupComplete;
+        clone.jobChannelItem = jobChannelItem;
+        clone.jobLookupComplete = lookupComplete;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void forgetResolved() {
+        jobLookupComplete = false;
+        jobChannelItem = null;
+    }
+
+    private void setJobChannelItem(@NonNull Item jobChannelItem) {
         this.jobChannelItem = jobChannelItem;
         super.setChannelName(Events.JobChannel.NAME);
         set(EventProps.Job.job_name, jobChannelItem.getFullName());
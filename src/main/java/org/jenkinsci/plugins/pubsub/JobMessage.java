@@ -46,8 +46,9 @@ public final class JobMessage extends JobChannelMessage<JobMessage> {
      */
     @Override
     public Message clone() {
-        Message clone = new JobMessage();
+        JobMessage clone = new JobMessage();
         clone.putAll(this);
+        copyResolvedTo(clone);
         return clone;
     }
 }
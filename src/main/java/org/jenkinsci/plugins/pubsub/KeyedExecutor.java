@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks in submission order per key, while tasks for different keys run in parallel.
+ * <p>
+ * Keys are hashed onto a fixed number of serial lanes, each of which runs its tasks one at
+ * a time, in order, on the shared {@link Executor}. A lane only occupies an executor thread
+ * while it has tasks queued, so idle keys cost nothing. Different keys can share a lane, in
+ * which case they are (unnecessarily, but harmlessly) ordered relative to each other too.
+ * <p>
+ * If the executor rejects a lane (its queue is full), the lane runs on the thread that scheduled
+ * it instead, so its tasks are never left waiting for another task on the same lane.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class KeyedExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(KeyedExecutor.class.getName());
+
+    // Max tasks run by a lane before it yields its executor thread to other lanes.
+    private static final int LANE_BATCH_SIZE = 64;
+
+    private final Executor executor;
+    private final Runnable callerRun;
+    private final Lane[] lanes;
+
+    KeyedExecutor(@NonNull Executor executor, int laneCount, @NonNull Runnable callerRun) {
+        this.executor = executor;
+        this.callerRun = callerRun;
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Run a task after all of the previously submitted tasks for the same key.
+     * @param key The ordering key.
+     * @param task The task.
+     * @throws RejectedExecutionException The executor is shut down.
+     */
+    void execute(@NonNull String key, @NonNull Runnable task) {
+        lanes[Math.floorMod(spread(key.hashCode()), lanes.length)].execute(task);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private final class Lane implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            while (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    if (executor instanceof ExecutorService && ((ExecutorService) executor).isShutdown()) {
+                        scheduled.set(false);
+                        throw e;
+                    }
+                    // Saturated. Run the lane here rather than leave its tasks until the lane is next
+                    // scheduled, which may be never. Loops (rather than recursing) while tasks remain.
+                    callerRun.run();
+                    runBatch();
+                    if (tasks.isEmpty()) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                runBatch();
+            } finally {
+                // Pick up tasks added after the last poll (or left over from the batch).
+                if (!tasks.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private void runBatch() {
+            try {
+                for (int i = 0; i < LANE_BATCH_SIZE; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Unexpected exception running ordered task.", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+        }
+    }
+}
@@ -40,6 +40,9 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@link PubsubBus} message instance.
@@ -70,28 +73,71 @@ import java.util.UUID;
  * <p>
  * <strong>NOTE</strong> that the "jenkins" namespace prefix of reserved e.g. "jenkins_channel".
  *
+ * <h2>Thread safety</h2>
+ * A published message is read concurrently by the bus threads delivering it (filtering,
+ * access checks and cloning for each subscriber), so reads must not lock the message.
+ * {@link Properties} reads (including iterating the properties e.g. to copy them) don't lock,
+ * and the Jenkins domain model objects resolved lazily by subtypes are published through
+ * volatile fields rather than synchronized methods. Don't modify a message once it is published.
+ *
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
 public abstract class Message<T extends Message> extends Properties {
 
-    private static final Jenkins jenkins = Jenkins.getInstanceOrNull();
-    private static final String instanceIdentity;
-    private static final String instanceRootUrl;
-
-    static {
-        if (jenkins != null) {
-            // As implemented in PageDecoratorImpl.java in the instance-identity-module.
-            // Would have been nice if there was a utility/toString() for this.
-            InstanceIdentity identity = InstanceIdentity.get();
-            RSAPublicKey key = identity.getPublic();
-            instanceIdentity = new String(Base64.encodeBase64(key.getEncoded()), StandardCharsets.UTF_8);
-            instanceRootUrl = jenkins.getRootUrl();
-        } else {
-            instanceIdentity = null;
-            instanceRootUrl = null;
+    private static final Logger LOGGER = Logger.getLogger(Message.class.getName());
+
+    /**
+     * The Jenkins root URL, looked up when the first message is created (not when the
+     * class is loaded).
+     */
+    private static final class RootUrl {
+        private static final String VALUE;
+
+        static {
+            Jenkins jenkins = Jenkins.getInstanceOrNull();
+            VALUE = (jenkins != null ? jenkins.getRootUrl() : null);
         }
     }
 
+    /**
+     * The encoded instance identity, only needed (and so only encoded) once something
+     * calls {@link #setJenkinsInstanceId()}.
+     */
+    private static final class Identity {
+        private static final String VALUE;
+
+        static {
+            if (Jenkins.getInstanceOrNull() != null) {
+                long start = System.nanoTime();
+                // As implemented in PageDecoratorImpl.java in the instance-identity-module.
+                // Would have been nice if there was a utility/toString() for this.
+                InstanceIdentity identity = InstanceIdentity.get();
+                RSAPublicKey key = identity.getPublic();
+                VALUE = new String(Base64.encodeBase64(key.getEncoded()), StandardCharsets.UTF_8);
+                LOGGER.log(Level.FINE, "Encoded the instance identity in {0}ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } else {
+                VALUE = null;
+            }
+        }
+    }
+
+    /**
+     * {@link System#nanoTime()} at which the message was published on the bus,
+     * used for measuring the time it takes to deliver it.
+     */
+    transient long publishNanoTime;
+
+    /**
+     * Was the message received from a peer controller, and republished on this bus
+     * (see {@link EventBridge}). Bridged messages are not forwarded again.
+     */
+    transient boolean bridged;
+
+    /**
+     * The delivery priority set by the producer, if any.
+     */
+    private transient MessagePriority priority;
+
     /**
      * Create a plain message instance, with default properties set.
      */
@@ -109,8 +155,9 @@ public abstract class Message<T extends Message> extends Properties {
         }
         
         // Some properties to identify the origin of the event.
-        if (instanceRootUrl != null) {
-            this.set(EventProps.Jenkins.jenkins_instance_url, instanceRootUrl);
+        String rootUrl = RootUrl.VALUE;
+        if (rootUrl != null) {
+            this.set(EventProps.Jenkins.jenkins_instance_url, rootUrl);
         }
         
         // Add an event message timestamp.
@@ -167,7 +214,7 @@ public abstract class Message<T extends Message> extends Properties {
      */
     public T set(String name, String value) {
         if (name != null && value != null) {
-            setProperty(name, value);
+            setProperty(StringInterner.name(name), StringInterner.value(name, value));
         }
         return (T) this;
     }
@@ -218,6 +265,20 @@ public abstract class Message<T extends Message> extends Properties {
         return (T) this;
     }
     
+    /**
+     * Get the channel sequence number of the message.
+     * @return The channel sequence number of the message, or {@code null} if the message
+     * has not been published.
+     * @see EventProps.Jenkins#jenkins_channel_seq
+     */
+    public Long getChannelSequence() {
+        String sequence = get(EventProps.Jenkins.jenkins_channel_seq);
+        if (sequence == null) {
+            return null;
+        }
+        return Long.valueOf(sequence);
+    }
+
     /**
      * Get the event name for the message.
      * @return The event name for the message, or {@code null} if none set.
@@ -244,6 +305,30 @@ public abstract class Message<T extends Message> extends Properties {
         return (T) this;
     }
 
+    /**
+     * Get the message delivery priority.
+     * @return The priority set on the message or, if none was set, the default for the event
+     * (see {@link Events.JobChannel#getPriority()}).
+     */
+    public @NonNull MessagePriority getPriority() {
+        if (priority != null) {
+            return priority;
+        }
+        return MessagePriority.forEvent(getEventName());
+    }
+
+    /**
+     * Set the message delivery priority, overriding the default for the event.
+     * <p>
+     * The priority only affects the order in which waiting messages are delivered
+     * on this bus. It is not sent to remote subscribers.
+     * @param priority The priority.
+     */
+    public T setPriority(@NonNull MessagePriority priority) {
+        this.priority = priority;
+        return (T) this;
+    }
+
     /**
      * Get the Jenkins instance URL of the controller from which the event was published.
      *
@@ -276,6 +361,7 @@ public abstract class Message<T extends Message> extends Properties {
      * Set the Jenkins instance identity of the controller from which the event was published.
      */
     public T setJenkinsInstanceId() {
+        String instanceIdentity = Identity.VALUE;
         if (instanceIdentity != null) {
             this.set(EventProps.Jenkins.jenkins_instance_id, instanceIdentity);
         }
@@ -335,6 +421,14 @@ public abstract class Message<T extends Message> extends Properties {
         return clone;
     }
 
+    /**
+     * Drop any Jenkins domain model objects resolved for (and cached on) this message,
+     * so that holding on to the message does not keep them in memory. They are looked
+     * up again if needed.
+     */
+    void forgetResolved() {
+    }
+
     /**
      * Does this message contain all of the properties supplied in the properties
      * argument.
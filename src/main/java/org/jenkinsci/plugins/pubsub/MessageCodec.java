@@ -0,0 +1,373 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.AccessControlled;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of a {@link Message}, for journaling and cross-process transports.
+ * <p>
+ * Property names and frequent property values (channel names, event names, run statuses etc.)
+ * are encoded as small dictionary ids, numeric values (timestamps, sequence numbers, build ids)
+ * as variable length integers, and all other strings as length-prefixed UTF-8. A typical
+ * {@link RunMessage} encodes to roughly a third of the size of its JSON.
+ * <p>
+ * Layout:
+ * <pre>
+ *     byte    format version
+ *     byte    message type ({@link SimpleMessage} for types the codec doesn't know, or
+ *             {@link RestrictedMessage} for {@link AccessControlledMessage} types it doesn't know)
+ *     varint  property count
+ *     property[count]
+ *         name:   varint 0, followed by a string, or dictionary id + 1
+ *         value:  varint 0, followed by a string,
+ *                 varint 1, followed by a zigzag varint number, or
+ *                 dictionary id + 2
+ *     string: varint byte length, followed by the UTF-8 bytes
+ * </pre>
+ * Decoding a message gives back exactly the same properties i.e. the decoded message has
+ * the same {@link Message#toJSON() JSON} as the original. It does not necessarily give back
+ * the same type, but a message that was access controlled always decodes to a message that
+ * is access controlled too.
+ * <p>
+ * <strong>The dictionaries are part of the format.</strong> Entries can only be appended,
+ * never removed or reordered, otherwise previously encoded messages (e.g. in a journal)
+ * no longer decode correctly.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class MessageCodec {
+
+    static final byte VERSION = 1;
+
+    private static final int LITERAL = 0;
+    private static final int NUMBER = 1;
+
+    private static final byte TYPE_SIMPLE = 0;
+    private static final byte TYPE_JOB = 1;
+    private static final byte TYPE_RUN = 2;
+    private static final byte TYPE_QUEUE_TASK = 3;
+    private static final byte TYPE_RESTRICTED = 4;
+
+    // Append only! See class docs.
+    static final String[] NAMES = {
+            // EventProps.Jenkins
+            "jenkins_org", "jenkins_instance_id", "jenkins_instance_url", "jenkins_channel", "jenkins_event",
+            "jenkins_event_timestamp", "jenkins_event_uuid", "jenkins_object_type", "jenkins_object_name",
+            "jenkins_object_id", "jenkins_object_url", "jenkins_channel_seq",
+            // EventProps.Job
+            "job_name", "job_ismultibranch", "job_multibranch_indexing_status", "job_multibranch_indexing_result",
+            "job_run_queueId", "job_run_status", "job_run_commitId",
+            // EventProps.Item
+            "item_rename_before", "item_rename_after",
+    };
+
+    // Append only! See class docs.
+    static final String[] VALUES = {
+            // Channels
+            Events.JobChannel.NAME,
+            // Events.JobChannel
+            "job_crud_created", "job_crud_deleted", "job_crud_updated", "job_crud_renamed",
+            "job_run_queue_enter", "job_run_queue_buildable", "job_run_queue_left", "job_run_queue_blocked",
+            "job_run_started", "job_run_scm_checkout", "job_run_paused", "job_run_unpaused", "job_run_ended",
+            "job_run_artifact_fingerprinting", "job_run_queue_task_complete",
+            // Run statuses
+            "SUCCESS", "UNSTABLE", "FAILURE", "NOT_BUILT", "ABORTED",
+            // Booleans
+            "true", "false",
+            // Common object types
+            "hudson.model.FreeStyleProject", "hudson.model.FreeStyleBuild",
+            "org.jenkinsci.plugins.workflow.job.WorkflowJob", "org.jenkinsci.plugins.workflow.job.WorkflowRun",
+            "org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject",
+            "hudson.matrix.MatrixProject", "hudson.matrix.MatrixBuild", "hudson.matrix.MatrixConfiguration", "hudson.matrix.MatrixRun",
+    };
+
+    private static final Map<String, Integer> NAME_IDS = index(NAMES);
+    private static final Map<String, Integer> VALUE_IDS = index(VALUES);
+
+    private MessageCodec() {
+    }
+
+    /**
+     * Encode a message.
+     * @param message The message.
+     * @return A buffer holding the encoded message, ready for reading.
+     */
+    static @NonNull ByteBuffer encode(@NonNull Message message) {
+        Encoder encoder = new Encoder(64 + message.size() * 16);
+        encoder.writeByte(VERSION);
+        encoder.writeByte(typeOf(message));
+        // Hashtable iteration, so not expecting any concurrent modification.
+        encoder.writeVarLong(message.size());
+        for (Map.Entry<Object, Object> property : message.entrySet()) {
+            String name = property.getKey().toString();
+            Integer nameId = NAME_IDS.get(name);
+            if (nameId != null) {
+                encoder.writeVarLong(nameId + 1);
+            } else {
+                encoder.writeVarLong(LITERAL);
+                encoder.writeString(name);
+            }
+
+            String value = property.getValue().toString();
+            Integer valueId = VALUE_IDS.get(value);
+            if (valueId != null) {
+                encoder.writeVarLong(valueId + 2);
+            } else if (isCanonicalNumber(value)) {
+                encoder.writeVarLong(NUMBER);
+                long number = Long.parseLong(value);
+                encoder.writeVarLong((number << 1) ^ (number >> 63));
+            } else {
+                encoder.writeVarLong(LITERAL);
+                encoder.writeString(value);
+            }
+        }
+        return encoder.toByteBuffer();
+    }
+
+    /**
+     * Decode a message.
+     * @param buffer The buffer holding the encoded message. Read from its current position.
+     * @return The message.
+     * @throws IllegalArgumentException The buffer does not hold a valid encoded message.
+     */
+    static @NonNull Message decode(@NonNull ByteBuffer buffer) {
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported message encoding version " + version + ".");
+            }
+            Message message = newMessage(buffer.get());
+            long count = readVarLong(buffer);
+            for (long i = 0; i < count; i++) {
+                int nameToken = (int) readVarLong(buffer);
+                String name = (nameToken == LITERAL ? StringInterner.name(readString(buffer)) : lookup(NAMES, nameToken - 1));
+
+                int valueToken = (int) readVarLong(buffer);
+                String value;
+                if (valueToken == LITERAL) {
+                    value = StringInterner.value(name, readString(buffer));
+                } else if (valueToken == NUMBER) {
+                    long zigzag = readVarLong(buffer);
+                    value = Long.toString((zigzag >>> 1) ^ -(zigzag & 1));
+                } else {
+                    value = lookup(VALUES, valueToken - 2);
+                }
+                message.put(name, value);
+            }
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated encoded message.", e);
+        }
+    }
+
+    private static byte typeOf(Message message) {
+        // Exact types only. A subtype may have state the codec knows nothing about.
+        Class<?> type = message.getClass();
+        if (type == RunMessage.class) {
+            return TYPE_RUN;
+        } else if (type == JobMessage.class) {
+            return TYPE_JOB;
+        } else if (type == QueueTaskMessage.class) {
+            return TYPE_QUEUE_TASK;
+        } else if (message instanceof AccessControlledMessage) {
+            // Fail closed. It must not come back as a message that anyone can see.
+            return TYPE_RESTRICTED;
+        }
+        return TYPE_SIMPLE;
+    }
+
+    private static Message newMessage(byte type) {
+        Message message;
+        switch (type) {
+            case TYPE_SIMPLE:
+                return new SimpleMessage(false);
+            case TYPE_JOB:
+                message = new JobMessage();
+                break;
+            case TYPE_RUN:
+                message = new RunMessage();
+                break;
+            case TYPE_QUEUE_TASK:
+                message = new QueueTaskMessage();
+                break;
+            case TYPE_RESTRICTED:
+                message = new RestrictedMessage();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message type " + type + ".");
+        }
+        // Drop the default properties. The encoded message has its own.
+        message.clear();
+        return message;
+    }
+
+    /**
+     * A message that was access controlled, but of a type the codec doesn't know, so its access
+     * control can't be reproduced. It requires {@link Jenkins#ADMINISTER}.
+     */
+    static final class RestrictedMessage extends AccessControlledMessage<RestrictedMessage> {
+
+        private static final long serialVersionUID = -1L;
+
+        @Override
+        protected @NonNull Permission getRequiredPermission() {
+            return Jenkins.ADMINISTER;
+        }
+
+        @Override
+        protected @CheckForNull AccessControlled getAccessControlled() {
+            return Jenkins.getInstanceOrNull();
+        }
+
+        @Override
+        public Message clone() {
+            RestrictedMessage clone = new RestrictedMessage();
+            clone.clear();
+            clone.putAll(this);
+            return clone;
+        }
+    }
+
+    private static String lookup(String[] dictionary, int id) {
+        if (id < 0 || id >= dictionary.length) {
+            throw new IllegalArgumentException("Unknown dictionary id " + id + ".");
+        }
+        return dictionary[id];
+    }
+
+    /**
+     * Is the value a number that will turn back into exactly the same string
+     * e.g. not "007" or "+1".
+     */
+    static boolean isCanonicalNumber(String value) {
+        int length = value.length();
+        int start = (length > 0 && value.charAt(0) == '-' ? 1 : 0);
+        int digits = length - start;
+        // Up to 18 digits always fits in a long.
+        if (digits == 0 || digits > 18) {
+            return false;
+        }
+        if (value.charAt(start) == '0' && (digits > 1 || start == 1)) {
+            // Leading zero, or "-0".
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = (int) readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed string length " + length + ".");
+        }
+        if (buffer.hasArray()) {
+            String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Integer> index(String[] dictionary) {
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < dictionary.length; i++) {
+            if (ids.put(dictionary[i], i) != null) {
+                throw new IllegalStateException("Duplicate dictionary entry " + dictionary[i]);
+            }
+        }
+        return ids;
+    }
+
+    private static final class Encoder {
+        private byte[] bytes;
+        private int size;
+
+        private Encoder(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) b;
+        }
+
+        private void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeString(String string) {
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, size);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link Message} delivery priority.
+ * <p>
+ * When messages are waiting for a bus thread, higher priority messages are delivered first. Lower priority
+ * messages still get a share of the threads (in proportion to the priority weights), so they are never held
+ * back indefinitely by a steady stream of higher priority messages.
+ * <p>
+ * The default priority for each of the {@link Events.JobChannel job channel} events is set on the event
+ * (see {@link Events.JobChannel#getPriority()}). Producers can override it using {@link Message#setPriority(MessagePriority)}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public enum MessagePriority {
+
+    /**
+     * Time-sensitive events e.g. a run starting or ending.
+     */
+    HIGH(8),
+    /**
+     * The default.
+     */
+    NORMAL(3),
+    /**
+     * High volume events that consumers can afford to see late e.g. queue and job update events.
+     */
+    LOW(1);
+
+    final int weight;
+
+    MessagePriority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Get the default priority for an event.
+     * @param eventName The event name.
+     * @return The default priority for the event.
+     */
+    static @NonNull MessagePriority forEvent(@CheckForNull String eventName) {
+        if (eventName == null) {
+            return NORMAL;
+        }
+        return EventDefaults.PRIORITIES.getOrDefault(eventName, NORMAL);
+    }
+
+    // Loaded on first use. The events refer to the priorities, so the priorities can't
+    // refer back to the events while they are being initialized.
+    private static final class EventDefaults {
+        private static final Map<String, MessagePriority> PRIORITIES = new HashMap<>();
+
+        static {
+            for (Events.JobChannel event : Events.JobChannel.values()) {
+                PRIORITIES.put(event.name(), event.getPriority());
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Receives a copy of every message published on the bus, in channel sequence order,
+ * in addition to (and before) delivery to the channel subscribers e.g. for writing
+ * the messages to a journal.
+ * <p>
+ * Sinks are called on the publisher's thread, so they must hand the message off
+ * (e.g. to a queue) rather than doing any real work in {@link #onPublish(Message)}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+interface MessageSink {
+
+    /**
+     * Called for each published message.
+     * @param message The message. Do not modify.
+     */
+    void onPublish(@NonNull Message message);
+
+    /**
+     * Does the sink want the messages published on a channel? Publishing on a channel that no
+     * sink and no subscriber wants is skipped.
+     * @param channelName The channel name.
+     * @return {@code true} if the sink wants the channel's messages. Every channel, by default.
+     */
+    default boolean accepts(@NonNull String channelName) {
+        return true;
+    }
+
+    /**
+     * Close the sink, releasing any resources.
+     */
+    void close();
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive {@link ExecutorPool} sizing.
+ * <p>
+ * Runs every <strong><code>org.jenkinsci.plugins.pubsub.GuavaPubsubBus.POOL_SIZING_INTERVAL_SECONDS</code></strong>
+ * seconds (default 5, 0 to disable and keep each pool at a fixed <code>THREADS</code> size) and resizes each
+ * pool, within its <code>MIN_THREADS</code> and <code>MAX_THREADS</code> bounds, as follows:
+ * <ul>
+ *     <li>If tasks are waiting for a thread and the CPU is not saturated, the pool grows by the number of
+ *     threads needed to drain the backlog within one interval, going by the mean task run time over the last
+ *     interval (at most doubling at a time).</li>
+ *     <li>If tasks are waiting for a thread but the CPU is saturated (90% busy or more), more threads would only
+ *     compete for it, so the pool keeps its size. It doesn't shrink, as the delivery tasks are mostly I/O bound
+ *     and the CPU is likely busy with other work (e.g. builds).</li>
+ *     <li>If no tasks are waiting and less than half of the threads are busy, the pool shrinks by one thread.</li>
+ * </ul>
+ * Each resize is logged, along with the measurements it was based on.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class PoolSizer implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(PoolSizer.class.getName());
+
+    static final long INTERVAL_SECONDS = Long.getLong(GuavaPubsubBus.class.getName() + ".POOL_SIZING_INTERVAL_SECONDS", 5);
+    private static final double CPU_SATURATED = 0.9;
+
+    private final Collection<ExecutorPool> pools;
+    private final long intervalNanos;
+    private final DoubleSupplier cpuLoad;
+    // Task time totals at the previous run, per pool.
+    private final Map<ExecutorPool, long[]> previous = new IdentityHashMap<>();
+
+    PoolSizer(@NonNull Collection<ExecutorPool> pools) {
+        this(pools, TimeUnit.SECONDS.toNanos(INTERVAL_SECONDS), PoolSizer::getSystemCpuLoad);
+    }
+
+    PoolSizer(@NonNull Collection<ExecutorPool> pools, long intervalNanos, @NonNull DoubleSupplier cpuLoad) {
+        this.pools = pools;
+        this.intervalNanos = Math.max(1, intervalNanos);
+        this.cpuLoad = cpuLoad;
+    }
+
+    @Override
+    public synchronized void run() {
+        double cpu = cpuLoad.getAsDouble();
+        for (ExecutorPool pool : pools) {
+            try {
+                adjust(pool, cpu);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Unexpected error sizing bus thread pool '" + pool.getName() + "'.", e);
+            }
+        }
+    }
+
+    private void adjust(@NonNull ExecutorPool pool, double cpu) {
+        long taskNanos = pool.getTaskNanos();
+        long taskCount = pool.getTaskCount();
+        long[] last = previous.put(pool, new long[] {taskNanos, taskCount});
+        long completed = taskCount - last(last, 1);
+        double meanTaskNanos = (completed > 0 ? (double) (taskNanos - last(last, 0)) / completed : 0);
+
+        int size = pool.getThreads();
+        int queued = pool.getExecutor().getQueue().size();
+        int active = pool.getExecutor().getActiveCount();
+        int target = targetSize(size, pool.getMinThreads(), pool.getMaxThreads(), queued, active, meanTaskNanos, cpu, intervalNanos);
+        if (target != size) {
+            target = pool.resize(target);
+            LOGGER.log(Level.INFO, String.format("Resized bus thread pool '%s' from %d to %d threads (%s). Queued tasks: %d, active threads: %d, mean task time: %.1f ms, CPU load: %s.",
+                    pool.getName(), size, target, (target > size ? "backlog" : "idle"),
+                    queued, active, meanTaskNanos / TimeUnit.MILLISECONDS.toNanos(1), (cpu >= 0 ? String.format("%.0f%%", cpu * 100) : "unknown")));
+        }
+    }
+
+    private static long last(long[] last, int index) {
+        return (last != null ? last[index] : 0);
+    }
+
+    /**
+     * Work out the new size for a pool.
+     * @param size The current pool size.
+     * @param min The min pool size.
+     * @param max The max pool size.
+     * @param queued The number of tasks waiting for a thread.
+     * @param active The number of threads running a task.
+     * @param meanTaskNanos The mean task run time over the last interval, or 0 if no task completed.
+     * @param cpuLoad The system CPU load (0 to 1), or a negative value if not known.
+     * @param intervalNanos The sizing interval.
+     * @return The new pool size.
+     */
+    static int targetSize(int size, int min, int max, int queued, int active, double meanTaskNanos, double cpuLoad, long intervalNanos) {
+        int target = size;
+        if (queued > 0) {
+            // If the CPU is saturated, hold the size: never shrink a pool with a backlog.
+            if (cpuLoad < CPU_SATURATED) {
+                // If no task completed (e.g. they are all blocked), the run time is not known, so just add one thread.
+                long needed = (meanTaskNanos > 0 ? (long) Math.ceil(queued * meanTaskNanos / intervalNanos) : 1);
+                target = size + (int) Math.min(Math.max(1, needed), size);
+            }
+        } else if (active < size / 2) {
+            target = size - 1;
+        }
+        return Math.max(min, Math.min(max, target));
+    }
+
+    private static double getSystemCpuLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad();
+        }
+        return -1;
+    }
+}
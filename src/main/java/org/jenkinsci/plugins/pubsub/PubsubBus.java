@@ -30,16 +30,28 @@ import hudson.ExtensionListListener;
 import hudson.ExtensionPoint;
 import hudson.Util;
 import hudson.security.AccessControlled;
+import jenkins.util.Timer;
 import org.springframework.security.core.Authentication;
 import org.jenkinsci.plugins.pubsub.listeners.SyncQueueListener;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Abstract Pub-sub bus.
+ * <p>
+ * The {@link AbstractChannelSubscriber auto subscribers} are registered on the installed bus
+ * in the background. {@link #publish(Message)} never waits for that. The messages published in
+ * the meantime are held back, and published once the auto subscribers are registered. Up to
+ * <strong><code>org.jenkinsci.plugins.pubsub.PubsubBus.EARLY_MESSAGE_LIMIT</code></strong> (default 1000)
+ * messages are held back. Any more are dropped, and counted.
  * 
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
@@ -47,8 +59,18 @@ public abstract class PubsubBus implements ExtensionPoint {
 
     private static final Logger LOGGER = Logger.getLogger(PubsubBus.class.getName());
 
+    private static final int EARLY_MESSAGE_LIMIT = Integer.getInteger(PubsubBus.class.getName() + ".EARLY_MESSAGE_LIMIT", 1000);
+
     private static List<AbstractChannelSubscriber> autoSubscribers = new CopyOnWriteArrayList<>();
 
+    /**
+     * The messages published before the auto subscribers were registered on this bus, to be published
+     * once they are. {@code null} if there's nothing (more) to hold back. Guarded by {@link #earlyMessagesLock}.
+     */
+    private volatile List<Message> earlyMessages;
+    private final Object earlyMessagesLock = new Object();
+    private final LongAdder earlyMessagesDropped = new LongAdder();
+
     static {
         Runtime.getRuntime().addShutdownHook( new Thread(() -> {
                 try {
@@ -69,20 +91,29 @@ public abstract class PubsubBus implements ExtensionPoint {
         static final PubsubBus pubsubBus;
 
         static {
+            long start = System.nanoTime();
             ExtensionList<PubsubBus> installedBusImpls = ExtensionList.lookup(PubsubBus.class);
             if (!installedBusImpls.isEmpty()) {
                 pubsubBus = installedBusImpls.get(0);
             } else {
                 pubsubBus = new GuavaPubsubBus();
             }
+            long startupNanos = System.nanoTime() - start;
+            LOGGER.log(Level.FINE, "Started pub-sub bus {0} in {1}ms.", new Object[] {pubsubBus.getClass().getName(), TimeUnit.NANOSECONDS.toMillis(startupNanos)});
+            if (pubsubBus instanceof GuavaPubsubBus) {
+                ((GuavaPubsubBus) pubsubBus).getMetrics().started(startupNanos);
+            }
 
-            // Register the auto-subscribers.
-            registerAutoChannelSubscribers(pubsubBus);
+            // Register the auto-subscribers in the background. Looking them up instantiates them, which
+            // needn't hold up whichever thread happened to touch the bus first (often Jenkins startup).
+            // Note: not Holder.pubsubBus, which the task can't see until this initializer completes.
+            PubsubBus bus = pubsubBus;
+            bus.registerAutoChannelSubscribers(Timer.get());
             // And listen for new ones being installed e.g. after a plugin is installed.
             ExtensionList.lookup(AbstractChannelSubscriber.class).addListener(new ExtensionListListener() {
                 @Override
                 public void onChange() {
-                    registerAutoChannelSubscribers(pubsubBus);
+                    Timer.get().execute(() -> registerAutoChannelSubscribers(bus));
                 }
             });
         }
@@ -117,6 +148,21 @@ public abstract class PubsubBus implements ExtensionPoint {
             throw new MessageException(String.format("Event name property '%s' not set on the Message instance.", EventProps.Jenkins.jenkins_event));
         }
 
+        // The auto subscribers may not be registered yet.
+        if (earlyMessages != null && holdBack(message)) {
+            return;
+        }
+        publishNow(message, channelName);
+    }
+
+    private void publishNow(@NonNull Message message, @NonNull String channelName) throws MessageException {
+        // Nobody to receive it? Then don't bother with the access controlled object
+        // lookup and the enrichers.
+        if (!hasSubscribers(channelName)) {
+            publishSkipped(channelName);
+            return;
+        }
+
         // Make sure the channel name is set on the message.
         // In case getChannelName is overridden.
         message.setChannelName(channelName);
@@ -144,6 +190,29 @@ public abstract class PubsubBus implements ExtensionPoint {
         publisher(channelName).publish(message);
     }
 
+    /**
+     * Can a message published on the specified channel be received by anything
+     * e.g. a subscriber.
+     * <p>
+     * Checked by {@link #publish(Message)} before doing any work on the message, so it
+     * should be cheap. The default implementation always returns {@code true}.
+     *
+     * @param channelName The channel name.
+     * @return {@code false} if nothing would receive a message published on the channel,
+     * otherwise {@code true}.
+     */
+    protected boolean hasSubscribers(@NonNull String channelName) {
+        return true;
+    }
+
+    /**
+     * Called by {@link #publish(Message)} when a message is not published because
+     * {@link #hasSubscribers(String)} returned {@code false} e.g. for counting.
+     * @param channelName The channel name.
+     */
+    protected void publishSkipped(@NonNull String channelName) {
+    }
+
     /**
      * Get/create a new {@link ChannelPublisher} instance for the specified
      * channel name.
@@ -200,6 +269,83 @@ public abstract class PubsubBus implements ExtensionPoint {
         subscribe(channelName, subscriber, org.acegisecurity.Authentication.fromSpring(authentication), eventFilter);
     }
 
+    /**
+     * Subscribe to a set of events on the specified event channel.
+     * <p>
+     * Only messages whose {@link Message#getEventName() event name} is in the supplied
+     * set are forwarded to the subscriber. Unlike an {@link EventFilter}, which is applied
+     * to every message on the channel, this allows the bus to keep a dispatch list per event
+     * name, so a published message only touches the subscribers registered for its event.
+     * <p>
+     * The default implementation adds the event names to a copy of the {@link EventFilter}:
+     * a single event name as a property, and multiple event names as an
+     * {@link EventFilter#in(String, java.util.Collection) in} condition. The subscriber is
+     * registered as is, so it is {@link #unsubscribe(String, ChannelSubscriber) unsubscribed}
+     * as usual. {@link PubsubBus} implementations should override this method, so that messages
+     * for other events are not filtered per subscriber.
+     *
+     * @param channelName The channel name.
+     * @param subscriber  The subscriber instance that will receive the events.
+     * @param authentication The authentication to which the subscription is associated.
+     * @param eventFilter A message filter, or {@code null} if no filtering is to be applied.
+     *                    This tells the bus to only forward messages that match the properties
+     *                    (names and values) specified in the filter.
+     * @param eventNames The names of the events to subscribe to, or {@code null} (or empty)
+     *                   to subscribe to all events on the channel.
+     */
+    public void subscribe2(@NonNull String channelName,
+                          @NonNull ChannelSubscriber subscriber,
+                          @NonNull Authentication authentication,
+                          @CheckForNull EventFilter eventFilter,
+                          @CheckForNull Set<String> eventNames) {
+        if (eventNames == null || eventNames.isEmpty()) {
+            subscribe2(channelName, subscriber, authentication, eventFilter);
+        } else {
+            EventFilter eventNameFilter = new EventFilter();
+            if (eventFilter != null) {
+                eventNameFilter.putAll(eventFilter);
+                eventNameFilter.conditions.addAll(eventFilter.conditions);
+            }
+            if (eventNames.size() == 1) {
+                eventNameFilter.setEventName(eventNames.iterator().next());
+            } else {
+                eventNameFilter.in(EventProps.Jenkins.jenkins_event.name(), eventNames);
+            }
+            subscribe2(channelName, subscriber, authentication, eventNameFilter);
+        }
+    }
+
+    /**
+     * Subscribe to events on the specified event channel, starting from a position in the
+     * channel's event history.
+     * <p>
+     * The messages published on the channel since the cursor position, and still held in the
+     * channel's history, are delivered to the subscriber (in order) before any newly published
+     * messages. This allows e.g. a client that lost its connection to pick up where it left off.
+     * The history is bounded, so if the cursor is older than the oldest message in the history,
+     * some messages are missed. Subscribers can detect that from a gap in the
+     * {@link Message#getChannelSequence() channel sequence numbers}.
+     * <p>
+     * The default implementation throws an {@link UnsupportedOperationException}.
+     * {@link PubsubBus} implementations that keep an event history should override it.
+     *
+     * @param channelName The channel name.
+     * @param subscriber  The subscriber instance that will receive the events.
+     * @param authentication The authentication to which the subscription is associated.
+     * @param eventFilter A message filter, or {@code null} if no filtering is to be applied.
+     *                    This tells the bus to only forward messages that match the properties
+     *                    (names and values) specified in the filter.
+     * @param cursor The position in the channel's event history to start from.
+     */
+    public void subscribe2From(@NonNull String channelName,
+                          @NonNull ChannelSubscriber subscriber,
+                          @NonNull Authentication authentication,
+                          @CheckForNull EventFilter eventFilter,
+                          @NonNull EventCursor cursor) {
+        throw new UnsupportedOperationException("Plugin class '" + this.getClass().getName() + "' does not support " +
+                "subscribing from an event history cursor.");
+    }
+
     /**
      * Unsubscribe from events on the specified event channel.
      * @param channelName The channel name.
@@ -220,28 +366,111 @@ public abstract class PubsubBus implements ExtensionPoint {
         // doing nothing as it's new method
     }
 
+    /**
+     * Register the auto subscribers on this bus in the background. {@link #publish(Message)} holds
+     * back the messages published until they're registered.
+     * @param executor The executor to register them on.
+     */
+    void registerAutoChannelSubscribers(@NonNull Executor executor) {
+        synchronized (earlyMessagesLock) {
+            earlyMessages = new ArrayList<>();
+        }
+        executor.execute(() -> {
+            try {
+                registerAutoChannelSubscribers(this);
+            } finally {
+                publishEarlyMessages();
+            }
+        });
+    }
+
+    /**
+     * Get the number of messages dropped because they were published before the auto subscribers
+     * were registered, and too many were already held back.
+     * @return The number of messages dropped.
+     */
+    long getEarlyMessagesDroppedCount() {
+        return earlyMessagesDropped.sum();
+    }
+
+    private boolean holdBack(@NonNull Message message) {
+        synchronized (earlyMessagesLock) {
+            List<Message> messages = earlyMessages;
+            if (messages == null) {
+                return false;
+            }
+            if (messages.size() < EARLY_MESSAGE_LIMIT) {
+                messages.add(message);
+            } else {
+                earlyMessagesDropped.increment();
+                if (earlyMessagesDropped.sum() == 1) {
+                    LOGGER.log(Level.WARNING, "More than {0} messages published before the auto subscribers were registered. Dropping the rest.", EARLY_MESSAGE_LIMIT);
+                }
+            }
+            return true;
+        }
+    }
+
+    private void publishEarlyMessages() {
+        while (true) {
+            List<Message> messages;
+            synchronized (earlyMessagesLock) {
+                messages = earlyMessages;
+                if (messages == null || messages.isEmpty()) {
+                    earlyMessages = null;
+                    return;
+                }
+                // Anything published while these are being published waits its turn, so the order is kept.
+                earlyMessages = new ArrayList<>();
+            }
+            for (Message message : messages) {
+                try {
+                    publishNow(message, message.getChannelName());
+                } catch (MessageException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to publish a message held back until the auto subscribers were registered.", e);
+                }
+            }
+        }
+    }
+
     /**
      * Channel subscription can be managed by another ExtensionPoint impl, or can
      * be triggered automatically by implementing {@link AbstractChannelSubscriber}.
      * @param pubsubBus The bus instance.
      */
     private synchronized static void registerAutoChannelSubscribers(PubsubBus pubsubBus) {
+        long start = System.nanoTime();
         List<AbstractChannelSubscriber> newAutoSubscribersList = new CopyOnWriteArrayList<>();
         ExtensionList<AbstractChannelSubscriber> subscribers = ExtensionList.lookup(AbstractChannelSubscriber.class);
+        int registered = 0;
 
         for (AbstractChannelSubscriber subscriber : subscribers) {
             // If it's not already subscribed, subscribe it.
             if (!autoSubscribers.contains(subscriber)) {
-                pubsubBus.subscribe2(
-                        subscriber.getChannelName(),
-                        subscriber,
-                        subscriber.getAuthentication2(),
-                        subscriber.getEventFilter());
+                try {
+                    pubsubBus.subscribe2(
+                            subscriber.getChannelName(),
+                            subscriber,
+                            subscriber.getAuthentication2(),
+                            subscriber.getEventFilter(),
+                            subscriber.getEventNames());
+                    registered++;
+                } catch (RuntimeException e) {
+                    // Not on the caller's thread any more, so log it rather than losing it.
+                    LOGGER.log(Level.SEVERE, "Error doing auto subscribe of " + subscriber.getClass().getName() + ".", e);
+                    continue;
+                }
             }
             newAutoSubscribersList.add(subscriber);
         }
 
         autoSubscribers = newAutoSubscribersList;
+
+        long registrationNanos = System.nanoTime() - start;
+        LOGGER.log(Level.FINE, "Registered {0} auto subscribers in {1}ms.", new Object[] {registered, TimeUnit.NANOSECONDS.toMillis(registrationNanos)});
+        if (pubsubBus instanceof GuavaPubsubBus) {
+            ((GuavaPubsubBus) pubsubBus).getMetrics().autoSubscribersRegistered(registrationNanos);
+        }
     }
 
     private synchronized static void unregisterAutoChannelSubscribers(PubsubBus pubsubBus) {
@@ -37,7 +37,7 @@ public final class QueueTaskMessage extends JobChannelMessage<QueueTaskMessage>
 
     private static final long serialVersionUID = -1L;
 
-    transient Queue.Item queueItem;
+    transient volatile Queue.Item queueItem;
 
     public QueueTaskMessage() {
     }
@@ -57,8 +57,21 @@ public final class QueueTaskMessage extends JobChannelMessage<QueueTaskMessage>
      */
     @Override
     public Message clone() {
-        Message clone = new QueueTaskMessage();
+        QueueTaskMessage clone = new QueueTaskMessage();
         clone.putAll(this);
+        clone.queueItem = queueItem;
+        copyResolvedTo(clone);
         return clone;
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The {@link Queue.Item} can't be looked up again, so {@link #getQueueItem()} returns {@code null} after this.
+     */
+    @Override
+    void forgetResolved() {
+        super.forgetResolved();
+        queueItem = null;
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Event counter with a one minute, exponentially weighted, moving average rate.
+ * <p>
+ * Marking an event is a {@link System#nanoTime()} call plus a couple of {@link LongAdder}
+ * increments. The moving average is updated lazily, every 5 seconds, by whichever thread
+ * happens to mark or read the meter at the time.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class RateMeter {
+
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+    // After this many idle ticks the rate has decayed to (practically) zero anyway.
+    private static final long MAX_CATCH_UP_TICKS = 120;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double rate;
+    private volatile boolean initialized;
+
+    /**
+     * Mark the occurrence of an event.
+     */
+    void mark() {
+        tickIfNecessary();
+        count.increment();
+        uncounted.increment();
+    }
+
+    /**
+     * Get the number of events marked.
+     * @return The number of events marked.
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the one minute moving average rate.
+     * @return The rate, in events per second.
+     */
+    double getOneMinuteRate() {
+        tickIfNecessary();
+        return rate * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Clear the count and rate.
+     */
+    void reset() {
+        count.reset();
+        uncounted.reset();
+        rate = 0;
+        initialized = false;
+    }
+
+    private void tickIfNecessary() {
+        long oldTick = lastTick.get();
+        long newTick = System.nanoTime();
+        long age = newTick - oldTick;
+        if (age > TICK_INTERVAL) {
+            long newIntervalStartTick = newTick - age % TICK_INTERVAL;
+            if (lastTick.compareAndSet(oldTick, newIntervalStartTick)) {
+                long requiredTicks = Math.min(age / TICK_INTERVAL, MAX_CATCH_UP_TICKS);
+                for (long i = 0; i < requiredTicks; i++) {
+                    tick();
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        double instantRate = (double) uncounted.sumThenReset() / TICK_INTERVAL;
+        if (initialized) {
+            rate += ALPHA * (instantRate - rate);
+        } else {
+            rate = instantRate;
+            initialized = true;
+        }
+    }
+}
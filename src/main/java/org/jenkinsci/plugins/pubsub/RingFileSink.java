@@ -0,0 +1,362 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional sink that writes the published messages into a memory-mapped ring file, so a local
+ * process (e.g. an event exporter sidecar) can consume them without going through HTTP or a socket.
+ * <p>
+ * The bus is the single producer. When the ring is full, the oldest records are overwritten,
+ * whether or not the consumer has read them yet (the bus never waits on the consumer). Records
+ * overwritten before the consumer read them are counted in the overrun counter.
+ * <p>
+ * The sink is enabled by setting the <strong><code>org.jenkinsci.plugins.pubsub.RingFileSink.FILE</code></strong>
+ * system property to the ring file path. The ring size is set by the
+ * <strong><code>org.jenkinsci.plugins.pubsub.RingFileSink.SIZE_MB</code></strong> system property.
+ * Default 16 MB, and at most {@value #MAX_SIZE_MB} MB. The file is recreated each time Jenkins starts.
+ * <p>
+ * The file holds the messages published on every channel, including those only some users are
+ * allowed to see, so it's only readable by the Jenkins user (on filesystems with POSIX permissions).
+ * The consumer needs to run as the same user.
+ *
+ * <h2>File layout</h2>
+ * All header fields are little endian and 8 byte aligned, so they can be read (and the consumer
+ * cursor written) atomically. Positions are byte counts since the ring was created, so they only
+ * ever increase. A record at position {@code p} is at file offset {@code 64 + (p % capacity)}.
+ * <pre>
+ *     offset  type  field
+ *     0       int   magic, "PSR1"
+ *     4       int   version, 1
+ *     8       long  capacity, the size of the record area (a multiple of 8)
+ *     16      long  write position, the end of the last complete record
+ *     24      long  tail position, the start of the oldest record that is still intact
+ *     32      long  read position, the consumer cursor (written by the consumer)
+ *     40      long  overrun count, records overwritten before they were read
+ *     48      long  record count, records written
+ *     56      long  reserved
+ *     64            record area
+ * </pre>
+ * Each record is an 8 byte header, an int payload length and 4 unused bytes, followed by the
+ * {@link MessageCodec} encoded message and padded to a multiple of 8 bytes. Records never wrap
+ * around the end of the record area. Instead, the rest of the area is skipped with a padding
+ * record, with length {@code -1}.
+ *
+ * <h2>Consuming</h2>
+ * The producer moves the tail position forward <em>before</em> overwriting a record, and the write
+ * position forward <em>after</em> writing one. So a consumer reads from its cursor up to the write
+ * position, and then checks the tail position again. If the tail position has moved past the record
+ * just read, it was overwritten while being read and must be discarded. If the cursor is ever behind
+ * the tail position, the records in between were lost. See {@link Reader}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class RingFileSink implements MessageSink {
+
+    private static final Logger LOGGER = Logger.getLogger(RingFileSink.class.getName());
+
+    private static final String PROPERTY_PREFIX = RingFileSink.class.getName() + ".";
+
+    static final int MAGIC = 0x50535231; // "PSR1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int PADDING = -1;
+    static final int MAX_SIZE_MB = 1024;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int CAPACITY_OFFSET = 8;
+    static final int WRITE_OFFSET = 16;
+    static final int TAIL_OFFSET = 24;
+    static final int READ_OFFSET = 32;
+    static final int OVERRUN_OFFSET = 40;
+    static final int COUNT_OFFSET = 48;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final long capacity;
+    private long writePosition;
+    private long tailPosition;
+    private long recordCount;
+    private long overrunCount;
+    private boolean overrunLogged;
+    private boolean closed;
+
+    RingFileSink(@NonNull File file, int capacity) throws IOException {
+        if (capacity < 1024 || capacity % 8 != 0) {
+            throw new IllegalArgumentException("Ring capacity must be a multiple of 8, and at least 1024 bytes.");
+        }
+        this.file = file;
+        this.capacity = capacity;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        Files.deleteIfExists(file.toPath());
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+        if (file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            attributes = new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), options, attributes)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putLong(CAPACITY_OFFSET, capacity);
+        // Magic last, so a consumer never sees a half initialised header.
+        VarHandle.releaseFence();
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    /**
+     * Create the ring file sink, as configured by system properties.
+     * @return The sink, or {@code null} if not enabled (or the file can't be created).
+     */
+    static @CheckForNull RingFileSink create() {
+        String path = System.getProperty(PROPERTY_PREFIX + "FILE");
+        if (path == null) {
+            return null;
+        }
+        try {
+            return new RingFileSink(new File(path), capacity(Long.getLong(PROPERTY_PREFIX + "SIZE_MB", 16)));
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Failed to create the event ring file " + path + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the ring capacity for a configured size.
+     * @param sizeMB The configured size, in MB.
+     * @return The capacity in bytes, with the size clamped to between 1 and {@value #MAX_SIZE_MB} MB.
+     */
+    static int capacity(long sizeMB) {
+        long clamped = Math.max(1, Math.min(sizeMB, MAX_SIZE_MB));
+        if (clamped != sizeMB) {
+            LOGGER.log(Level.WARNING, "Event ring file size {0} MB is out of range. Using {1} MB.", new Object[] {sizeMB, clamped});
+        }
+        return (int) (clamped * 1024 * 1024);
+    }
+
+    @Override
+    public synchronized void onPublish(@NonNull Message message) {
+        if (closed) {
+            return;
+        }
+        ByteBuffer encoded = MessageCodec.encode(message);
+        int length = encoded.remaining();
+        long size = align(RECORD_HEADER_SIZE + length);
+        if (size > capacity / 2) {
+            LOGGER.log(Level.FINE, "Message too large for the event ring file ({0} bytes). Not written.", length);
+            return;
+        }
+
+        int offset = (int) (writePosition % capacity);
+        if (offset + size > capacity) {
+            // Doesn't fit before the end of the ring. Skip the rest of it.
+            long padding = capacity - offset;
+            reserve(padding);
+            buffer.putInt(HEADER_SIZE + offset, PADDING);
+            writePosition += padding;
+            offset = 0;
+        }
+
+        reserve(size);
+        int recordOffset = HEADER_SIZE + offset;
+        buffer.putInt(recordOffset, length);
+        buffer.put(recordOffset + RECORD_HEADER_SIZE, encoded, encoded.position(), length);
+        writePosition += size;
+        recordCount++;
+        LONGS.setRelease(buffer, COUNT_OFFSET, recordCount);
+        LONGS.setRelease(buffer, WRITE_OFFSET, writePosition);
+    }
+
+    /**
+     * Make room for {@code size} bytes at the write position, moving the tail past the records
+     * that are about to be overwritten.
+     */
+    private void reserve(long size) {
+        if (writePosition + size - tailPosition <= capacity) {
+            return;
+        }
+        long readPosition = (long) LONGS.getAcquire(buffer, READ_OFFSET);
+        while (writePosition + size - tailPosition > capacity) {
+            int offset = (int) (tailPosition % capacity);
+            int length = buffer.getInt(HEADER_SIZE + offset);
+            if (length == PADDING) {
+                tailPosition += capacity - offset;
+            } else {
+                if (tailPosition >= readPosition) {
+                    overrunCount++;
+                }
+                tailPosition += align(RECORD_HEADER_SIZE + length);
+            }
+        }
+        LONGS.setRelease(buffer, OVERRUN_OFFSET, overrunCount);
+        // Published before the records are overwritten. See the class docs.
+        LONGS.setVolatile(buffer, TAIL_OFFSET, tailPosition);
+        if (overrunCount > 0 && !overrunLogged) {
+            overrunLogged = true;
+            LOGGER.log(Level.WARNING, "The event ring file {0} consumer is not keeping up. Unread messages are being overwritten.", file);
+        }
+    }
+
+    /**
+     * Get the number of records overwritten before the consumer read them.
+     * @return The overrun count.
+     */
+    synchronized long getOverrunCount() {
+        return overrunCount;
+    }
+
+    /**
+     * Get the number of bytes written, but not yet read by the consumer.
+     * @return The consumer lag, in bytes.
+     */
+    synchronized long getLag() {
+        long readPosition = (long) LONGS.getAcquire(buffer, READ_OFFSET);
+        return writePosition - Math.max(readPosition, tailPosition);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            buffer.force();
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Reads messages from a ring file, following the protocol described on {@link RingFileSink}.
+     * A reference for consumers written in other languages.
+     */
+    static final class Reader implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final long capacity;
+        private long cursor;
+        private long lostCount;
+
+        Reader(@NonNull File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.size() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+                channel.close();
+                throw new IOException("Not an event ring file.");
+            }
+            capacity = buffer.getLong(CAPACITY_OFFSET);
+            cursor = (long) LONGS.getAcquire(buffer, READ_OFFSET);
+        }
+
+        /**
+         * Read the next message.
+         * @return The message, or {@code null} if there are no more messages right now.
+         */
+        @CheckForNull Message poll() {
+            while (true) {
+                long writePosition = (long) LONGS.getAcquire(buffer, WRITE_OFFSET);
+                if (cursor >= writePosition) {
+                    return null;
+                }
+                long tailPosition = (long) LONGS.getAcquire(buffer, TAIL_OFFSET);
+                if (cursor < tailPosition) {
+                    lostCount++;
+                    cursor = tailPosition;
+                    continue;
+                }
+
+                int offset = (int) (cursor % capacity);
+                int length = buffer.getInt(HEADER_SIZE + offset);
+                long next;
+                byte[] payload = null;
+                if (length == PADDING) {
+                    next = cursor + capacity - offset;
+                } else if (length < 0 || offset + RECORD_HEADER_SIZE + (long) length > capacity) {
+                    // Overwritten mid read (picked up by the tail check below), or corrupt.
+                    next = -1;
+                } else {
+                    payload = new byte[length];
+                    buffer.get(HEADER_SIZE + offset + RECORD_HEADER_SIZE, payload);
+                    next = cursor + align(RECORD_HEADER_SIZE + length);
+                }
+
+                // Was the record overwritten while we were reading it?
+                VarHandle.acquireFence();
+                if (cursor < (long) LONGS.getVolatile(buffer, TAIL_OFFSET)) {
+                    continue;
+                }
+                if (next < 0) {
+                    throw new IllegalStateException("Corrupt event ring file record at position " + cursor + ".");
+                }
+                cursor = next;
+                LONGS.setRelease(buffer, READ_OFFSET, cursor);
+                if (payload != null) {
+                    return MessageCodec.decode(ByteBuffer.wrap(payload));
+                }
+            }
+        }
+
+        /**
+         * Get the number of times the reader found it had fallen behind the tail, and skipped ahead.
+         * @return The number of times messages were lost.
+         */
+        long getLostCount() {
+            return lostCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.Collection;
+
+/**
+ * Cache of the {@link Run} instances resolved for {@link RunMessage}s.
+ * <p>
+ * Every {@link RunMessage} delivered to a subscriber is a clone, so without this cache
+ * each of them would look the {@link Run} up again (which, for old builds, can mean
+ * loading it from disk) the first time an ACL check or accessor touches it.
+ * <p>
+ * Values are soft references, so the cache never keeps a {@link Run} in memory that
+ * Jenkins itself would otherwise let go of. Entries are invalidated when the {@link Run},
+ * or the {@link Job} that owns it, is deleted.
+ * <p>
+ * Use system property <strong><code>org.jenkinsci.plugins.pubsub.RunCache.MAX_SIZE</code></strong> to
+ * configure the maximum number of cached runs. The default value is 256.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class RunCache {
+
+    private static final int MAX_SIZE = Integer.getInteger(RunCache.class.getName() + ".MAX_SIZE", 256);
+
+    private static final Cache<Key, Run> runs = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .softValues()
+            .recordStats()
+            .build();
+
+    private RunCache() {
+    }
+
+    /**
+     * Get the {@link Run} with the specified id, resolving it through the {@link Job}
+     * if it is not already cached.
+     * @param job The {@link Job} that owns the run.
+     * @param buildId The run id.
+     * @return The {@link Run}, or {@code null} if the job has no such run.
+     */
+    static @CheckForNull Run get(@NonNull Job job, @NonNull String buildId) {
+        Key key = new Key(job.getFullName(), buildId);
+        Run run = runs.getIfPresent(key);
+        if (run == null) {
+            Collection<? extends Job> allJobs = job.getAllJobs();
+            if (allJobs != null && !allJobs.isEmpty()) {
+                run = allJobs.iterator().next().getBuild(buildId);
+                if (run != null) {
+                    runs.put(key, run);
+                }
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Is the {@link Run} with the specified id in the cache.
+     * Unlike {@link #get(Job, String)}, this doesn't count as a hit or a miss.
+     * @param job The {@link Job} that owns the run.
+     * @param buildId The run id.
+     * @return {@code true} if the run is cached, otherwise {@code false}.
+     */
+    static boolean isCached(@NonNull Job job, @NonNull String buildId) {
+        return runs.asMap().containsKey(new Key(job.getFullName(), buildId));
+    }
+
+    /**
+     * Invalidate the cached entry for a {@link Run}.
+     * @param run The {@link Run}.
+     */
+    static void invalidate(@NonNull Run run) {
+        runs.invalidate(new Key(run.getParent().getFullName(), run.getId()));
+    }
+
+    /**
+     * Invalidate all of the cached entries for an {@link Item} i.e. for a {@link Job}
+     * or for all of the jobs in a folder.
+     * @param itemFullName The {@link Item} full name.
+     */
+    static void invalidateAll(@NonNull String itemFullName) {
+        String folderPrefix = itemFullName + "/";
+        runs.asMap().keySet().removeIf(key -> key.jobFullName.equals(itemFullName) || key.jobFullName.startsWith(folderPrefix));
+    }
+
+    /**
+     * Get the cache statistics e.g. the hit rate.
+     * @return The cache statistics.
+     */
+    public static @NonNull CacheStats getStats() {
+        return runs.stats();
+    }
+
+    /**
+     * Get the number of runs currently in the cache.
+     * @return The number of runs currently in the cache.
+     */
+    public static long size() {
+        return runs.size();
+    }
+
+    private static final class Key {
+        private final String jobFullName;
+        private final String buildId;
+
+        private Key(String jobFullName, String buildId) {
+            this.jobFullName = jobFullName;
+            this.buildId = buildId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return jobFullName.equals(key.jobFullName) && buildId.equals(key.buildId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * jobFullName.hashCode() + buildId.hashCode();
+        }
+    }
+
+    /**
+     * Invalidates the cached {@link Run} when it is deleted.
+     */
+    @Extension
+    public static final class RunDeletedListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            invalidate(run);
+        }
+    }
+
+    /**
+     * Invalidates the cached {@link Run}s of a {@link Job} (or folder of jobs) when it is
+     * deleted, renamed or moved.
+     */
+    @Extension
+    public static final class ItemDeletedListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            invalidateAll(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidateAll(oldFullName);
+        }
+    }
+}
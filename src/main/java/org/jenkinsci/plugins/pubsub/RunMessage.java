@@ -31,8 +31,6 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.security.AccessControlled;
 
-import java.util.Collection;
-
 /**
  * Jenkins {@link Run} domain model {@link PubsubBus} message instance.
  *
@@ -42,7 +40,8 @@ public final class RunMessage extends JobChannelMessage<RunMessage> {
     
     private static final long serialVersionUID = -1L;
     
-    transient Run run;
+    // Published through volatile fields, as for the job channel item (see JobChannelMessage).
+    transient volatile Run run;
 
     /**
      * Create a plain message instance.
@@ -76,11 +75,36 @@ public final class RunMessage extends JobChannelMessage<RunMessage> {
      */
     @Override
     public Message clone() {
-        Message clone = new RunMessage();
+        RunMessage clone = new RunMessage();
         clone.putAll(this);
+        copyResolvedTo(clone);
         return clone;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void copyResolvedTo(@NonNull JobChannelMessage clone) {
+        super.copyResolvedTo(clone);
+        if (clone instanceof RunMessage) {
+            RunMessage runClone = (RunMessage) clone;
+            boolean lookupComplete = runLookupComplete;
+            runClone.run = run;
+            runClone.runLookupComplete = lookupComplete;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void forgetResolved() {
+        super.forgetResolved();
+        runLookupComplete = false;
+        run = null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -89,28 +113,30 @@ public final class RunMessage extends JobChannelMessage<RunMessage> {
         return getRun();
     }
 
-    private transient boolean runLookupComplete = false;
+    private transient volatile boolean runLookupComplete = false;
     /**
      * Get the Jenkins {@link Run} associated with this message.
      * @return The Jenkins {@link Run} associated with this message,
      * or {code null} if the message is not associated with a
      * Jenkins {@link Run}.
      */
-    public synchronized @CheckForNull Run getRun() {
-        if (runLookupComplete || run != null) {
+    public @CheckForNull Run getRun() {
+        Run run = this.run;
+        if (run != null) {
             return run;
         }
-        
+        if (runLookupComplete) {
+            return this.run;
+        }
+
+        // Threads racing to get here all look up the same run, which is harmless.
         try {
             Item item = getJobChannelItem();
             if (item instanceof Job) {
-                Job job = (Job) item;
                 String buildId = getObjectId();
                 if (buildId != null) {
-                    Collection<? extends Job> allJobs = job.getAllJobs();
-                    if (allJobs != null && !allJobs.isEmpty()) {
-                        run = allJobs.iterator().next().getBuild(buildId);
-                    }
+                    run = RunCache.get((Job) item, buildId);
+                    this.run = run;
                 }
             }
         } finally {
@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Canonical, reference counted, compiled {@link EventFilter}s, so that subscribers with equal filters
+ * (e.g. the browsers with the same job page open) share one filter node, and the filter is evaluated
+ * once per message rather than once per subscriber.
+ * <p>
+ * Each node has a slot number, unique among the live nodes. A message's delivery keeps the results for
+ * the filters already evaluated in an array indexed by slot (see {@link Results}). Slots are reused
+ * once a node is no longer referenced.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class SharedFilters {
+
+    private final Map<FilterEvaluator, Node> nodes = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private volatile int slotCount;
+
+    /**
+     * Get the shared node for a filter, creating it if needed.
+     * @param filter The filter, or {@code null}.
+     * @return The node, or {@code null} if there is nothing to filter on. Must be {@link #release released}
+     * when no longer in use.
+     */
+    synchronized @CheckForNull Node acquire(@CheckForNull EventFilter filter) {
+        FilterEvaluator evaluator = FilterEvaluator.compile(filter);
+        if (evaluator == null) {
+            return null;
+        }
+        Node node = nodes.get(evaluator);
+        if (node == null) {
+            Integer slot = freeSlots.poll();
+            node = new Node(evaluator, slot != null ? slot : slotCount++);
+            nodes.put(evaluator, node);
+        }
+        node.refCount++;
+        return node;
+    }
+
+    /**
+     * Release a node.
+     * @param node The node, or {@code null}.
+     */
+    synchronized void release(@CheckForNull Node node) {
+        if (node == null || node.refCount == 0) {
+            return;
+        }
+        node.refCount--;
+        if (node.refCount == 0) {
+            nodes.remove(node.filter);
+            freeSlots.push(node.slot);
+        }
+    }
+
+    /**
+     * Get the number of distinct filters in use.
+     * @return The number of distinct filters.
+     */
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Start collecting the filter results for a message.
+     * @param message The message.
+     * @return The results.
+     */
+    @NonNull Results results(@NonNull Message message) {
+        return new Results(message, slotCount);
+    }
+
+    static final class Node {
+        private final FilterEvaluator filter;
+        private final int slot;
+        // Recorded in the Results slot when the message fails the filter. The node itself when it passes.
+        private final Object failed = new Object();
+        // Guarded by SharedFilters.this.
+        private int refCount;
+
+        private Node(FilterEvaluator filter, int slot) {
+            this.filter = filter;
+            this.slot = slot;
+        }
+
+        boolean test(@NonNull Message message) {
+            return filter.test(message);
+        }
+    }
+
+    /**
+     * The results of the filters evaluated for one message.
+     * <p>
+     * May be used from more than one thread. The races are benign: at worst, a filter is evaluated
+     * more than once, with the same result.
+     * <p>
+     * The dispatch lists of a delivery are not read at one instant, so a slot freed by an unsubscribe
+     * can be reused by a new subscriber's filter in between, and one delivery can see two filters in
+     * the same slot. So each result is recorded as the node's own pass or fail marker (one reference,
+     * written atomically), and a result recorded by a different node doesn't count.
+     */
+    static final class Results {
+        private final Message message;
+        private final int slotCount;
+        private Object[] results;
+
+        private Results(Message message, int slotCount) {
+            this.message = message;
+            this.slotCount = slotCount;
+        }
+
+        /**
+         * Does the message pass the filter.
+         * @param node The filter node, or {@code null} for no filter.
+         * @return {@code true} if it does, otherwise {@code false}.
+         */
+        boolean test(@CheckForNull Node node) {
+            if (node == null) {
+                return true;
+            }
+            if (node.slot >= slotCount) {
+                // A node created after the delivery started.
+                return node.test(message);
+            }
+            Object[] results = this.results;
+            if (results == null) {
+                results = new Object[slotCount];
+                this.results = results;
+            }
+            Object result = results[node.slot];
+            if (result == node) {
+                return true;
+            }
+            if (result == node.failed) {
+                return false;
+            }
+            boolean passed = node.test(message);
+            results[node.slot] = (passed ? node : node.failed);
+            return passed;
+        }
+    }
+}
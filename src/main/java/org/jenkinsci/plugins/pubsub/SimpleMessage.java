@@ -28,4 +28,20 @@ package org.jenkinsci.plugins.pubsub;
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
 public final class SimpleMessage extends Message<SimpleMessage> {
+
+    /**
+     * Create a message instance, with default properties set.
+     */
+    public SimpleMessage() {
+        super();
+    }
+
+    /**
+     * Create a message instance.
+     * @param setDefaultProperties Set the default properties. Messages read back from
+     *                             a journal (for example) already have them.
+     */
+    SimpleMessage(boolean setDefaultProperties) {
+        super(setDefaultProperties);
+    }
 }
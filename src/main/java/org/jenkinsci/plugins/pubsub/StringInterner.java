@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Canonicalizes message property names, and the values of low cardinality properties, so that
+ * messages held in the history or waiting in executor backlogs share one copy of each string,
+ * rather than each holding their own copies of e.g. the channel name, event name and object type.
+ * <p>
+ * The known property names and values (the {@link MessageCodec} dictionaries) are always
+ * canonicalized. Other strings go through a bounded, lossy table (a hash indexed array, where a
+ * string simply replaces whatever was in its slot). So, it costs a hash and an {@code equals} per
+ * string, never grows, and never holds on to strings for long if they turn out not to repeat.
+ * Use the <strong><code>org.jenkinsci.plugins.pubsub.StringInterner.TABLE_SIZE</code></strong>
+ * system property to set the table size (default 2048, 0 to only canonicalize the known strings).
+ * <p>
+ * Values are only canonicalized for the properties known to have few distinct values, or one value
+ * per job. Timestamps, UUIDs, sequence numbers and the like would only churn the table.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class StringInterner {
+
+    private static final int MAX_LENGTH = 1024;
+
+    private static final Map<String, String> KNOWN = new HashMap<>();
+    private static final Set<String> LOW_CARDINALITY_NAMES = Set.of(
+            EventProps.Jenkins.jenkins_org.name(),
+            EventProps.Jenkins.jenkins_instance_id.name(),
+            EventProps.Jenkins.jenkins_instance_url.name(),
+            EventProps.Jenkins.jenkins_channel.name(),
+            EventProps.Jenkins.jenkins_event.name(),
+            EventProps.Jenkins.jenkins_object_type.name(),
+            EventProps.Job.job_name.name(),
+            EventProps.Job.job_ismultibranch.name(),
+            EventProps.Job.job_multibranch_indexing_status.name(),
+            EventProps.Job.job_multibranch_indexing_result.name(),
+            EventProps.Job.job_run_status.name());
+
+    // Racy, but benign. Strings are immutable, so a reader sees either a whole string or null,
+    // and a lost update only costs a duplicate.
+    private static final String[] TABLE = new String[tableSize(Integer.getInteger(StringInterner.class.getName() + ".TABLE_SIZE", 2048))];
+
+    static {
+        for (String name : MessageCodec.NAMES) {
+            KNOWN.put(name, name);
+        }
+        for (String value : MessageCodec.VALUES) {
+            KNOWN.put(value, value);
+        }
+    }
+
+    private StringInterner() {
+    }
+
+    /**
+     * Canonicalize a property name.
+     * @param name The property name.
+     * @return The canonical instance of the name.
+     */
+    static String name(@CheckForNull String name) {
+        return intern(name);
+    }
+
+    /**
+     * Canonicalize a property value, if it is the value of a low cardinality property.
+     * @param name The property name.
+     * @param value The property value.
+     * @return The canonical instance of the value, or the value itself.
+     */
+    static String value(@CheckForNull String name, @CheckForNull String value) {
+        if (name == null || !LOW_CARDINALITY_NAMES.contains(name)) {
+            return value;
+        }
+        return intern(value);
+    }
+
+    private static String intern(String string) {
+        return intern(TABLE, string);
+    }
+
+    /**
+     * Canonicalize a string, through the supplied table e.g. a test's own table.
+     * @param table The table. Its length must be a power of two, or zero.
+     * @param string The string.
+     * @return The canonical instance of the string.
+     */
+    static String intern(@NonNull String[] table, @CheckForNull String string) {
+        if (string == null || string.length() > MAX_LENGTH) {
+            return string;
+        }
+        String known = KNOWN.get(string);
+        if (known != null) {
+            return known;
+        }
+        if (table.length == 0) {
+            return string;
+        }
+        int hash = string.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (table.length - 1);
+        String interned = table[slot];
+        if (string.equals(interned)) {
+            return interned;
+        }
+        table[slot] = string;
+        return string;
+    }
+
+    private static int tableSize(int size) {
+        if (size <= 0) {
+            return 0;
+        }
+        // Power of two, for masking.
+        return Integer.highestOneBit(Math.min(size, 1 << 20) * 2 - 1);
+    }
+}
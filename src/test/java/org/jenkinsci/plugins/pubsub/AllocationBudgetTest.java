@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.pubsub;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation budgets per publish and per delivery, for the main message types (see
+ * {@link AllocationMeter}). {@link RunMessage} needs a real run, so its budget is checked
+ * in {@link RunMessageAllocationBudgetTest}.
+ * <p>
+ * The budgets are roughly twice what is measured, to allow for JVM differences, so a failure
+ * means something new is being allocated on the publish or delivery path. Raise a budget only
+ * if the new allocation is intended.
+ */
+public class AllocationBudgetTest {
+
+    private static final String CHANNEL = "alloc.test";
+
+    private GuavaPubsubBus bus;
+    private AllocationMeter meter;
+    private final MockItem item = new MockItem("folder/a-job").setACL(MockItem.YES_ACL);
+
+    @Before
+    public void setup() {
+        assumeTrue(AllocationMeter.isSupported());
+        bus = AllocationMeter.createBus();
+        meter = new AllocationMeter(bus, CHANNEL);
+    }
+
+    @After
+    public void stop() {
+        if (bus != null) {
+            bus.shutdown();
+        }
+    }
+
+    @Test
+    public void test_SimpleMessage() throws Exception {
+        meter.assertBudget("SimpleMessage", 4096, 2048, () -> new SimpleMessage()
+                .setChannelName(CHANNEL)
+                .setEventName("alloc_event")
+                .set("alloc_a", "a")
+                .set("alloc_b", "b"));
+    }
+
+    @Test
+    public void test_JobMessage() throws Exception {
+        meter.assertBudget("JobMessage", 4096, 2048, () -> {
+            JobMessage message = new JobMessage();
+            message.setEventName(Events.JobChannel.job_crud_updated)
+                    .set(EventProps.Job.job_name, item.getFullName());
+            message.jobChannelItem = item;
+            return message;
+        });
+    }
+
+    @Test
+    public void test_QueueTaskMessage() throws Exception {
+        meter.assertBudget("QueueTaskMessage", 4096, 2048, () -> {
+            QueueTaskMessage message = new QueueTaskMessage();
+            message.setEventName(Events.JobChannel.job_run_queue_enter)
+                    .set(EventProps.Job.job_name, item.getFullName())
+                    .set(EventProps.Job.job_run_queueId, "1234");
+            message.jobChannelItem = item;
+            return message;
+        });
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.security.ACL;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Measures the bytes allocated per publish (on the publishing thread, including creating the
+ * message) and per delivery (on the bus threads), using the thread allocation counters.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class AllocationMeter {
+
+    private static final String POOL = GuavaPubsubBus.class.getName() + ".POOL.";
+    private static final String[] POOL_SIZES = {"THREADS", "MIN_THREADS", "MAX_THREADS"};
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 5;
+    private static final int MESSAGES = 2000;
+
+    private final ChannelPublisher publisher;
+    private final AtomicLong delivered = new AtomicLong();
+
+    /**
+     * Create a meter, subscribed to a channel.
+     * @param bus The bus. See {@link #createBus()}.
+     * @param channelName The channel the measured messages are published on.
+     */
+    public AllocationMeter(GuavaPubsubBus bus, String channelName) {
+        this.publisher = bus.publisher(channelName);
+        bus.subscribe2(channelName, message -> delivered.incrementAndGet(), ACL.SYSTEM2, null);
+    }
+
+    /**
+     * Are thread allocation counters supported by the JVM.
+     */
+    public static boolean isSupported() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        return (threadMXBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported());
+    }
+
+    /**
+     * Create a bus with one thread per pool, which the pool sizing can't grow or shrink, so the
+     * delivery allocations are all on a thread that exists before measuring.
+     * <p>
+     * The pool sizes are set through the (JVM wide) system properties while the bus is created, so
+     * this is not safe while other test classes create buses in parallel in the same JVM.
+     */
+    public static GuavaPubsubBus createBus() {
+        List<String> pools = ExecutorPool.getNames();
+        for (String pool : pools) {
+            for (String size : POOL_SIZES) {
+                System.setProperty(POOL + pool + "." + size, "1");
+            }
+        }
+        try {
+            return new GuavaPubsubBus();
+        } finally {
+            for (String pool : pools) {
+                for (String size : POOL_SIZES) {
+                    System.clearProperty(POOL + pool + "." + size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Assert that publishing and delivering messages allocates no more than a budget.
+     * @param type The message type, for the failure message.
+     * @param publishBudget The max bytes per publish.
+     * @param deliveryBudget The max bytes per delivery.
+     * @param messages Creates the messages to publish.
+     */
+    public void assertBudget(String type, long publishBudget, long deliveryBudget, Supplier<Message> messages) throws InterruptedException {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        publish(messages, WARMUP);
+
+        // The allocation counters are exact, so the lowest round is the one least
+        // disturbed by one-off allocations (class loading, JIT compilation etc).
+        long publishBytes = Long.MAX_VALUE;
+        long deliveryBytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            Map<Long, Long> busStart = getBusThreadAllocatedBytes(threadMXBean);
+            long start = threadMXBean.getCurrentThreadAllocatedBytes();
+            publish(messages, MESSAGES);
+            publishBytes = Math.min(publishBytes, (threadMXBean.getCurrentThreadAllocatedBytes() - start) / MESSAGES);
+            // Read the bus threads again, in case one was started during the round.
+            long busBytes = 0;
+            for (Map.Entry<Long, Long> busThread : getBusThreadAllocatedBytes(threadMXBean).entrySet()) {
+                busBytes += busThread.getValue() - busStart.getOrDefault(busThread.getKey(), 0L);
+            }
+            deliveryBytes = Math.min(deliveryBytes, busBytes / MESSAGES);
+        }
+
+        assertTrue(type + " publish allocated " + publishBytes + " bytes, over its budget of " + publishBudget + " bytes.", publishBytes <= publishBudget);
+        assertTrue(type + " delivery allocated " + deliveryBytes + " bytes, over its budget of " + deliveryBudget + " bytes.", deliveryBytes <= deliveryBudget);
+    }
+
+    private void publish(Supplier<Message> messages, int count) throws InterruptedException {
+        long expected = delivered.get() + count;
+        for (int i = 0; i < count; i++) {
+            publisher.publish(messages.get());
+        }
+        long start = System.currentTimeMillis();
+        while (delivered.get() < expected) {
+            if (System.currentTimeMillis() > start + 10000) {
+                fail("Timed out waiting for delivery.");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static Map<Long, Long> getBusThreadAllocatedBytes(com.sun.management.ThreadMXBean threadMXBean) {
+        long[] busThreads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("GuavaPubsubBus."))
+                .mapToLong(Thread::getId)
+                .toArray();
+        long[] allocatedBytes = threadMXBean.getThreadAllocatedBytes(busThreads);
+        Map<Long, Long> busThreadAllocatedBytes = new HashMap<>();
+        for (int i = 0; i < busThreads.length; i++) {
+            // -1 for a thread that has since terminated.
+            if (allocatedBytes[i] >= 0) {
+                busThreadAllocatedBytes.put(busThreads[i], allocatedBytes[i]);
+            }
+        }
+        return busThreadAllocatedBytes;
+    }
+}
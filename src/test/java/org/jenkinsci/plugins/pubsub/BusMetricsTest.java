@@ -0,0 +1,141 @@
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BusMetricsTest {
+
+    private GuavaPubsubBus bus;
+
+    @Before
+    public void startBus() {
+        bus = new GuavaPubsubBus();
+    }
+
+    @After
+    public void stop() {
+        bus.shutdown();
+    }
+
+    @Test
+    public void test_histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMax());
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(500), histogram.getPercentile(0.5));
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(990), histogram.getPercentile(0.99));
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(500), (long) histogram.getMean());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void test_bucket_bounds() {
+        long previousUpperBound = -1;
+        for (int i = 0; i < LatencyHistogram.index(Long.MAX_VALUE); i++) {
+            long upperBound = LatencyHistogram.upperBound(i);
+            assertTrue(upperBound > previousUpperBound);
+            assertEquals(i, LatencyHistogram.index(upperBound));
+            assertEquals(i + 1, LatencyHistogram.index(upperBound + 1));
+            previousUpperBound = upperBound;
+        }
+    }
+
+    @Test
+    public void test_bus_metrics() throws Exception {
+        MockSubscriber subscriber = new MockSubscriber();
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        publisher.publish(new SimpleMessage().set("joba", "1"));
+        publisher.publish(new SimpleMessage().set("joba", "2"));
+        bus.publisher("jenkins.agent").publish(new SimpleMessage().set("agenta", "1"));
+        subscriber.waitForMessageCount(2);
+
+        BusMetrics metrics = bus.getMetrics();
+        assertEquals(3, metrics.getPublishedCount());
+        assertEquals(Long.valueOf(2), metrics.getChannelPublishedCounts().get("jenkins.job"));
+        assertEquals(Long.valueOf(1), metrics.getChannelPublishedCounts().get("jenkins.agent"));
+        // Delivery is recorded after the subscriber returns.
+        long start = System.currentTimeMillis();
+        while (metrics.getDeliveredCount() < 2 && System.currentTimeMillis() < start + 10000) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, metrics.getDeliveredCount());
+        assertTrue(metrics.getDeliveryLatencyMaxMillis() > 0);
+        assertTrue(metrics.getSubscriberHandlerTimeMeanMillis().containsKey(MockSubscriber.class.getName()));
+
+        // And it should be visible through JMX.
+        ObjectName name = metrics.getObjectName();
+        assertNotNull(name);
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "PublishedCount"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getPublishedCount());
+    }
+
+    @Test
+    public void test_channels_limited() throws Exception {
+        bus.shutdown();
+        System.setProperty(BusMetrics.class.getName() + ".MAX_CHANNELS", "2");
+        try {
+            bus = new GuavaPubsubBus();
+        } finally {
+            System.clearProperty(BusMetrics.class.getName() + ".MAX_CHANNELS");
+        }
+        for (int i = 0; i < 5; i++) {
+            bus.publisher("plugin.channel" + i).publish(new SimpleMessage().set("i", Integer.toString(i)));
+        }
+
+        Map<String, Long> counts = bus.getMetrics().getChannelPublishedCounts();
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(1), counts.get("plugin.channel0"));
+        assertEquals(Long.valueOf(1), counts.get("plugin.channel1"));
+        assertEquals(Long.valueOf(3), counts.get(BusMetrics.OTHER_CHANNELS));
+        assertEquals(3, bus.getMetrics().getChannelPublishRates().size());
+    }
+
+    @Test
+    public void test_publish_skipped() throws Exception {
+        // Nobody listening.
+        bus.publish(new SimpleMessage().setChannelName("jenkins.job").setEventName("job_run_started"));
+        assertEquals(1, bus.getMetrics().getSkippedCount());
+        assertEquals(0, bus.getMetrics().getPublishedCount());
+
+        MockSubscriber subscriber = new MockSubscriber();
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+        bus.publish(new SimpleMessage().setChannelName("jenkins.job").setEventName("job_run_started"));
+        subscriber.waitForMessageCount(1);
+        assertEquals(1, bus.getMetrics().getSkippedCount());
+        assertEquals(1, bus.getMetrics().getPublishedCount());
+
+        // A wildcard subscriber on a channel that does not exist yet.
+        MockSubscriber wildcardSubscriber = new MockSubscriber();
+        bus.subscribe2("jenkins.*", wildcardSubscriber, ACL.SYSTEM2, null);
+        bus.publish(new SimpleMessage().setChannelName("jenkins.agent").setEventName("agent_online"));
+        wildcardSubscriber.waitForMessageCount(1);
+        assertEquals(1, bus.getMetrics().getSkippedCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        // Histogram buckets are accurate to within 12.5%.
+        assertTrue("expected ~" + expected + " but was " + actual, Math.abs(expected - actual) <= expected / 8);
+    }
+}
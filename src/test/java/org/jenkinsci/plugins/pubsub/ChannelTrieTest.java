@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.security.ACL;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ChannelTrieTest {
+
+    @Test
+    public void test_is_pattern() {
+        assertTrue(ChannelTrie.isPattern("*"));
+        assertTrue(ChannelTrie.isPattern("job.*"));
+        assertTrue(ChannelTrie.isPattern("*.job"));
+        assertTrue(ChannelTrie.isPattern("jenkins.*.run"));
+        assertFalse(ChannelTrie.isPattern("job"));
+        assertFalse(ChannelTrie.isPattern("job*"));
+    }
+
+    @Test
+    public void test_match() {
+        ChannelTrie<String> trie = new ChannelTrie<>();
+        trie.add("*", "all");
+        trie.add("job.*", "job-tree");
+        trie.add("*.job", "any-job");
+        trie.add("jenkins.*.run", "runs");
+
+        assertEquals(List.of("all"), trie.match("job"));
+        assertEquals(Set.of("all", "job-tree"), Set.copyOf(trie.match("job.run")));
+        assertEquals(Set.of("all", "job-tree"), Set.copyOf(trie.match("job.run.step")));
+        assertEquals(Set.of("all", "any-job"), Set.copyOf(trie.match("jenkins.job")));
+        assertEquals(Set.of("all", "runs"), Set.copyOf(trie.match("jenkins.job.run")));
+        assertEquals(List.of("all"), trie.match("jenkins.job.run.step"));
+    }
+
+    @Test
+    public void test_remove() {
+        ChannelTrie<String> trie = new ChannelTrie<>();
+        trie.add("jenkins.*.run", "a");
+        trie.add("jenkins.*.run", "b");
+        assertEquals(List.of("a", "b"), trie.match("jenkins.job.run"));
+
+        assertTrue(trie.remove("jenkins.*.run", "a"));
+        assertFalse(trie.remove("jenkins.*.run", "a"));
+        assertFalse(trie.remove("jenkins.*", "b"));
+        assertEquals(List.of("b"), trie.match("jenkins.job.run"));
+
+        assertTrue(trie.remove("jenkins.*.run", "b"));
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void test_wildcard_subscription() {
+        GuavaPubsubBus bus = new GuavaPubsubBus();
+        try {
+            ChannelPublisher existing = bus.publisher("jenkins.job");
+            MockSubscriber subscriber = new MockSubscriber();
+            bus.subscribe2("jenkins.*", subscriber, ACL.SYSTEM2, null);
+
+            // Existing channels and channels created after subscribing.
+            existing.publish(new SimpleMessage().set("joba", "1"));
+            bus.publisher("jenkins.agent").publish(new SimpleMessage().set("agenta", "1"));
+            bus.publisher("other").publish(new SimpleMessage().set("othera", "1"));
+            subscriber.waitForMessageCount(2);
+            assertEquals(Set.of("jenkins.job", "jenkins.agent"), Set.of(
+                    subscriber.messages.get(0).getChannelName(), subscriber.messages.get(1).getChannelName()));
+
+            bus.unsubscribe("jenkins.*", subscriber);
+            existing.publish(new SimpleMessage().set("joba", "2"));
+            MockSubscriber direct = new MockSubscriber();
+            bus.subscribe2("jenkins.job", direct, ACL.SYSTEM2, null);
+            existing.publish(new SimpleMessage().set("joba", "3"));
+            direct.waitForMessageCount(1);
+            assertEquals(2, subscriber.messages.size());
+        } finally {
+            bus.shutdown();
+        }
+    }
+
+    @Test
+    public void test_has_subscribers_without_creating_channel() {
+        GuavaPubsubBus bus = new GuavaPubsubBus();
+        try {
+            assertFalse(bus.hasSubscribers("jenkins.agent"));
+            bus.subscribe2("jenkins.*", new MockSubscriber(), ACL.SYSTEM2, null);
+            assertTrue(bus.hasSubscribers("jenkins.agent"));
+            assertFalse(bus.hasSubscribers("other"));
+            // Checking didn't create the channels.
+            assertFalse(bus.getMetrics().getChannelPublishedCounts().containsKey("jenkins.agent"));
+            assertFalse(bus.getMetrics().getChannelPublishedCounts().containsKey("other"));
+        } finally {
+            bus.shutdown();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class EventBridgeTest {
+
+    private GuavaPubsubBus busA;
+    private GuavaPubsubBus busB;
+    private EventBridge bridgeA;
+    private EventBridge bridgeB;
+    private SocketAddress addressA;
+
+    @Before
+    public void startBridges() throws Exception {
+        busA = new GuavaPubsubBus();
+        busB = new GuavaPubsubBus();
+        bridgeA = new EventBridge(busA, Set.of("jenkins.job"), "secret", "http://a/", 10);
+        bridgeB = new EventBridge(busB, Set.of("jenkins.job"), "secret", "http://b/", 10);
+        addressA = bridgeA.listen(new InetSocketAddress("127.0.0.1", 0));
+        SocketAddress addressB = bridgeB.listen(new InetSocketAddress("127.0.0.1", 0));
+        bridgeA.connect(addressB);
+        bridgeB.connect(addressA);
+        waitForConnected(bridgeA);
+        waitForConnected(bridgeB);
+    }
+
+    @After
+    public void stop() {
+        bridgeA.close();
+        bridgeB.close();
+        busA.shutdown();
+        busB.shutdown();
+    }
+
+    @Test
+    public void test_forward_without_echo() throws Exception {
+        MockSubscriber subsA = new MockSubscriber();
+        MockSubscriber subsB = new MockSubscriber();
+        busA.subscribe2("jenkins.job", subsA, ACL.SYSTEM2, null);
+        busB.subscribe2("jenkins.job", subsB, ACL.SYSTEM2, null);
+
+        busB.publisher("jenkins.job").publish(new SimpleMessage().set("joba", "1"));
+        busB.publisher("jenkins.agent").publish(new SimpleMessage().set("agenta", "1"));
+
+        subsA.waitForMessageCount(1);
+        Message received = subsA.messages.get(0);
+        assertEquals("1", received.get("joba"));
+        assertEquals("http://b/", received.get(EventProps.Jenkins.jenkins_instance_url));
+
+        // Give an echo time to arrive, if there was going to be one.
+        Thread.sleep(200);
+        assertEquals(1, subsA.messages.size());
+        assertEquals(1, subsB.messages.size());
+    }
+
+    @Test
+    public void test_resume_after_disconnect() throws Exception {
+        MockSubscriber subsA = new MockSubscriber();
+        busA.subscribe2("jenkins.job", subsA, ACL.SYSTEM2, null);
+        ChannelPublisher publisher = busB.publisher("jenkins.job");
+
+        publisher.publish(new SimpleMessage().set("joba", "1"));
+        subsA.waitForMessageCount(1);
+
+        // Messages published while the connection is down are replayed from the history.
+        bridgeA.dropInboundConnections();
+        for (int i = 2; i <= 5; i++) {
+            publisher.publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+
+        subsA.waitForMessageCount(5);
+        Thread.sleep(200);
+        assertEquals(5, subsA.messages.size());
+        for (int i = 2; i <= 5; i++) {
+            String joba = Integer.toString(i);
+            assertTrue(subsA.messages.stream().anyMatch(message -> joba.equals(message.get("joba"))));
+        }
+    }
+
+    @Test
+    public void test_access_controlled_stays_access_controlled() throws Exception {
+        List<Message> republished = new CopyOnWriteArrayList<>();
+        busA.addSink(new MessageSink() {
+            @Override
+            public void onPublish(@NonNull Message message) {
+                republished.add(message);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        // A type the codec doesn't know, followed by a plain message.
+        ItemMessage itemMessage = new ItemMessage();
+        itemMessage.set(EventProps.Jenkins.jenkins_object_name, "a-job");
+        ChannelPublisher publisher = busB.publisher("jenkins.job");
+        publisher.publish(itemMessage);
+        publisher.publish(new SimpleMessage().set("joba", "1"));
+
+        long start = System.currentTimeMillis();
+        while (republished.size() < 2 && System.currentTimeMillis() < start + 10000) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, republished.size());
+        assertTrue(republished.get(0) instanceof EventBridge.BridgedMessage);
+        assertEquals("a-job", republished.get(0).get(EventProps.Jenkins.jenkins_object_name));
+        assertTrue(republished.get(1) instanceof SimpleMessage);
+    }
+
+    @Test
+    public void test_peer_restart() throws Exception {
+        MockSubscriber subsA = new MockSubscriber();
+        busA.subscribe2("jenkins.job", subsA, ACL.SYSTEM2, null);
+        for (int i = 1; i <= 3; i++) {
+            busB.publisher("jenkins.job").publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+        subsA.waitForMessageCount(3);
+
+        // B restarts, without a journal, so its sequence numbers start at 1 again.
+        bridgeB.close();
+        busB.shutdown();
+        busB = new GuavaPubsubBus();
+        bridgeB = new EventBridge(busB, Set.of("jenkins.job"), "secret", "http://b/", 10);
+        bridgeB.connect(addressA);
+        waitForConnected(bridgeB);
+        for (int i = 4; i <= 5; i++) {
+            busB.publisher("jenkins.job").publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+
+        subsA.waitForMessageCount(5);
+        for (int i = 4; i <= 5; i++) {
+            String joba = Integer.toString(i);
+            assertTrue(subsA.messages.stream().anyMatch(message -> joba.equals(message.get("joba"))));
+        }
+    }
+
+    @Test
+    public void test_unlisted_channel_not_republished() throws Exception {
+        MockSubscriber jobSubs = new MockSubscriber();
+        MockSubscriber agentSubs = new MockSubscriber();
+        busA.subscribe2("jenkins.job", jobSubs, ACL.SYSTEM2, null);
+        busA.subscribe2("jenkins.agent", agentSubs, ACL.SYSTEM2, null);
+
+        // C forwards a channel that A doesn't.
+        GuavaPubsubBus busC = new GuavaPubsubBus();
+        EventBridge bridgeC = new EventBridge(busC, Set.of("jenkins.job", "jenkins.agent"), "secret", "http://c/", 10);
+        try {
+            bridgeC.connect(addressA);
+            waitForConnected(bridgeC);
+            busC.publisher("jenkins.agent").publish(new SimpleMessage().set("agenta", "1"));
+            busC.publisher("jenkins.job").publish(new SimpleMessage().set("joba", "1"));
+
+            jobSubs.waitForMessageCount(1);
+            Thread.sleep(200);
+            assertEquals(0, agentSubs.messages.size());
+        } finally {
+            bridgeC.close();
+            busC.shutdown();
+        }
+    }
+
+    @Test
+    public void test_only_forwarded_channels_published() {
+        // The bridge doesn't make publishing on the other channels worthwhile.
+        assertTrue(busA.hasSubscribers("jenkins.job"));
+        assertFalse(busA.hasSubscribers("jenkins.agent"));
+    }
+
+    @Test
+    public void test_oversized_hello_rejected() throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.connect(addressA, 5000);
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(EventBridge.MAX_HELLO_SIZE + 1);
+            out.writeByte(EventBridge.FRAME_HELLO);
+            out.flush();
+            // Closed straight away, without waiting on the rest of the frame.
+            try {
+                assertEquals(-1, socket.getInputStream().read());
+            } catch (SocketException e) {
+                // Also closed.
+            }
+        }
+    }
+
+    @Test
+    public void test_parse_address() {
+        assertEquals(new InetSocketAddress("127.0.0.1", 9099), EventBridge.parseAddress("127.0.0.1:9099"));
+        assertEquals(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9099), EventBridge.parseAddress("9099"));
+        assertEquals("/tmp/pubsub.sock", EventBridge.parseAddress("unix:/tmp/pubsub.sock").toString());
+        try {
+            EventBridge.parseAddress("no-port");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_is_local() {
+        assertTrue(EventBridge.isLocal(EventBridge.parseAddress("127.0.0.1:9099")));
+        assertTrue(EventBridge.isLocal(EventBridge.parseAddress("9099")));
+        assertTrue(EventBridge.isLocal(EventBridge.parseAddress("unix:/tmp/pubsub.sock")));
+        assertFalse(EventBridge.isLocal(EventBridge.parseAddress("0.0.0.0:9099")));
+        assertFalse(EventBridge.isLocal(EventBridge.parseAddress("10.1.2.3:9099")));
+    }
+
+    private static void waitForConnected(EventBridge bridge) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (bridge.getConnectedPeerCount() == 0) {
+            if (System.currentTimeMillis() > start + 10000) {
+                fail("Timed out waiting on the bridge to connect.");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FilterEvaluator} benchmarks, with {@link Message#containsAll(java.util.Properties)} as the
+ * baseline for equality only filters.
+ * <p>
+ * Not run as part of the build. Run the {@link #main(String[])} method (after a test-compile).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventFilterBenchmark {
+
+    private Message message;
+    private EventFilter equalityFilter;
+    private FilterEvaluator equalityEvaluator;
+    private EventFilter mismatchFilter;
+    private FilterEvaluator mismatchEvaluator;
+    private FilterEvaluator conditionsEvaluator;
+
+    @Setup
+    public void setup() {
+        message = new RunMessage()
+                .setChannelName(Events.JobChannel.NAME)
+                .setEventName(Events.JobChannel.job_run_ended)
+                .set(EventProps.Jenkins.jenkins_instance_url, "https://jenkins.example.com/")
+                .set(EventProps.Jenkins.jenkins_event_timestamp, Long.toString(System.currentTimeMillis()))
+                .set(EventProps.Jenkins.jenkins_object_type, "org.jenkinsci.plugins.workflow.job.WorkflowRun")
+                .set(EventProps.Jenkins.jenkins_object_id, "1234")
+                .set(EventProps.Job.job_name, "folder/a-pipeline")
+                .set(EventProps.Job.job_run_queueId, "5678")
+                .set(EventProps.Job.job_run_status, "SUCCESS");
+        // A typical subscription filter. Matches the message.
+        equalityFilter = new EventFilter()
+                .setEventName(Events.JobChannel.job_run_ended)
+                .set(EventProps.Job.job_name, "folder/a-pipeline");
+        equalityEvaluator = FilterEvaluator.compile(equalityFilter);
+        // The same, for another job. Most subscribers reject most messages, so this is the common case.
+        mismatchFilter = new EventFilter()
+                .setEventName(Events.JobChannel.job_run_ended)
+                .set(EventProps.Job.job_name, "folder/b-pipeline");
+        mismatchEvaluator = FilterEvaluator.compile(mismatchFilter);
+        conditionsEvaluator = FilterEvaluator.compile(new EventFilter()
+                .setEventName(Events.JobChannel.job_run_ended)
+                .matches(EventProps.Job.job_name.name(), "folder/.*")
+                .in(EventProps.Job.job_run_status.name(), List.of("SUCCESS", "UNSTABLE"))
+                .range(EventProps.Job.job_run_queueId.name(), 1000, Long.MAX_VALUE));
+    }
+
+    @Benchmark
+    public boolean containsAll() {
+        return message.containsAll(equalityFilter);
+    }
+
+    @Benchmark
+    public boolean equality() {
+        return equalityEvaluator.test(message);
+    }
+
+    @Benchmark
+    public boolean containsAllMismatch() {
+        return message.containsAll(mismatchFilter);
+    }
+
+    @Benchmark
+    public boolean equalityMismatch() {
+        return mismatchEvaluator.test(message);
+    }
+
+    @Benchmark
+    public boolean conditions() {
+        return conditionsEvaluator.test(message);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EventFilterBenchmark.class.getName()).build()).run();
+    }
+}
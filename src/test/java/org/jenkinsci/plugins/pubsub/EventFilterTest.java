@@ -1,7 +1,10 @@
 package org.jenkinsci.plugins.pubsub;
 
+import hudson.security.ACL;
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class EventFilterTest {
@@ -13,4 +16,107 @@ public class EventFilterTest {
         // But an EventFilter should not.
         assertTrue(new EventFilter().isEmpty());
     }
+
+    @Test
+    public void test_empty_filter() {
+        assertNull(FilterEvaluator.compile(null));
+        assertNull(FilterEvaluator.compile(new EventFilter()));
+    }
+
+    @Test
+    public void test_equality() {
+        FilterEvaluator filter = FilterEvaluator.compile(new EventFilter().set("joba", "1").set("jobb", "2"));
+        Message message = new SimpleMessage().set("joba", "1").set("jobb", "2").set("jobc", "3");
+        assertTrue(filter.test(message));
+        assertEquals(message.containsAll(new EventFilter().set("joba", "1").set("jobb", "2")), filter.test(message));
+        assertFalse(filter.test(new SimpleMessage().set("joba", "1")));
+        assertFalse(filter.test(new SimpleMessage().set("joba", "1").set("jobb", "3")));
+    }
+
+    @Test
+    public void test_equality_values() {
+        // Interned (low cardinality property) values match on identity, others on their characters.
+        FilterEvaluator filter = FilterEvaluator.compile(new EventFilter()
+                .setEventName(Events.JobChannel.job_run_ended)
+                .set("joba", new String("folder/a-job")));
+        assertTrue(filter.test(new SimpleMessage().setEventName(new String("job_run_ended")).set("joba", new String("folder/a-job"))));
+        assertFalse(filter.test(new SimpleMessage().setEventName(Events.JobChannel.job_run_ended).set("joba", "folder/b-job")));
+        assertFalse(filter.test(new SimpleMessage().setEventName(Events.JobChannel.job_run_started).set("joba", "folder/a-job")));
+
+        // Equal hashes, different values.
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        filter = FilterEvaluator.compile(new EventFilter().set("joba", "Aa"));
+        assertTrue(filter.test(new SimpleMessage().set("joba", "Aa")));
+        assertFalse(filter.test(new SimpleMessage().set("joba", "BB")));
+    }
+
+    @Test
+    public void test_conditions() {
+        assertTrue(test(new EventFilter().startsWith("job_name", "folder/"), "job_name", "folder/a"));
+        assertFalse(test(new EventFilter().startsWith("job_name", "folder/"), "job_name", "other/a"));
+        assertFalse(test(new EventFilter().startsWith("job_name", "folder/"), "x", "folder/a"));
+
+        assertTrue(test(new EventFilter().matches("job_name", "folder/.*-pr"), "job_name", "folder/a-pr"));
+        assertFalse(test(new EventFilter().matches("job_name", "folder/.*-pr"), "job_name", "folder/a-pr/x"));
+
+        assertTrue(test(new EventFilter().in("job_run_status", List.of("FAILURE", "UNSTABLE")), "job_run_status", "FAILURE"));
+        assertFalse(test(new EventFilter().in("job_run_status", List.of("FAILURE", "UNSTABLE")), "job_run_status", "SUCCESS"));
+
+        assertTrue(test(new EventFilter().notEquals("job_run_status", "SUCCESS"), "job_run_status", "FAILURE"));
+        assertTrue(test(new EventFilter().notEquals("job_run_status", "SUCCESS"), "x", "SUCCESS"));
+        assertFalse(test(new EventFilter().notEquals("job_run_status", "SUCCESS"), "job_run_status", "SUCCESS"));
+
+        assertTrue(test(new EventFilter().range("job_run_queueId", 10, 20), "job_run_queueId", "10"));
+        assertTrue(test(new EventFilter().range("job_run_queueId", 10, 20), "job_run_queueId", "20"));
+        assertFalse(test(new EventFilter().range("job_run_queueId", 10, 20), "job_run_queueId", "21"));
+        assertFalse(test(new EventFilter().range("job_run_queueId", 10, Long.MAX_VALUE), "job_run_queueId", "abc"));
+    }
+
+    @Test
+    public void test_cheap_conditions_first() {
+        EventFilter.Condition expensive = new EventFilter.Condition("a") {
+            @Override
+            boolean test(String value) {
+                fail("Should not get this far.");
+                return false;
+            }
+
+            @Override
+            int cost() {
+                return 100;
+            }
+
+            @Override
+            Object argument() {
+                return "";
+            }
+        };
+        EventFilter filter = new EventFilter().set("joba", "1").startsWith("jobb", "x");
+        filter.conditions.add(0, expensive);
+        FilterEvaluator evaluator = FilterEvaluator.compile(filter);
+        assertFalse(evaluator.test(new SimpleMessage().set("joba", "2")));
+        assertFalse(evaluator.test(new SimpleMessage().set("joba", "1").set("jobb", "y")));
+    }
+
+    @Test
+    public void test_subscribe_with_conditions() {
+        GuavaPubsubBus bus = new GuavaPubsubBus();
+        try {
+            MockSubscriber subscriber = new MockSubscriber();
+            bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, new EventFilter().startsWith("joba", "a").range("jobb", 0, 10));
+
+            ChannelPublisher publisher = bus.publisher("jenkins.job");
+            publisher.publish(new SimpleMessage().set("joba", "b").set("jobb", "1"));
+            publisher.publish(new SimpleMessage().set("joba", "a").set("jobb", "11"));
+            publisher.publish(new SimpleMessage().set("joba", "a").set("jobb", "5"));
+            subscriber.waitForMessageCount(1);
+            assertEquals("5", subscriber.messages.get(0).get("jobb"));
+        } finally {
+            bus.shutdown();
+        }
+    }
+
+    private static boolean test(EventFilter filter, String name, String value) {
+        return FilterEvaluator.compile(filter).test(new SimpleMessage().set(name, value));
+    }
 }
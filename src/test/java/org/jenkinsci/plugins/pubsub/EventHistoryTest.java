@@ -0,0 +1,223 @@
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class EventHistoryTest {
+
+    private GuavaPubsubBus bus;
+
+    @Before
+    public void startBus() {
+        bus = new GuavaPubsubBus();
+    }
+
+    @After
+    public void stop() {
+        bus.shutdown();
+    }
+
+    @Test
+    public void test_bounded_by_count() {
+        EventHistory history = new EventHistory(10, Long.MAX_VALUE);
+        for (int i = 1; i <= 25; i++) {
+            history.add(newMessage(i, 1000 + i));
+        }
+        assertEquals(10, history.size());
+
+        List<Message> messages = history.from(EventCursor.afterSequence(0));
+        assertEquals(10, messages.size());
+        assertEquals(Long.valueOf(16), messages.get(0).getChannelSequence());
+        assertEquals(Long.valueOf(25), messages.get(9).getChannelSequence());
+
+        messages = history.from(EventCursor.afterSequence(20));
+        assertEquals(5, messages.size());
+        assertEquals(Long.valueOf(21), messages.get(0).getChannelSequence());
+
+        messages = history.from(EventCursor.fromTimestamp(1023));
+        assertEquals(3, messages.size());
+        assertEquals(Long.valueOf(23), messages.get(0).getChannelSequence());
+
+        assertTrue(history.from(EventCursor.afterSequence(25)).isEmpty());
+    }
+
+    @Test
+    public void test_bounded_by_bytes() {
+        // All of the messages added below are the same size as this one.
+        long messageSize = EventHistory.estimateSize(newMessage(10, 1010));
+        EventHistory history = new EventHistory(100, messageSize * 3);
+        for (int i = 10; i <= 20; i++) {
+            history.add(newMessage(i, 1000 + i));
+        }
+        assertEquals(3, history.size());
+        assertTrue(history.getBytes() <= messageSize * 3);
+    }
+
+    @Test
+    public void test_subscribe_from_cursor() {
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        MockSubscriber liveSubs = new MockSubscriber();
+        // Turns on the channel's history.
+        bus.subscribe2From("jenkins.job", liveSubs, ACL.SYSTEM2, null, EventCursor.afterSequence(0));
+
+        for (int i = 1; i <= 10; i++) {
+            publisher.publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+        liveSubs.waitForMessageCount(10);
+
+        // Resume after message 6, as if the connection had dropped there.
+        MockSubscriber resumedSubs = new MockSubscriber();
+        bus.subscribe2From("jenkins.job", resumedSubs, ACL.SYSTEM2, null, EventCursor.afterSequence(6));
+        publisher.publish(new SimpleMessage().set("joba", "11"));
+
+        resumedSubs.waitForMessageCount(5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Long.valueOf(7 + i), resumedSubs.messages.get(i).getChannelSequence());
+            assertEquals(Integer.toString(7 + i), resumedSubs.messages.get(i).getProperty("joba"));
+        }
+    }
+
+    @Test
+    public void test_subscribe_from_cursor_while_publishing() throws Exception {
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        MockSubscriber liveSubs = new MockSubscriber();
+        bus.subscribe2From("jenkins.job", liveSubs, ACL.SYSTEM2, null, EventCursor.afterSequence(0));
+        for (int i = 0; i < 200; i++) {
+            publisher.publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+        liveSubs.waitForMessageCount(200);
+
+        // Resume while several threads publish, so live messages are buffered during the
+        // replay, and not in sequence order.
+        int threadCount = 4;
+        int messagesPerThread = 200;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < messagesPerThread; i++) {
+                    publisher.publish(new SimpleMessage().set("jobb", Integer.toString(i)));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        MockSubscriber resumedSubs = new MockSubscriber() {
+            @Override
+            public void onMessage(@NonNull Message message) {
+                // Slow enough for the live messages to pile up.
+                if (messages.size() < 50) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.onMessage(message);
+            }
+        };
+        bus.subscribe2From("jenkins.job", resumedSubs, ACL.SYSTEM2, null, EventCursor.afterSequence(100));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int total = 200 + threadCount * messagesPerThread;
+        liveSubs.waitForMessageCount(total);
+        resumedSubs.waitForMessageCount(total - 100);
+        Thread.sleep(100);
+
+        // Every message after the cursor, and each of them once.
+        TreeSet<Long> sequences = new TreeSet<>();
+        for (Message message : resumedSubs.messages) {
+            assertTrue("duplicate " + message.getChannelSequence(), sequences.add(message.getChannelSequence()));
+        }
+        assertEquals(total - 100, sequences.size());
+        assertEquals(Long.valueOf(101), sequences.first());
+        assertEquals(Long.valueOf(total), sequences.last());
+    }
+
+    @Test
+    public void test_resume_after_all_subscribers_left() throws Exception {
+        // A plain subscriber turns the history on.
+        MockSubscriber subs = new MockSubscriber();
+        bus.subscribe2("jenkins.job", subs, ACL.SYSTEM2, null);
+        bus.publish(newJobMessage("1"));
+        subs.waitForMessageCount(1);
+        assertEquals(1, bus.getHistory("jenkins.job", EventCursor.afterSequence(0)).size());
+
+        // Every subscriber disconnects (e.g. a proxy restart), and messages are published meanwhile.
+        bus.unsubscribe("jenkins.job", subs);
+        assertTrue(bus.hasSubscribers("jenkins.job"));
+        bus.publish(newJobMessage("2"));
+        bus.publish(newJobMessage("3"));
+
+        // And resumes from where it was.
+        MockSubscriber resumedSubs = new MockSubscriber();
+        bus.subscribe2From("jenkins.job", resumedSubs, ACL.SYSTEM2, null, EventCursor.afterSequence(subs.messages.get(0).getChannelSequence()));
+        bus.publish(newJobMessage("4"));
+        resumedSubs.waitForMessageCount(3);
+        assertEquals("2", resumedSubs.messages.get(0).getProperty("joba"));
+        assertEquals("3", resumedSubs.messages.get(1).getProperty("joba"));
+        assertEquals("4", resumedSubs.messages.get(2).getProperty("joba"));
+    }
+
+    @Test
+    public void test_history_released() throws Exception {
+        bus.shutdown();
+        System.setProperty(EventHistory.class.getName() + ".RETAIN_SECONDS", "1");
+        try {
+            bus = new GuavaPubsubBus();
+        } finally {
+            System.clearProperty(EventHistory.class.getName() + ".RETAIN_SECONDS");
+        }
+
+        MockSubscriber subs = new MockSubscriber();
+        bus.subscribe2("jenkins.job", subs, ACL.SYSTEM2, null);
+        bus.publish(newJobMessage("1"));
+        subs.waitForMessageCount(1);
+
+        // Retained for a while after the last subscriber leaves, and then the channel has no receivers again.
+        bus.unsubscribe("jenkins.job", subs);
+        assertTrue(bus.hasSubscribers("jenkins.job"));
+        Thread.sleep(1100);
+        assertFalse(bus.hasSubscribers("jenkins.job"));
+        assertTrue(bus.getHistory("jenkins.job", EventCursor.afterSequence(0)).isEmpty());
+    }
+
+    @Test
+    public void test_from_timestamp_out_of_order() {
+        // The cursor is a position: everything from the first message at or after the
+        // timestamp, even if a later message has an earlier timestamp.
+        EventHistory history = new EventHistory(10, Long.MAX_VALUE);
+        history.add(newMessage(1, 1000));
+        history.add(newMessage(2, 1020));
+        history.add(newMessage(3, 1010));
+        history.add(newMessage(4, 1030));
+
+        List<Message> messages = history.from(EventCursor.fromTimestamp(1015));
+        assertEquals(3, messages.size());
+        assertEquals(Long.valueOf(2), messages.get(0).getChannelSequence());
+        assertEquals(Long.valueOf(3), messages.get(1).getChannelSequence());
+    }
+
+    private static Message newJobMessage(String joba) {
+        return new SimpleMessage()
+                .setChannelName("jenkins.job")
+                .setEventName("job_event")
+                .set("joba", joba);
+    }
+
+    private static Message newMessage(long sequence, long timestamp) {
+        return new SimpleMessage()
+                .set(EventProps.Jenkins.jenkins_channel_seq, Long.toString(sequence))
+                .set(EventProps.Jenkins.jenkins_event_timestamp, Long.toString(timestamp));
+    }
+}
@@ -0,0 +1,185 @@
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventJournalTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private File directory;
+    private EventJournal journal;
+
+    @Before
+    public void createJournal() throws IOException {
+        directory = Files.createTempDirectory("pubsub-journal").toFile();
+        journal = newJournal(Long.MAX_VALUE);
+    }
+
+    @After
+    public void closeJournal() {
+        journal.close();
+        deleteRecursive(directory);
+    }
+
+    @Test
+    public void test_resume_across_bus_restart() throws Exception {
+        System.setProperty(EventJournal.class.getName() + ".ENABLED", "true");
+        System.setProperty(EventJournal.class.getName() + ".DIR", new File(directory, "bus").getPath());
+        GuavaPubsubBus bus = new GuavaPubsubBus();
+        try {
+            MockSubscriber subs = new MockSubscriber();
+            bus.subscribe2("jenkins.job", subs, ACL.SYSTEM2, null);
+            for (int i = 1; i <= 5; i++) {
+                bus.publisher("jenkins.job").publish(new SimpleMessage().set("joba", Integer.toString(i)));
+            }
+            subs.waitForMessageCount(5);
+            bus.shutdown();
+
+            // The restarted bus has no history, so a client resuming after message 2 gets the rest from the journal.
+            bus = new GuavaPubsubBus();
+            MockSubscriber resumedSubs = new MockSubscriber();
+            bus.subscribe2From("jenkins.job", resumedSubs, ACL.SYSTEM2, null, EventCursor.afterSequence(2));
+            bus.publisher("jenkins.job").publish(new SimpleMessage().set("joba", "6"));
+            resumedSubs.waitForMessageCount(4);
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Long.valueOf(3 + i), resumedSubs.messages.get(i).getChannelSequence());
+                assertEquals(Integer.toString(3 + i), resumedSubs.messages.get(i).getProperty("joba"));
+            }
+        } finally {
+            bus.shutdown();
+            System.clearProperty(EventJournal.class.getName() + ".ENABLED");
+            System.clearProperty(EventJournal.class.getName() + ".DIR");
+        }
+    }
+
+    @Test
+    public void test_append_and_read() throws Exception {
+        long start = System.currentTimeMillis();
+        publish(1, 1000, start);
+
+        assertEquals(1000, journal.getLastSequence("jenkins.job"));
+        List<Message> messages = read(1);
+        assertEquals(1000, messages.size());
+        assertEquals("1", messages.get(0).get(EventProps.Jenkins.jenkins_channel_seq));
+        assertEquals("job-0", messages.get(0).get(EventProps.Job.job_name));
+        assertEquals("jenkins.job", messages.get(0).getChannelName());
+
+        // From a sequence number ...
+        messages = read(501);
+        assertEquals(500, messages.size());
+        assertEquals(Long.valueOf(501), messages.get(0).getChannelSequence());
+
+        // From a timestamp ...
+        assertEquals(Long.valueOf(751), journal.findSequence("jenkins.job", start + 750));
+        assertNull(journal.findSequence("jenkins.job", start + 2000));
+
+        // Unknown channel
+        assertEquals(0, journal.getLastSequence("jenkins.agent"));
+    }
+
+    @Test
+    public void test_reopen() throws Exception {
+        publish(1, 100, System.currentTimeMillis());
+        journal.close();
+
+        journal = newJournal(Long.MAX_VALUE);
+        assertEquals(100, journal.getLastSequence("jenkins.job"));
+        publish(101, 100, System.currentTimeMillis());
+        List<Message> messages = read(1);
+        assertEquals(200, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(Long.valueOf(i + 1), messages.get(i).getChannelSequence());
+        }
+    }
+
+    @Test
+    public void test_retention() throws Exception {
+        journal.close();
+        journal = newJournal(4 * SEGMENT_SIZE);
+
+        publish(1, 5000, System.currentTimeMillis());
+        File channelDir = new File(directory, "jenkins.job");
+        File[] segments = channelDir.listFiles();
+        assertNotNull(segments);
+        assertTrue(segments.length <= 4);
+
+        // The oldest messages are gone. Reading starts at the oldest one still there.
+        List<Message> messages = read(1);
+        assertTrue(messages.size() < 5000);
+        assertEquals(Long.valueOf(5000), messages.get(messages.size() - 1).getChannelSequence());
+    }
+
+    @Test
+    public void test_dot_channel_names() throws Exception {
+        assertEquals("jenkins.job", EventJournal.toDirectoryName("jenkins.job"));
+        assertEquals("%2E", EventJournal.toDirectoryName("."));
+        assertEquals("%2E.", EventJournal.toDirectoryName(".."));
+
+        for (String channelName : new String[] {".", ".."}) {
+            journal.onPublish(new SimpleMessage()
+                    .setChannelName(channelName)
+                    .setEventName("dots")
+                    .set(EventProps.Jenkins.jenkins_channel_seq, "1"));
+        }
+        assertTrue(journal.awaitWritten(10000));
+
+        // Each channel gets a directory of its own, inside the journal directory.
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        assertEquals(2, files.length);
+        for (File file : files) {
+            assertTrue(file.isDirectory());
+        }
+        for (String channelName : new String[] {".", ".."}) {
+            List<Message> messages = new ArrayList<>();
+            journal.read(channelName, 1, messages::add);
+            assertEquals(1, messages.size());
+            assertEquals(channelName, messages.get(0).getChannelName());
+        }
+    }
+
+    private EventJournal newJournal(long maxBytes) {
+        return new EventJournal(directory, SEGMENT_SIZE, maxBytes, TimeUnit.DAYS.toMillis(1), 10000);
+    }
+
+    private void publish(long fromSequence, int count, long startTimestamp) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            Message message = new SimpleMessage()
+                    .setChannelName("jenkins.job")
+                    .setEventName(Events.JobChannel.job_run_started)
+                    .set(EventProps.Job.job_name, "job-" + i)
+                    .set(EventProps.Jenkins.jenkins_event_timestamp, Long.toString(startTimestamp + i))
+                    .set(EventProps.Jenkins.jenkins_channel_seq, Long.toString(fromSequence + i));
+            journal.onPublish(message);
+        }
+        assertTrue(journal.awaitWritten(10000));
+    }
+
+    private List<Message> read(long fromSequence) {
+        List<Message> messages = new ArrayList<>();
+        journal.read("jenkins.job", fromSequence, messages::add);
+        return messages;
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,206 @@
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExecutorPoolTest {
+
+    private static final String PREFIX = GuavaPubsubBus.class.getName() + ".";
+
+    private GuavaPubsubBus bus;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void stop() {
+        release.countDown();
+        if (bus != null) {
+            bus.shutdown();
+        }
+        System.clearProperty(PREFIX + "POOLS");
+        System.clearProperty(PREFIX + "POOL.default.THREADS");
+        System.clearProperty(PREFIX + "POOL.default.QUEUE_SIZE");
+        System.clearProperty(PREFIX + "POOL.chatty.CHANNELS");
+        System.clearProperty(PREFIX + "POOL.chatty.THREADS");
+        System.clearProperty(PREFIX + "POOL.chatty.QUEUE_SIZE");
+    }
+
+    @Test
+    public void test_channel_assignments() {
+        assertEquals("job", ExecutorPool.getChannelAssignments().get(Events.JobChannel.NAME));
+
+        System.setProperty(PREFIX + "POOLS", "job, chatty");
+        System.setProperty(PREFIX + "POOL.chatty.CHANNELS", "plugin.a,plugin.b");
+        assertEquals(3, ExecutorPool.getNames().size());
+        assertEquals(ExecutorPool.DEFAULT, ExecutorPool.getNames().get(0));
+        assertEquals("chatty", ExecutorPool.getChannelAssignments().get("plugin.b"));
+        assertNull(ExecutorPool.getChannelAssignments().get("jenkins.agent"));
+    }
+
+    @Test
+    public void test_flood_does_not_block_job_channel() throws Exception {
+        System.setProperty(PREFIX + "POOL.default.THREADS", "1");
+        bus = new GuavaPubsubBus();
+
+        // Tie up the default pool's only thread.
+        BlockingSubscriber chattySubscriber = new BlockingSubscriber();
+        bus.subscribe2("plugin.chatty", chattySubscriber, ACL.SYSTEM2, null);
+        ChannelPublisher chattyPublisher = bus.publisher("plugin.chatty");
+        for (int i = 0; i < 100; i++) {
+            chattyPublisher.publish(new SimpleMessage().set("i", Integer.toString(i)));
+        }
+        assertTrue(chattySubscriber.started.await(10, TimeUnit.SECONDS));
+
+        // The job channel has a pool of its own.
+        MockSubscriber jobSubscriber = new MockSubscriber();
+        bus.subscribe2(Events.JobChannel.NAME, jobSubscriber, ACL.SYSTEM2, null);
+        bus.publisher(Events.JobChannel.NAME).publish(new SimpleMessage().set("job_name", "a"));
+        jobSubscriber.waitForMessageCount(1);
+
+        assertTrue(bus.getMetrics().getPoolQueueDepths().get(ExecutorPool.DEFAULT) > 0);
+        assertEquals(Integer.valueOf(0), bus.getMetrics().getPoolQueueDepths().get(ExecutorPool.JOB));
+        assertEquals(1.0, bus.getMetrics().getPoolUtilization().get(ExecutorPool.DEFAULT), 0.0);
+    }
+
+    @Test
+    public void test_bounded_queue_rejects() throws Exception {
+        System.setProperty(PREFIX + "POOLS", "job,chatty");
+        System.setProperty(PREFIX + "POOL.chatty.CHANNELS", "plugin.chatty");
+        System.setProperty(PREFIX + "POOL.chatty.THREADS", "1");
+        System.setProperty(PREFIX + "POOL.chatty.QUEUE_SIZE", "1");
+        bus = new GuavaPubsubBus();
+
+        BlockingSubscriber subscriber = new BlockingSubscriber();
+        bus.subscribe2("plugin.chatty", subscriber, ACL.SYSTEM2, null);
+        ChannelPublisher publisher = bus.publisher("plugin.chatty");
+        // One running, one queued and the rest rejected.
+        for (int i = 0; i < 5; i++) {
+            publisher.publish(new SimpleMessage().set("i", Integer.toString(i)));
+        }
+        assertTrue(subscriber.started.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Long.valueOf(3), bus.getMetrics().getPoolRejectedCounts().get("chatty"));
+        assertEquals(Long.valueOf(0), bus.getMetrics().getPoolRejectedCounts().get(ExecutorPool.DEFAULT));
+        assertEquals(3, bus.getMetrics().getExecutorRejectedCount());
+    }
+
+    @Test
+    public void test_priority_schedule() {
+        MessagePriority[] schedule = ExecutorPool.schedule();
+        int[] counts = new int[MessagePriority.values().length];
+        for (MessagePriority priority : schedule) {
+            counts[priority.ordinal()]++;
+        }
+        for (MessagePriority priority : MessagePriority.values()) {
+            assertEquals(priority.weight, counts[priority.ordinal()]);
+        }
+        assertEquals(MessagePriority.HIGH, schedule[0]);
+    }
+
+    @Test
+    public void test_priority_dispatch() throws Exception {
+        ExecutorPool pool = ExecutorPool.create(1, 0, false).get(ExecutorPool.DEFAULT);
+        try {
+            // Tie up the only thread, so everything else waits.
+            CountDownLatch started = new CountDownLatch(1);
+            pool.execute(MessagePriority.NORMAL, () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            List<MessagePriority> dispatched = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(60);
+            for (int i = 0; i < 20; i++) {
+                pool.execute(MessagePriority.LOW, () -> { dispatched.add(MessagePriority.LOW); done.countDown(); });
+            }
+            for (int i = 0; i < 40; i++) {
+                pool.execute(MessagePriority.HIGH, () -> { dispatched.add(MessagePriority.HIGH); done.countDown(); });
+            }
+            release.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            // The high priority tasks overtake the low priority ones, but not all of them.
+            assertEquals(MessagePriority.HIGH, dispatched.get(0));
+            int firstLow = dispatched.indexOf(MessagePriority.LOW);
+            assertTrue("First low priority task at " + firstLow, firstLow > 0 && firstLow < ExecutorPool.schedule().length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void test_shed_only_counted_when_dropped() throws Exception {
+        System.setProperty(PREFIX + "POOL.default.QUEUE_SIZE", "1");
+        ExecutorPool pool = ExecutorPool.create(1, 0, false).get(ExecutorPool.DEFAULT);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            pool.execute(MessagePriority.NORMAL, () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // A delivery that other tasks will complete, so shedding it isn't a drop.
+            pool.execute(MessagePriority.LOW, new ExecutorPool.DeliveryTask() {
+                @Override
+                public boolean shed() {
+                    return false;
+                }
+
+                @Override
+                public void run() {
+                }
+            });
+            Runnable task = () -> { };
+            try {
+                pool.execute(MessagePriority.NORMAL, task);
+                fail("Expected RejectedExecutionException");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertEquals(0, pool.getRejectedCount());
+            try {
+                pool.execute(MessagePriority.NORMAL, task);
+                fail("Expected RejectedExecutionException");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertEquals(1, pool.getRejectedCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private class BlockingSubscriber implements ChannelSubscriber {
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        @Override
+        public void onMessage(@NonNull Message message) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
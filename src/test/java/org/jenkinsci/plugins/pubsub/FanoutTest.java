@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FanoutTest {
+
+    private GuavaPubsubBus bus;
+
+    @Before
+    public void startBus() {
+        bus = new GuavaPubsubBus();
+    }
+
+    @After
+    public void stop() {
+        bus.shutdown();
+    }
+
+    @Test
+    public void test_large_fanout() throws InterruptedException {
+        List<MockSubscriber> subscribers = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            MockSubscriber subscriber;
+            if (i % 100 == 0) {
+                // A failing subscriber must not stop delivery to the rest of its chunk.
+                subscriber = new MockSubscriber() {
+                    @Override
+                    public void onMessage(@NonNull Message message) {
+                        super.onMessage(message);
+                        throw new IllegalStateException("Subscriber failure, as expected by the test.");
+                    }
+                };
+            } else {
+                subscriber = new MockSubscriber();
+            }
+            bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+            subscribers.add(subscriber);
+        }
+
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        publisher.publish(new SimpleMessage().set("joba", "1"));
+        publisher.publish(new SimpleMessage().set("joba", "2"));
+
+        for (MockSubscriber subscriber : subscribers) {
+            subscriber.waitForMessageCount(2);
+        }
+
+        // Unsubscribed subscribers no longer get messages.
+        MockSubscriber unsubscribed = subscribers.get(1);
+        bus.unsubscribe("jenkins.job", unsubscribed);
+        publisher.publish(new SimpleMessage().set("joba", "3"));
+        subscribers.get(2).waitForMessageCount(3);
+        Thread.sleep(200);
+        assertEquals(2, unsubscribed.messages.size());
+    }
+}
@@ -7,6 +7,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.util.Set;
+
 import static org.junit.Assert.*;
 
 /**
@@ -77,6 +79,41 @@ public class GuavaPubsubBusItemTest {
         assertEquals("joba", subs.messages.get(0).getProperty("joba"));
     }
 
+    @Test
+    public void test_event_names() throws InterruptedException {
+        User alice = User.get("alice");
+
+        ChannelPublisher jobPublisher = bus.publisher("jenkins.job");
+        MockSubscriber runSubs = new MockSubscriber();
+        MockSubscriber allSubs = new MockSubscriber();
+
+        // Subscribers ...
+        bus.subscribe2("jenkins.job", runSubs, alice.impersonate2(), null,
+                Set.of(Events.JobChannel.job_run_started.name(), Events.JobChannel.job_run_ended.name()));
+        bus.subscribe2("jenkins.job", allSubs, alice.impersonate2(), null, null);
+
+        // Publish ...
+        jobPublisher.publish(new SimpleMessage().setEventName(Events.JobChannel.job_run_started)); // Should get delivered
+        jobPublisher.publish(new SimpleMessage().setEventName(Events.JobChannel.job_crud_updated)); // Should not get delivered
+        jobPublisher.publish(new SimpleMessage().setEventName(Events.JobChannel.job_run_ended)); // Should get delivered
+
+        // Check receipt ...
+        allSubs.waitForMessageCount(3);
+        runSubs.waitForMessageCount(2);
+        Thread.sleep(200);
+        assertEquals(2, runSubs.messages.size());
+        for (Message message : runSubs.messages) {
+            assertNotEquals(Events.JobChannel.job_crud_updated.name(), message.getEventName());
+        }
+
+        // And unsubscribing should remove it from all of the event dispatch lists.
+        bus.unsubscribe("jenkins.job", runSubs);
+        jobPublisher.publish(new SimpleMessage().setEventName(Events.JobChannel.job_run_started));
+        allSubs.waitForMessageCount(4);
+        Thread.sleep(200);
+        assertEquals(2, runSubs.messages.size());
+    }
+
     @Test
     public void test_has_permissions() throws InterruptedException {
         User alice = User.get("alice");
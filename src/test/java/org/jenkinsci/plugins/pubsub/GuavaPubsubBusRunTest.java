@@ -14,7 +14,7 @@ import org.jvnet.hudson.test.MockAuthorizationStrategy;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
@@ -33,6 +33,13 @@ public class GuavaPubsubBusRunTest {
         jenkins.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy().grant(Job.READ, Job.CREATE).everywhere().to("alice"));
     }
     
+    @Test
+    public void test_startup_reported() {
+        PubsubBus bus = PubsubBus.getBus();
+        assertTrue(bus instanceof GuavaPubsubBus);
+        assertTrue(((GuavaPubsubBus) bus).getMetrics().getStartupMillis() > 0);
+    }
+
     @Test
     public void test_Run() throws Exception {
         final PubsubBus bus = PubsubBus.getBus();
@@ -76,16 +83,13 @@ public class GuavaPubsubBusRunTest {
             QueueTaskMessage queueMessage = (QueueTaskMessage) aliceSubs.messages.get(1);
             RunMessage runMessage = (RunMessage) aliceSubs.messages.get(4);
 
-            // The domain model object instances should not be on the messages...
-            assertNull(queueMessage.jobChannelItem);
-            assertNull(runMessage.jobChannelItem);
-            assertNull(runMessage.run);
-            // But calling the getter methods should result in them being looked up...
-            queueMessage.getJobChannelItem();
-            runMessage.getRun();
+            // The domain model object instances resolved on the published messages should
+            // be carried over to the delivered clones, so they are not looked up again...
             assertNotNull(queueMessage.jobChannelItem);
+            assertNotNull(queueMessage.getQueueItem());
             assertNotNull(runMessage.jobChannelItem);
             assertNotNull(runMessage.run);
+            assertSame(runMessage.run, runMessage.getRun());
             assertEquals(queueMessage.jobChannelItem, runMessage.jobChannelItem);
             
             // And check that the queue Ids match
@@ -39,8 +39,8 @@ public final class ItemMessage extends AccessControlledMessage<ItemMessage> {
     
     private static final long serialVersionUID = -1L;
 
-    transient Item messageItem;
-    private transient boolean messageItemLookupComplete = false;
+    transient volatile Item messageItem;
+    private transient volatile boolean messageItemLookupComplete = false;
 
     /**
      * Create a plain message instance.
@@ -82,19 +82,24 @@ public final class ItemMessage extends AccessControlledMessage<ItemMessage> {
      * or {code null} if the message is not associated with a
      * Jenkins {@link Item}.
      */
-    protected synchronized @CheckForNull AccessControlled getAccessControlled() {
-        if (messageItemLookupComplete || messageItem != null) {
+    protected @CheckForNull AccessControlled getAccessControlled() {
+        Item item = messageItem;
+        if (item != null) {
+            return item;
+        }
+        if (messageItemLookupComplete) {
             return messageItem;
         }
-        
+
         try {
             String itemName = getObjectName();
             if (itemName != null) {
-                messageItem = Jenkins.get().getItemByFullName(itemName);
+                item = Jenkins.get().getItemByFullName(itemName);
+                messageItem = item;
             }
         } finally {
             messageItemLookupComplete = true;
         }
-        return messageItem;
+        return item;
     }
 }
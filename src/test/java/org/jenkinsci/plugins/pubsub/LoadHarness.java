@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scenario driven {@link GuavaPubsubBus} load harness.
+ * <p>
+ * Each scenario runs on a fresh bus and reports the sustained publish and delivery throughput, and the
+ * publish to deliver latency percentiles, as one JSON object per line, on stdout and appended to
+ * <code>target/load-results.jsonl</code> (or the file named by the <code>out</code> system property),
+ * so the results of different runs can be compared.
+ * <p>
+ * Not run as part of the build. Run the {@link #main(String[])} method (after a test-compile) with the
+ * names of the scenarios to run (default all of the {@link #SCENARIOS predefined scenarios}) and/or
+ * <code>key=value</code> scenario parameter overrides, applied to all of the scenarios run e.g.
+ * <pre>
+ *     LoadHarness throughput filtered handlerMicros=50
+ * </pre>
+ * Scenario parameters:
+ * <ul>
+ *     <li><code>publishers</code>: The number of publishing threads.</li>
+ *     <li><code>messages</code>: The number of messages published by each publisher.</li>
+ *     <li><code>rate</code>: Max messages per second, per publisher, 0 for no limit.</li>
+ *     <li><code>subscribers</code>: The number of subscribers, spread evenly over the channels.</li>
+ *     <li><code>channels</code>: The number of channels. Publishers publish on each in turn.</li>
+ *     <li><code>selectivity</code>: The share (0 to 1) of a channel's subscribers whose filter matches a
+ *     message, 1 for no filters.</li>
+ *     <li><code>acl</code>: Publish access controlled messages (checked for each subscriber) rather than plain ones.</li>
+ *     <li><code>handlerMicros</code>: The time each subscriber spends handling a message (busy, not sleeping).</li>
+ * </ul>
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class LoadHarness {
+
+    private static final String KEY = "load_key";
+    private static final String PUBLISH_NANOS = "load_publish_nanos";
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final Map<String, Scenario> SCENARIOS = new LinkedHashMap<>();
+
+    static {
+        // One message to a very large number of subscribers.
+        SCENARIOS.put("fanout", new Scenario("fanout").set("publishers", 1).set("messages", 200).set("subscribers", 20000));
+        // Lots of messages, spread over a few channels.
+        SCENARIOS.put("throughput", new Scenario("throughput").set("publishers", 4).set("messages", 50000).set("subscribers", 100).set("channels", 4));
+        // Most subscribers filter out most messages.
+        SCENARIOS.put("filtered", new Scenario("filtered").set("publishers", 4).set("messages", 20000).set("subscribers", 1000).set("selectivity", 0.01));
+        // Access controlled messages.
+        SCENARIOS.put("acl", new Scenario("acl").set("publishers", 2).set("messages", 20000).set("subscribers", 200).set("acl", true));
+        // Subscribers that take a while over each message, at a steady publish rate.
+        SCENARIOS.put("slow-handlers", new Scenario("slow-handlers").set("publishers", 2).set("messages", 5000).set("rate", 1000).set("subscribers", 50).set("handlerMicros", 200));
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<>();
+        Map<String, String> overrides = new LinkedHashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                overrides.put(arg.substring(0, equals), arg.substring(equals + 1));
+            } else if (SCENARIOS.containsKey(arg)) {
+                names.add(arg);
+            } else {
+                throw new IllegalArgumentException("Unknown scenario '" + arg + "'. Known scenarios: " + SCENARIOS.keySet());
+            }
+        }
+        if (names.isEmpty()) {
+            names.addAll(SCENARIOS.keySet());
+        }
+
+        File out = new File(System.getProperty("out", "target/load-results.jsonl"));
+        if (out.getParentFile() != null) {
+            out.getParentFile().mkdirs();
+        }
+        try (Writer writer = new FileWriter(out, true)) {
+            for (String name : names) {
+                Scenario scenario = SCENARIOS.get(name).copy();
+                overrides.forEach(scenario::set);
+                String result = run(scenario).toJSON();
+                System.out.println(result);
+                writer.write(result);
+                writer.write('\n');
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * Run a scenario on a fresh bus.
+     * @param scenario The scenario.
+     * @return The scenario result.
+     */
+    static @NonNull Result run(@NonNull Scenario scenario) throws InterruptedException {
+        int publishers = scenario.getInt("publishers");
+        int messages = scenario.getInt("messages");
+        int rate = scenario.getInt("rate");
+        int subscriberCount = scenario.getInt("subscribers");
+        int channels = Math.max(1, scenario.getInt("channels"));
+        double selectivity = scenario.getDouble("selectivity");
+        boolean acl = scenario.getBoolean("acl");
+        long handlerNanos = TimeUnit.MICROSECONDS.toNanos(scenario.getInt("handlerMicros"));
+        // Each subscriber filters on one of "keys" values, so a message (with one of those values) matches
+        // 1 in "keys" of the subscribers.
+        int keys = (selectivity < 1 ? (int) Math.max(1, Math.round(1 / Math.max(selectivity, 0.000001))) : 0);
+
+        GuavaPubsubBus bus = new GuavaPubsubBus();
+        try {
+            LatencyHistogram latency = new LatencyHistogram();
+            LongAdder delivered = new LongAdder();
+            LongAccumulator lastDelivery = new LongAccumulator(Long::max, 0);
+            // The number of subscribers per channel, for each key (or just [0] if not filtering).
+            long[][] matching = new long[channels][Math.max(1, keys)];
+
+            for (int i = 0; i < subscriberCount; i++) {
+                int channel = i % channels;
+                int key = (keys > 0 ? (i / channels) % keys : 0);
+                matching[channel][key]++;
+                ChannelSubscriber subscriber = message -> {
+                    if (handlerNanos > 0) {
+                        long end = System.nanoTime() + handlerNanos;
+                        while (System.nanoTime() < end) {
+                            Thread.onSpinWait();
+                        }
+                    }
+                    long now = System.nanoTime();
+                    latency.record(now - Long.parseLong(message.get(PUBLISH_NANOS)));
+                    lastDelivery.accumulate(now);
+                    delivered.increment();
+                };
+                EventFilter filter = (keys > 0 ? new EventFilter().set(KEY, Integer.toString(key)) : null);
+                bus.subscribe2(channelName(channel), subscriber, ACL.SYSTEM2, filter);
+            }
+
+            MockItem item = new MockItem("load-item").setACL(MockItem.YES_ACL);
+            AtomicLong expected = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(publishers);
+            long start = System.nanoTime();
+            for (int p = 0; p < publishers; p++) {
+                int publisher = p;
+                Thread thread = new Thread(() -> {
+                    try {
+                        long interval = (rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0);
+                        long next = System.nanoTime();
+                        for (int i = 0; i < messages; i++) {
+                            if (interval > 0) {
+                                while (System.nanoTime() < next) {
+                                    Thread.onSpinWait();
+                                }
+                                next += interval;
+                            }
+                            int channel = (publisher + i) % channels;
+                            int key = (keys > 0 ? (publisher * messages + i) % keys : 0);
+                            expected.addAndGet(matching[channel][key]);
+                            Message message = (acl ? new ItemMessage(item) : new SimpleMessage());
+                            message.setEventName("load_event").set(KEY, Integer.toString(key));
+                            message.set(PUBLISH_NANOS, Long.toString(System.nanoTime()));
+                            bus.publisher(channelName(channel)).publish(message);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }, "LoadHarness.publisher-" + p);
+                thread.start();
+            }
+            done.await();
+            long publishEnd = System.nanoTime();
+
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (delivered.sum() < expected.get() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            Result result = new Result(scenario);
+            result.published = (long) publishers * messages;
+            result.expected = expected.get();
+            result.delivered = delivered.sum();
+            result.publishNanos = publishEnd - start;
+            result.deliveryNanos = Math.max(lastDelivery.get(), publishEnd) - start;
+            result.latency = latency;
+            return result;
+        } finally {
+            bus.shutdown();
+        }
+    }
+
+    private static String channelName(int channel) {
+        return "load.channel" + channel;
+    }
+
+    /**
+     * Scenario parameters.
+     */
+    static final class Scenario {
+        private final String name;
+        private final Map<String, String> params = new LinkedHashMap<>();
+
+        Scenario(@NonNull String name) {
+            this.name = name;
+            params.put("publishers", "1");
+            params.put("messages", "1000");
+            params.put("rate", "0");
+            params.put("subscribers", "1");
+            params.put("channels", "1");
+            params.put("selectivity", "1.0");
+            params.put("acl", "false");
+            params.put("handlerMicros", "0");
+        }
+
+        @NonNull Scenario set(@NonNull String param, @NonNull Object value) {
+            if (!params.containsKey(param)) {
+                throw new IllegalArgumentException("Unknown scenario parameter '" + param + "'. Known parameters: " + params.keySet());
+            }
+            params.put(param, value.toString());
+            return this;
+        }
+
+        int getInt(@NonNull String param) {
+            return Integer.parseInt(params.get(param));
+        }
+
+        double getDouble(@NonNull String param) {
+            return Double.parseDouble(params.get(param));
+        }
+
+        boolean getBoolean(@NonNull String param) {
+            return Boolean.parseBoolean(params.get(param));
+        }
+
+        @NonNull Scenario copy() {
+            Scenario copy = new Scenario(name);
+            copy.params.putAll(params);
+            return copy;
+        }
+    }
+
+    /**
+     * Scenario result.
+     */
+    static final class Result {
+        private final Scenario scenario;
+        long published;
+        long expected;
+        long delivered;
+        long publishNanos;
+        long deliveryNanos;
+        LatencyHistogram latency;
+
+        private Result(@NonNull Scenario scenario) {
+            this.scenario = scenario;
+        }
+
+        double getPublishRate() {
+            return published / seconds(publishNanos);
+        }
+
+        double getDeliveryRate() {
+            return delivered / seconds(deliveryNanos);
+        }
+
+        @NonNull String toJSON() {
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"scenario\":\"").append(scenario.name).append('"');
+            json.append(",\"timestamp\":").append(System.currentTimeMillis());
+            json.append(",\"java\":\"").append(System.getProperty("java.version")).append('"');
+            json.append(",\"processors\":").append(Runtime.getRuntime().availableProcessors());
+            json.append(",\"params\":{");
+            String separator = "";
+            for (Map.Entry<String, String> param : scenario.params.entrySet()) {
+                json.append(separator).append('"').append(param.getKey()).append("\":");
+                String value = param.getValue();
+                json.append(value.matches("-?[0-9.]+|true|false") ? value : '"' + value + '"');
+                separator = ",";
+            }
+            json.append('}');
+            json.append(",\"published\":").append(published);
+            json.append(",\"expected\":").append(expected);
+            json.append(",\"delivered\":").append(delivered);
+            json.append(",\"publishMillis\":").append(format(millis(publishNanos)));
+            json.append(",\"deliveryMillis\":").append(format(millis(deliveryNanos)));
+            json.append(",\"publishRate\":").append(format(getPublishRate()));
+            json.append(",\"deliveryRate\":").append(format(getDeliveryRate()));
+            json.append(",\"latencyMillis\":{");
+            json.append("\"mean\":").append(format(millis(latency.getMean())));
+            json.append(",\"p50\":").append(format(millis(latency.getPercentile(0.5))));
+            json.append(",\"p99\":").append(format(millis(latency.getPercentile(0.99))));
+            json.append(",\"p999\":").append(format(millis(latency.getPercentile(0.999))));
+            json.append(",\"max\":").append(format(millis(latency.getMax())));
+            json.append("}}");
+            return json.toString();
+        }
+
+        private static double seconds(long nanos) {
+            return Math.max(1, nanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+
+        private static double millis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        private static String format(double value) {
+            return String.format(Locale.ROOT, "%.3f", value);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pubsub;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MessageCodec} encode/decode benchmarks, with {@link Message#toJSON()} as the baseline.
+ * <p>
+ * Not run as part of the build. Run the {@link #main(String[])} method (after a test-compile).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private Message message;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() {
+        // A typical run event.
+        message = new RunMessage()
+                .setChannelName(Events.JobChannel.NAME)
+                .setEventName(Events.JobChannel.job_run_ended)
+                .set(EventProps.Jenkins.jenkins_instance_url, "https://jenkins.example.com/")
+                .set(EventProps.Jenkins.jenkins_event_timestamp, Long.toString(System.currentTimeMillis()))
+                .set(EventProps.Jenkins.jenkins_event_uuid, UUID.randomUUID().toString())
+                .set(EventProps.Jenkins.jenkins_object_type, "org.jenkinsci.plugins.workflow.job.WorkflowRun")
+                .set(EventProps.Jenkins.jenkins_object_name, "#1234")
+                .set(EventProps.Jenkins.jenkins_object_id, "1234")
+                .set(EventProps.Jenkins.jenkins_object_url, "job/folder/job/a-pipeline/1234/")
+                .set(EventProps.Jenkins.jenkins_channel_seq, "987654")
+                .set(EventProps.Job.job_name, "folder/a-pipeline")
+                .set(EventProps.Job.job_run_queueId, "5678")
+                .set(EventProps.Job.job_run_status, "SUCCESS");
+        encoded = MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message decode() {
+        return MessageCodec.decode(encoded.duplicate());
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return message.toJSON();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MessageCodecBenchmark.class.getName()).build()).run();
+    }
+}
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.pubsub;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+
+    @Test
+    public void test_round_trip() {
+        SimpleMessage message = new SimpleMessage()
+                .setChannelName(Events.JobChannel.NAME)
+                .setEventName(Events.JobChannel.job_run_ended)
+                .set(EventProps.Jenkins.jenkins_channel_seq, "12345")
+                .set(EventProps.Job.job_name, "folder/\u00fcn\u00efc\u00f8d\u00e9 job \ud83d\ude80")
+                .set(EventProps.Job.job_run_status, "SUCCESS")
+                .set(EventProps.Job.job_ismultibranch, "false")
+                .set("custom_zero", "0")
+                .set("custom_negative", "-42")
+                .set("custom_leading_zero", "007")
+                .set("custom_negative_zero", "-0")
+                .set("custom_plus", "+1")
+                .set("custom_big", "99999999999999999999")
+                .set("custom_min", Long.toString(Long.MIN_VALUE))
+                .set("custom_empty", "");
+
+        Message decoded = roundTrip(message);
+        assertTrue(decoded instanceof SimpleMessage);
+        assertEquals(message, decoded);
+        assertEquals(JSONObject.fromObject(message.toJSON()), JSONObject.fromObject(decoded.toJSON()));
+    }
+
+    @Test
+    public void test_message_type() {
+        RunMessage message = new RunMessage();
+        message.set(EventProps.Job.job_name, "a-job");
+        message.set(EventProps.Jenkins.jenkins_object_id, "3");
+
+        Message decoded = roundTrip(message);
+        assertTrue(decoded instanceof RunMessage);
+        // None of the default properties set by the RunMessage constructor.
+        assertEquals(message, decoded);
+
+        assertTrue(roundTrip(new QueueTaskMessage()) instanceof QueueTaskMessage);
+        assertTrue(roundTrip(new JobMessage()) instanceof JobMessage);
+    }
+
+    @Test
+    public void test_unknown_access_controlled_type() {
+        ItemMessage message = new ItemMessage();
+        message.set(EventProps.Jenkins.jenkins_object_name, "a-job");
+
+        // Must not come back as a message anyone can see.
+        Message decoded = roundTrip(message);
+        assertTrue(decoded instanceof MessageCodec.RestrictedMessage);
+        assertEquals(message, decoded);
+        assertTrue(decoded.clone() instanceof MessageCodec.RestrictedMessage);
+    }
+
+    @Test
+    public void test_compact() {
+        RunMessage message = new RunMessage();
+        message.setEventName(Events.JobChannel.job_run_started);
+        message.set(EventProps.Job.job_name, "a-job");
+        message.set(EventProps.Jenkins.jenkins_object_name, "#3");
+        message.set(EventProps.Jenkins.jenkins_object_id, "3");
+        message.set(EventProps.Jenkins.jenkins_channel_seq, "1001");
+
+        int encodedSize = MessageCodec.encode(message).remaining();
+        int jsonSize = message.toJSON().length();
+        assertTrue("Encoded " + encodedSize + " bytes, JSON " + jsonSize, encodedSize * 2 < jsonSize);
+    }
+
+    @Test
+    public void test_truncated() {
+        ByteBuffer encoded = MessageCodec.encode(new SimpleMessage().set("a", "b"));
+        encoded.limit(encoded.limit() - 1);
+        try {
+            MessageCodec.decode(encoded);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_dictionaries() {
+        // All of the pre-defined property and event names should be in the dictionaries.
+        List<String> names = Arrays.asList(MessageCodec.NAMES);
+        for (Enum<?> property : EventProps.Jenkins.values()) {
+            assertTrue(property.name(), names.contains(property.name()));
+        }
+        for (Enum<?> property : EventProps.Job.values()) {
+            assertTrue(property.name(), names.contains(property.name()));
+        }
+        for (Enum<?> property : EventProps.Item.values()) {
+            assertTrue(property.name(), names.contains(property.name()));
+        }
+        List<String> values = Arrays.asList(MessageCodec.VALUES);
+        for (Enum<?> event : Events.JobChannel.values()) {
+            assertTrue(event.name(), values.contains(event.name()));
+        }
+    }
+
+    private static Message roundTrip(Message message) {
+        return MessageCodec.decode(MessageCodec.encode(message));
+    }
+}
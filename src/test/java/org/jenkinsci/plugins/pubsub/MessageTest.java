@@ -1,7 +1,13 @@
 package org.jenkinsci.plugins.pubsub;
 
+import hudson.model.Item;
 import org.junit.Test;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 /**
@@ -15,6 +21,17 @@ public class MessageTest {
         assertEquals("a", message.getObjectName());
     }
     
+    @Test
+    public void test_clone_keeps_resolved_objects() {
+        MockItem item = new MockItem("a");
+        JobMessage message = new JobMessage(item);
+
+        JobMessage clone = (JobMessage) message.clone();
+        assertSame(item, clone.jobChannelItem);
+        assertSame(item, clone.getJobChannelItem());
+        assertEquals(message, clone);
+    }
+
     @Test
     public void test_containsAll() {
         Message message = new SimpleMessage();
@@ -54,4 +71,45 @@ public class MessageTest {
         assertEquals("{\"a\":\"aVal\"}", message.toJSON());
         assertEquals("{\"a\":\"aVal\"}", message.toString());
     }
+
+    @Test
+    public void test_priority() {
+        assertEquals(MessagePriority.HIGH, new SimpleMessage().setEventName(Events.JobChannel.job_run_ended).getPriority());
+        assertEquals(MessagePriority.LOW, new SimpleMessage().setEventName(Events.JobChannel.job_crud_updated).getPriority());
+        assertEquals(MessagePriority.NORMAL, new SimpleMessage().setEventName("plugin_event").getPriority());
+        assertEquals(MessagePriority.NORMAL, new SimpleMessage().getPriority());
+
+        // The producer can override the default.
+        Message message = new SimpleMessage().setEventName(Events.JobChannel.job_crud_updated).setPriority(MessagePriority.HIGH);
+        assertEquals(MessagePriority.HIGH, message.getPriority());
+    }
+
+    @Test
+    public void test_reads_do_not_lock() throws Exception {
+        MockItem item = new MockItem("a").setACL(MockItem.YES_ACL);
+        JobMessage message = new JobMessage(item);
+        message.setEventName(Events.JobChannel.job_crud_updated);
+        EventFilter filter = new EventFilter().setEventName(Events.JobChannel.job_crud_updated);
+
+        // Hold the message monitor while reading it on another thread.
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (message) {
+                Future<Message> read = reader.submit(() -> {
+                    assertEquals("a", message.get(EventProps.Job.job_name));
+                    assertEquals(Events.JobChannel.NAME, message.getChannelName());
+                    assertEquals(Events.JobChannel.job_crud_updated.name(), message.getEventName());
+                    assertTrue(message.containsAll(filter));
+                    assertSame(item, message.getJobChannelItem());
+                    assertTrue(message.hasPermission(Item.READ));
+                    return message.clone();
+                });
+                Message clone = read.get(10, TimeUnit.SECONDS);
+                assertEquals(message.size(), clone.size());
+                assertSame(item, ((JobMessage) clone).getJobChannelItem());
+            }
+        } finally {
+            reader.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,173 @@
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OrderedDeliveryTest {
+
+    private GuavaPubsubBus bus;
+
+    @Before
+    public void startBus() {
+        System.setProperty(GuavaPubsubBus.class.getName() + ".ORDERED_DELIVERY", "true");
+        try {
+            bus = new GuavaPubsubBus();
+        } finally {
+            System.clearProperty(GuavaPubsubBus.class.getName() + ".ORDERED_DELIVERY");
+        }
+    }
+
+    @After
+    public void stop() {
+        bus.shutdown();
+    }
+
+    @Test
+    public void test_ordered_per_key() {
+        OrderCheckingSubscriber subs = new OrderCheckingSubscriber();
+        bus.subscribe2("jenkins.job", subs, ACL.SYSTEM2, null);
+
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        int jobCount = 20;
+        int messagesPerJob = 200;
+        for (int i = 0; i < messagesPerJob; i++) {
+            for (int job = 0; job < jobCount; job++) {
+                publisher.publish(new SimpleMessage()
+                        .set(EventProps.Job.job_name, "job-" + job)
+                        .set("seq", Integer.toString(i)));
+            }
+        }
+
+        subs.waitForMessageCount(jobCount * messagesPerJob);
+        assertTrue(subs.outOfOrder.toString(), subs.outOfOrder.isEmpty());
+        assertEquals(jobCount, subs.lastSeq.size());
+        assertTrue("Expected delivery on more than one thread", subs.threads.size() > 1);
+    }
+
+    @Test
+    public void test_subscriber_error_does_not_block_key() {
+        // More than one fanout chunk, so the chunks are shared with helper tasks.
+        List<MockSubscriber> subscribers = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            MockSubscriber subscriber;
+            if (i == 0) {
+                // Hold the first chunk up, so the others are claimed by other threads.
+                subscriber = new MockSubscriber() {
+                    @Override
+                    public void onMessage(@NonNull Message message) {
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        super.onMessage(message);
+                    }
+                };
+            } else if (i == 599) {
+                subscriber = new MockSubscriber() {
+                    @Override
+                    public void onMessage(@NonNull Message message) {
+                        super.onMessage(message);
+                        if (message.getProperty("error") != null) {
+                            throw new AssertionError("Subscriber error, as expected by the test.");
+                        }
+                    }
+                };
+            } else {
+                subscriber = new MockSubscriber();
+            }
+            bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+            subscribers.add(subscriber);
+        }
+
+        // The next message for the key must still be delivered, whichever thread got the error.
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        int jobCount = 10;
+        for (int job = 0; job < jobCount; job++) {
+            publisher.publish(new SimpleMessage().set(EventProps.Job.job_name, "job-" + job).set("error", "true"));
+            publisher.publish(new SimpleMessage().set(EventProps.Job.job_name, "job-" + job));
+        }
+        subscribers.get(599).waitForMessageCount(2 * jobCount);
+    }
+
+    @Test
+    public void test_rejected_lane_runs() throws Exception {
+        bus.shutdown();
+        System.setProperty(GuavaPubsubBus.class.getName() + ".ORDERED_DELIVERY", "true");
+        System.setProperty(GuavaPubsubBus.class.getName() + ".POOL.default.THREADS", "1");
+        System.setProperty(GuavaPubsubBus.class.getName() + ".POOL.default.QUEUE_SIZE", "1");
+        try {
+            bus = new GuavaPubsubBus();
+        } finally {
+            System.clearProperty(GuavaPubsubBus.class.getName() + ".ORDERED_DELIVERY");
+            System.clearProperty(GuavaPubsubBus.class.getName() + ".POOL.default.THREADS");
+            System.clearProperty(GuavaPubsubBus.class.getName() + ".POOL.default.QUEUE_SIZE");
+        }
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        bus.subscribe2("jenkins.job", message -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, ACL.SYSTEM2, new EventFilter().set(EventProps.Job.job_name, "a"));
+        MockSubscriber subscriber = new MockSubscriber();
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+
+        // Job "a" ties up the pool's only thread and job "b" fills its queue, so the lane
+        // for job "c" (a lane of its own) is rejected. Nothing else is published for "c".
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        try {
+            publisher.publish(new SimpleMessage().set(EventProps.Job.job_name, "a"));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            publisher.publish(new SimpleMessage().set(EventProps.Job.job_name, "b"));
+            publisher.publish(new SimpleMessage().set(EventProps.Job.job_name, "c"));
+            // Run on the publishing thread, ahead of the queued "b".
+            subscriber.waitForMessageCount(1);
+            assertEquals("c", subscriber.messages.get(0).get(EventProps.Job.job_name));
+            // Not lost, so not counted as dropped.
+            assertEquals(1, bus.getMetrics().getExecutorCallerRunCount());
+            assertEquals(0, bus.getMetrics().getExecutorRejectedCount());
+        } finally {
+            release.countDown();
+        }
+        subscriber.waitForMessageCount(3);
+    }
+
+    private static class OrderCheckingSubscriber extends MockSubscriber {
+        private final Map<String, Integer> lastSeq = new ConcurrentHashMap<>();
+        private final Map<String, Boolean> threads = new ConcurrentHashMap<>();
+        private final List<String> outOfOrder = new ArrayList<>();
+
+        @Override
+        public synchronized void onMessage(@NonNull Message message) {
+            String job = message.get(EventProps.Job.job_name);
+            int seq = Integer.parseInt(message.getProperty("seq"));
+            Integer last = lastSeq.put(job, seq);
+            if (last != null && last != seq - 1) {
+                outOfOrder.add(job + ": " + last + " -> " + seq);
+            }
+            threads.put(Thread.currentThread().getName() + Thread.currentThread().getId(), true);
+            if (ThreadLocalRandom.current().nextInt(50) == 0) {
+                Thread.yield();
+            }
+            super.onMessage(message);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.pubsub;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PoolSizerTest {
+
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    private static final String MAX_THREADS = GuavaPubsubBus.class.getName() + ".POOL.default.MAX_THREADS";
+    private static final double MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void test_target_size() {
+        // Backlog: enough threads to drain it within the interval, at most doubling.
+        assertEquals(6, PoolSizer.targetSize(5, 1, 20, 1000, 5, 5 * MS, 0.2, INTERVAL));
+        assertEquals(10, PoolSizer.targetSize(5, 1, 20, 100000, 5, 5 * MS, 0.2, INTERVAL));
+        assertEquals(8, PoolSizer.targetSize(5, 1, 8, 100000, 5, 5 * MS, 0.2, INTERVAL));
+        // Unknown task time (nothing completed).
+        assertEquals(6, PoolSizer.targetSize(5, 1, 20, 10, 5, 0, -1, INTERVAL));
+        // Backlog, but the CPU is saturated: hold, don't shrink.
+        assertEquals(5, PoolSizer.targetSize(5, 1, 20, 1000, 5, 5 * MS, 0.95, INTERVAL));
+        assertEquals(5, PoolSizer.targetSize(5, 1, 20, 1000, 1, 5 * MS, 0.9, INTERVAL));
+        // Idle.
+        assertEquals(4, PoolSizer.targetSize(5, 1, 20, 0, 1, 0, 0.2, INTERVAL));
+        assertEquals(1, PoolSizer.targetSize(1, 1, 20, 0, 0, 0, 0.2, INTERVAL));
+        // Busy, but keeping up.
+        assertEquals(5, PoolSizer.targetSize(5, 1, 20, 0, 4, 5 * MS, 0.2, INTERVAL));
+    }
+
+    @Test
+    public void test_resize() throws Exception {
+        System.setProperty(MAX_THREADS, "4");
+        ExecutorPool pool = ExecutorPool.create(1, 0, true).get(ExecutorPool.DEFAULT);
+        System.clearProperty(MAX_THREADS);
+        PoolSizer sizer = new PoolSizer(List.of(pool), INTERVAL, () -> 0.1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            assertEquals(1, pool.getThreads());
+            for (int i = 0; i < 10; i++) {
+                pool.execute(MessagePriority.NORMAL, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+
+            // Blocked tasks and a backlog.
+            sizer.run();
+            assertEquals(2, pool.getThreads());
+            sizer.run();
+            assertEquals(3, pool.getThreads());
+
+            release.countDown();
+            long start = System.currentTimeMillis();
+            while (pool.getTaskCount() < 10 && System.currentTimeMillis() < start + 10000) {
+                Thread.sleep(5);
+            }
+
+            // Idle. Shrinks back one thread at a time, down to MIN_THREADS.
+            sizer.run();
+            assertEquals(2, pool.getThreads());
+            sizer.run();
+            sizer.run();
+            assertEquals(1, pool.getThreads());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+}
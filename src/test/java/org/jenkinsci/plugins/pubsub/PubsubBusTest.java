@@ -0,0 +1,134 @@
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class PubsubBusTest {
+
+    @Test
+    public void test_default_event_names_subscription() {
+        MinimalBus bus = new MinimalBus();
+        MockSubscriber subscriber = new MockSubscriber();
+
+        // The bus doesn't support event names, so the default subscribe2 has to filter.
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null, Set.of("job_run_started", "job_run_ended"));
+        assertSame(subscriber, bus.subscribers.get("jenkins.job"));
+
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        publisher.publish(new SimpleMessage().setEventName("job_run_started"));
+        publisher.publish(new SimpleMessage().setEventName("job_run_queue_enter"));
+        publisher.publish(new SimpleMessage().setEventName("job_run_ended"));
+        publisher.publish(new SimpleMessage());
+
+        assertEquals(2, subscriber.messages.size());
+        assertEquals("job_run_started", subscriber.messages.get(0).getEventName());
+        assertEquals("job_run_ended", subscriber.messages.get(1).getEventName());
+
+        // And it unsubscribes as usual.
+        bus.unsubscribe("jenkins.job", subscriber);
+        assertTrue(bus.subscribers.isEmpty());
+        publisher.publish(new SimpleMessage().setEventName("job_run_started"));
+        assertEquals(2, subscriber.messages.size());
+    }
+
+    @Test
+    public void test_default_single_event_name_subscription() {
+        MinimalBus bus = new MinimalBus();
+        MockSubscriber subscriber = new MockSubscriber();
+
+        // A single event name goes on the filter, with the subscriber's own properties.
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, new EventFilter().set("job_name", "a"), Set.of("job_run_started"));
+        assertSame(subscriber, bus.subscribers.get("jenkins.job"));
+        assertEquals("job_run_started", bus.filters.get("jenkins.job").getEventName());
+        assertEquals("a", bus.filters.get("jenkins.job").get("job_name"));
+    }
+
+    @Test
+    public void test_publish_held_back_for_auto_subscribers() throws Exception {
+        MinimalBus bus = new MinimalBus();
+        MockSubscriber subscriber = new MockSubscriber();
+        List<Runnable> registration = new CopyOnWriteArrayList<>();
+        bus.registerAutoChannelSubscribers(registration::add);
+
+        // Doesn't wait for the auto subscribers.
+        bus.publish(new SimpleMessage().setChannelName("jenkins.job").setEventName("job_run_started"));
+        bus.publish(new SimpleMessage().setChannelName("jenkins.job").setEventName("job_run_ended"));
+
+        // Stands in for an auto subscriber.
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+        assertEquals(0, subscriber.messages.size());
+        assertEquals(1, registration.size());
+        registration.get(0).run();
+
+        // Published in order once registered.
+        assertEquals(2, subscriber.messages.size());
+        assertEquals("job_run_started", subscriber.messages.get(0).getEventName());
+        assertEquals("job_run_ended", subscriber.messages.get(1).getEventName());
+        assertEquals(0, bus.getEarlyMessagesDroppedCount());
+
+        // Once registered, nothing is held back.
+        bus.publish(new SimpleMessage().setChannelName("jenkins.job").setEventName("job_crud_updated"));
+        assertEquals(3, subscriber.messages.size());
+    }
+
+    @Test
+    public void test_early_messages_limited() throws Exception {
+        MinimalBus bus = new MinimalBus();
+        MockSubscriber subscriber = new MockSubscriber();
+        List<Runnable> registration = new CopyOnWriteArrayList<>();
+        bus.registerAutoChannelSubscribers(registration::add);
+
+        for (int i = 0; i < 1005; i++) {
+            bus.publish(new SimpleMessage().setChannelName("jenkins.job").setEventName("job_run_started"));
+        }
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+        registration.get(0).run();
+
+        assertEquals(1000, subscriber.messages.size());
+        assertEquals(5, bus.getEarlyMessagesDroppedCount());
+    }
+
+    private static class MinimalBus extends PubsubBus {
+
+        private final Map<String, ChannelSubscriber> subscribers = new HashMap<>();
+        private final Map<String, EventFilter> filters = new HashMap<>();
+
+        @NonNull
+        @Override
+        protected ChannelPublisher publisher(@NonNull String channelName) {
+            return message -> {
+                ChannelSubscriber subscriber = subscribers.get(channelName);
+                EventFilter filter = filters.get(channelName);
+                if (subscriber != null && (filter == null || FilterEvaluator.compile(filter).test(message))) {
+                    subscriber.onMessage(message);
+                }
+            };
+        }
+
+        @Override
+        public void subscribe2(@NonNull String channelName, @NonNull ChannelSubscriber subscriber, @NonNull Authentication authentication, @CheckForNull EventFilter eventFilter) {
+            subscribers.put(channelName, subscriber);
+            filters.put(channelName, eventFilter);
+        }
+
+        @Override
+        public void unsubscribe(@NonNull String channelName, @NonNull ChannelSubscriber subscriber) {
+            subscribers.remove(channelName, subscriber);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.*;
+
+public class RingFileSinkTest {
+
+    private GuavaPubsubBus bus;
+    private File file;
+
+    @Before
+    public void startBus() throws IOException {
+        bus = new GuavaPubsubBus();
+        file = Files.createTempFile("pubsub", ".ring").toFile();
+    }
+
+    @After
+    public void stop() throws IOException {
+        bus.shutdown();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test
+    public void test_read_published() throws Exception {
+        RingFileSink sink = new RingFileSink(file, 64 * 1024);
+        bus.addSink(sink);
+
+        // Only needed to know when the messages have been published.
+        MockSubscriber subscriber = new MockSubscriber();
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        for (int i = 1; i <= 10; i++) {
+            publisher.publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+        subscriber.waitForMessageCount(10);
+
+        try (RingFileSink.Reader reader = new RingFileSink.Reader(file)) {
+            for (int i = 1; i <= 10; i++) {
+                Message message = reader.poll();
+                assertNotNull(message);
+                assertEquals(Integer.toString(i), message.get("joba"));
+                assertEquals("jenkins.job", message.getChannelName());
+                assertEquals(Long.valueOf(i), message.getChannelSequence());
+            }
+            assertNull(reader.poll());
+            assertEquals(0, reader.getLostCount());
+        }
+        assertEquals(0, sink.getLag());
+        assertEquals(0, sink.getOverrunCount());
+        bus.removeSink(sink);
+        sink.close();
+    }
+
+    @Test
+    public void test_owner_only() throws Exception {
+        Assume.assumeTrue(file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+        RingFileSink sink = new RingFileSink(file, 1024);
+        assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file.toPath()));
+        sink.close();
+    }
+
+    @Test
+    public void test_capacity() {
+        assertEquals(16 * 1024 * 1024, RingFileSink.capacity(16));
+        assertEquals(1024 * 1024, RingFileSink.capacity(0));
+        assertEquals(RingFileSink.MAX_SIZE_MB * 1024 * 1024, RingFileSink.capacity(4096));
+        assertEquals(RingFileSink.MAX_SIZE_MB * 1024 * 1024, RingFileSink.capacity(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void test_overrun() throws Exception {
+        RingFileSink sink = new RingFileSink(file, 1024);
+
+        try (RingFileSink.Reader reader = new RingFileSink.Reader(file)) {
+            sink.onPublish(newMessage(1));
+            assertEquals("1", reader.poll().get("seq"));
+
+            // Nobody reading. The oldest records get overwritten.
+            for (int i = 2; i <= 100; i++) {
+                sink.onPublish(newMessage(i));
+            }
+            long overruns = sink.getOverrunCount();
+            assertTrue(overruns > 0);
+            assertTrue(sink.getLag() <= 1024);
+
+            // The reader skips to the oldest record still in the ring, and reads on from there.
+            Message message = reader.poll();
+            assertEquals(1, reader.getLostCount());
+            int first = Integer.parseInt(message.get("seq"));
+            assertEquals(2 + overruns, first);
+            for (int i = first + 1; i <= 100; i++) {
+                assertEquals(Integer.toString(i), reader.poll().get("seq"));
+            }
+            assertNull(reader.poll());
+
+            // Keeps going around, with the reader keeping up.
+            for (int i = 101; i <= 300; i++) {
+                sink.onPublish(newMessage(i));
+                assertEquals(Integer.toString(i), reader.poll().get("seq"));
+            }
+            assertEquals(overruns, sink.getOverrunCount());
+        }
+        sink.close();
+    }
+
+    private static Message newMessage(int i) {
+        return new SimpleMessage()
+                .setChannelName("jenkins.job")
+                .set("seq", Integer.toString(i))
+                .set(EventProps.Jenkins.jenkins_channel_seq, Integer.toString(i));
+    }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class RunCacheTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void test_hit_and_invalidate() throws Exception {
+        FreeStyleProject job = jenkins.createFreeStyleProject("a-job");
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(job);
+
+        // The build's own events may have cached it already, so start from a miss.
+        RunCache.invalidate(build);
+        assertFalse(RunCache.isCached(job, build.getId()));
+
+        // First lookup misses and caches the run. The second is served from the cache.
+        assertSame(build, RunCache.get(job, build.getId()));
+        assertTrue(RunCache.isCached(job, build.getId()));
+        assertSame(build, RunCache.get(job, build.getId()));
+
+        // Deleting the run should invalidate it.
+        build.delete();
+        assertFalse(RunCache.isCached(job, build.getId()));
+        assertNull(RunCache.get(job, build.getId()));
+    }
+
+    @Test
+    public void test_job_deleted() throws Exception {
+        FreeStyleProject job = jenkins.createFreeStyleProject("b-job");
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(job);
+
+        assertSame(build, RunCache.get(job, build.getId()));
+        assertTrue(RunCache.isCached(job, build.getId()));
+
+        job.delete();
+        assertFalse(RunCache.isCached(job, build.getId()));
+    }
+}
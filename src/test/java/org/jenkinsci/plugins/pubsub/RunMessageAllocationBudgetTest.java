@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The {@link RunMessage} allocation budget (see {@link AllocationBudgetTest}), which needs a real run.
+ */
+public class RunMessageAllocationBudgetTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void test_RunMessage() throws Exception {
+        assumeTrue(AllocationMeter.isSupported());
+        FreeStyleProject job = jenkins.createFreeStyleProject("alloc-job");
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(job);
+
+        GuavaPubsubBus bus = AllocationMeter.createBus();
+        try {
+            AllocationMeter meter = new AllocationMeter(bus, Events.JobChannel.NAME);
+            // A run message sets more properties than the other types, so its budget is higher.
+            meter.assertBudget("RunMessage", 8192, 4096, () -> new RunMessage(build).setEventName(Events.JobChannel.job_run_ended));
+        } finally {
+            bus.shutdown();
+        }
+    }
+}
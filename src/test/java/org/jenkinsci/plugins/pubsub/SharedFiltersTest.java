@@ -0,0 +1,149 @@
+package org.jenkinsci.plugins.pubsub;
+
+import hudson.security.ACL;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SharedFiltersTest {
+
+    @Test
+    public void test_equal_filters_shared() {
+        SharedFilters filters = new SharedFilters();
+        assertNull(filters.acquire(null));
+        assertNull(filters.acquire(new EventFilter()));
+
+        SharedFilters.Node a = filters.acquire(new EventFilter().set("joba", "1").set("jobb", "2").startsWith("jobc", "x"));
+        // Same properties (in a different order), and the same conditions.
+        SharedFilters.Node b = filters.acquire(new EventFilter().set("jobb", "2").set("joba", "1").startsWith("jobc", "x"));
+        SharedFilters.Node c = filters.acquire(new EventFilter().set("joba", "1").set("jobb", "2").startsWith("jobc", "y"));
+        assertSame(a, b);
+        assertNotSame(a, c);
+        assertEquals(2, filters.size());
+
+        filters.release(a);
+        assertEquals(2, filters.size());
+        filters.release(b);
+        assertEquals(1, filters.size());
+
+        // The slot is reused.
+        SharedFilters.Node d = filters.acquire(new EventFilter().set("jobd", "1"));
+        assertEquals(2, filters.size());
+        SharedFilters.Results results = filters.results(new SimpleMessage().set("jobd", "1"));
+        assertTrue(results.test(d));
+        assertFalse(results.test(c));
+    }
+
+    @Test
+    public void test_slot_reused_during_delivery() {
+        SharedFilters filters = new SharedFilters();
+        SharedFilters.Node a = filters.acquire(new EventFilter().set("joba", "1"));
+        SharedFilters.Results results = filters.results(new SimpleMessage().set("joba", "1").set("jobb", "2"));
+        assertTrue(results.test(a));
+
+        // A delivery that picked up a's subscriber can also pick up one added after a was released.
+        filters.release(a);
+        SharedFilters.Node b = filters.acquire(new EventFilter().set("jobb", "3"));
+        assertFalse(results.test(b));
+        assertTrue(results.test(a));
+        assertFalse(results.test(b));
+    }
+
+    @Test
+    public void test_evaluated_once_per_message() {
+        AtomicInteger evaluations = new AtomicInteger();
+        GuavaPubsubBus bus = new GuavaPubsubBus();
+        try {
+            List<MockSubscriber> subscribers = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                MockSubscriber subscriber = new MockSubscriber();
+                EventFilter filter = new EventFilter().set("joba", "1");
+                filter.conditions.add(new CountingCondition(evaluations));
+                bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, filter);
+                subscribers.add(subscriber);
+            }
+            assertEquals(1, bus.getSharedFilters().size());
+
+            ChannelPublisher publisher = bus.publisher("jenkins.job");
+            publisher.publish(new SimpleMessage().set("joba", "1"));
+            publisher.publish(new SimpleMessage().set("joba", "2"));
+            publisher.publish(new SimpleMessage().set("joba", "1"));
+            for (MockSubscriber subscriber : subscribers) {
+                subscriber.waitForMessageCount(2);
+            }
+            // Evaluated for the two messages that passed the equality check, not per subscriber.
+            assertEquals(2, evaluations.get());
+
+            for (MockSubscriber subscriber : subscribers) {
+                bus.unsubscribe("jenkins.job", subscriber);
+            }
+            assertEquals(0, bus.getSharedFilters().size());
+        } finally {
+            bus.shutdown();
+        }
+    }
+
+    @Test
+    public void test_released_on_replace_and_failure() throws Exception {
+        GuavaPubsubBus bus = new GuavaPubsubBus();
+        try {
+            MockSubscriber subscriber = new MockSubscriber();
+            bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, new EventFilter().set("joba", "1"));
+            assertEquals(1, bus.getSharedFilters().size());
+
+            // Subscribing again ends the previous subscription, and releases its filter.
+            bus.subscribe2("jenkins.agent", subscriber, ACL.SYSTEM2, new EventFilter().set("agenta", "1"));
+            assertEquals(1, bus.getSharedFilters().size());
+            bus.publisher("jenkins.job").publish(new SimpleMessage().set("joba", "1"));
+            bus.publisher("jenkins.agent").publish(new SimpleMessage().set("agenta", "1"));
+            subscriber.waitForMessageCount(1);
+            Thread.sleep(100);
+            assertEquals(1, subscriber.messages.size());
+            assertEquals("1", subscriber.messages.get(0).get("agenta"));
+
+            // Even if it's unsubscribed from the wrong channel.
+            bus.unsubscribe("jenkins.job", subscriber);
+            assertEquals(0, bus.getSharedFilters().size());
+
+            // A subscription that fails releases its filter too.
+            try {
+                bus.subscribe2(null, new MockSubscriber(), ACL.SYSTEM2, new EventFilter().set("joba", "1"));
+                fail("Expected NullPointerException");
+            } catch (NullPointerException e) {
+                // expected
+            }
+            assertEquals(0, bus.getSharedFilters().size());
+        } finally {
+            bus.shutdown();
+        }
+    }
+
+    private static final class CountingCondition extends EventFilter.Condition {
+        private final transient AtomicInteger evaluations;
+
+        private CountingCondition(AtomicInteger evaluations) {
+            super("joba");
+            this.evaluations = evaluations;
+        }
+
+        @Override
+        boolean test(String value) {
+            evaluations.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        int cost() {
+            return 1;
+        }
+
+        @Override
+        Object argument() {
+            return "counting";
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.pubsub;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.security.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SlowSubscriberTest {
+
+    private GuavaPubsubBus bus;
+
+    @Before
+    public void startBus() {
+        bus = new GuavaPubsubBus();
+    }
+
+    @After
+    public void stop() {
+        bus.shutdown();
+    }
+
+    @Test
+    public void test_slow_subscriber_isolated() throws Exception {
+        SlowSubscriber slowSubs = new SlowSubscriber();
+        MockSubscriber fastSubs = new MockSubscriber();
+        bus.subscribe2("jenkins.job", slowSubs, ACL.SYSTEM2, null);
+        bus.subscribe2("jenkins.job", fastSubs, ACL.SYSTEM2, null);
+
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        for (int i = 0; i < 12; i++) {
+            publisher.publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+        slowSubs.waitForMessageCount(12);
+        fastSubs.waitForMessageCount(12);
+
+        // The slow subscriber should now be on its own lane ...
+        BusMetrics metrics = bus.getMetrics();
+        assertEquals(1, metrics.getIsolatedSubscriberCount());
+
+        // ... so it no longer holds up the fast subscriber.
+        for (int i = 0; i < 10; i++) {
+            publisher.publish(new SimpleMessage().set("jobb", Integer.toString(i)));
+        }
+        long start = System.currentTimeMillis();
+        fastSubs.waitForMessageCount(22);
+        assertTrue(System.currentTimeMillis() - start < 10 * SlowSubscriber.SLEEP_MILLIS);
+        slowSubs.waitForMessageCount(22);
+
+        // Unsubscribing closes the lane.
+        bus.unsubscribe("jenkins.job", slowSubs);
+        assertEquals(0, metrics.getIsolatedSubscriberCount());
+    }
+
+    @Test
+    public void test_recovered_subscriber_handover() throws Exception {
+        RecoveringSubscriber subscriber = new RecoveringSubscriber();
+        bus.subscribe2("jenkins.job", subscriber, ACL.SYSTEM2, null);
+
+        ChannelPublisher publisher = bus.publisher("jenkins.job");
+        for (int i = 0; i < 12; i++) {
+            publisher.publish(new SimpleMessage().set("joba", Integer.toString(i)));
+        }
+        subscriber.waitForMessageCount(12);
+        BusMetrics metrics = bus.getMetrics();
+        assertEquals(1, metrics.getIsolatedSubscriberCount());
+
+        // Speed up. The subscriber recovers while messages are still queued on its lane,
+        // and more keep arriving on the shared threads.
+        subscriber.slow = false;
+        for (int i = 0; i < 200; i++) {
+            publisher.publish(new SimpleMessage().set("jobb", Integer.toString(i)));
+        }
+        subscriber.waitForMessageCount(212);
+        long start = System.currentTimeMillis();
+        while (metrics.getIsolatedSubscriberCount() > 0 && System.currentTimeMillis() < start + 10000) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, metrics.getIsolatedSubscriberCount());
+        assertEquals("messages delivered concurrently", 1, subscriber.maxConcurrency.get());
+
+        // Nothing is delivered once unsubscribed.
+        bus.unsubscribe("jenkins.job", subscriber);
+        publisher.publish(new SimpleMessage().set("jobc", "0"));
+        Thread.sleep(100);
+        assertEquals(212, subscriber.messages.size());
+    }
+
+    private static class RecoveringSubscriber extends MockSubscriber {
+        private volatile boolean slow = true;
+        private final AtomicInteger concurrency = new AtomicInteger();
+        private final AtomicInteger maxConcurrency = new AtomicInteger();
+
+        @Override
+        public void onMessage(@NonNull Message message) {
+            maxConcurrency.accumulateAndGet(concurrency.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(slow ? SlowSubscriber.SLEEP_MILLIS : 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                super.onMessage(message);
+            }
+            concurrency.decrementAndGet();
+        }
+    }
+
+    private static class SlowSubscriber extends MockSubscriber {
+        private static final long SLEEP_MILLIS = 150;
+
+        @Override
+        public void onMessage(@NonNull Message message) {
+            try {
+                Thread.sleep(SLEEP_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.onMessage(message);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.pubsub;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class StringInternerTest {
+
+    @Test
+    public void test_known_strings() {
+        String channel = new String(Events.JobChannel.NAME);
+        assertSame(Events.JobChannel.NAME, StringInterner.value(EventProps.Jenkins.jenkins_channel.name(), channel));
+        String name = new String("jenkins_event");
+        assertSame(EventProps.Jenkins.jenkins_event.name(), StringInterner.name(name));
+    }
+
+    @Test
+    public void test_low_cardinality_only() {
+        String url1 = new String("http://jenkins.example.com/");
+        String url2 = new String("http://jenkins.example.com/");
+        String interned = StringInterner.value(EventProps.Jenkins.jenkins_instance_url.name(), url1);
+        assertSame(interned, StringInterner.value(EventProps.Jenkins.jenkins_instance_url.name(), url2));
+
+        // Not for high cardinality properties e.g. UUIDs.
+        String uuid1 = new String("0d1c5b1e-6b9e-4f3a-9c57-5a3f8f0f6b7d");
+        String uuid2 = new String("0d1c5b1e-6b9e-4f3a-9c57-5a3f8f0f6b7d");
+        assertSame(uuid1, StringInterner.value(EventProps.Jenkins.jenkins_event_uuid.name(), uuid1));
+        assertSame(uuid2, StringInterner.value(EventProps.Jenkins.jenkins_event_uuid.name(), uuid2));
+    }
+
+    @Test
+    public void test_retained_strings() {
+        // E.g. the messages received from a peer controller and held in the history.
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Message message = new SimpleMessage()
+                    .setChannelName(Events.JobChannel.NAME)
+                    .setEventName(Events.JobChannel.job_run_started)
+                    .set(EventProps.Jenkins.jenkins_object_type, "hudson.model.FreeStyleProject")
+                    .set(EventProps.Job.job_name, "folder/job-" + (i % 20))
+                    .set(EventProps.Jenkins.jenkins_object_id, Integer.toString(i));
+            messages.add(MessageCodec.decode(MessageCodec.encode(message)));
+        }
+
+        // The known values and property names are stored once, not once per message. Other
+        // values go through the shared table, which other tests fill too, so see test_table.
+        Set<String> channels = identitySet();
+        Set<String> events = identitySet();
+        Set<String> types = identitySet();
+        Set<String> names = identitySet();
+        for (Message message : messages) {
+            channels.add(message.getChannelName());
+            events.add(message.getEventName());
+            types.add(message.get(EventProps.Jenkins.jenkins_object_type));
+            for (Object name : message.keySet()) {
+                names.add((String) name);
+            }
+        }
+        assertEquals(1, channels.size());
+        assertEquals(1, events.size());
+        assertEquals(1, types.size());
+        assertEquals(messages.get(0).size(), names.size());
+    }
+
+    @Test
+    public void test_table() {
+        // A table of our own, so the outcome only depends on the strings below.
+        String[] table = new String[1024];
+        String url = StringInterner.intern(table, new String("http://peer.example.com/"));
+        assertSame(url, StringInterner.intern(table, new String("http://peer.example.com/")));
+        for (int i = 0; i < 20; i++) {
+            String jobName = StringInterner.intern(table, "folder/job-" + i);
+            assertSame(jobName, StringInterner.intern(table, "folder/job-" + i));
+        }
+
+        // A string replaces whatever was in its slot, so the table never grows.
+        String[] oneSlot = new String[1];
+        String a = StringInterner.intern(oneSlot, new String("a-job"));
+        StringInterner.intern(oneSlot, "b-job");
+        assertNotSame(a, StringInterner.intern(oneSlot, new String("a-job")));
+
+        // No table, no canonicalization (other than the known strings).
+        String[] none = new String[0];
+        String jobName = new String("a-job");
+        assertSame(jobName, StringInterner.intern(none, jobName));
+        assertSame(Events.JobChannel.NAME, StringInterner.intern(none, new String(Events.JobChannel.NAME)));
+    }
+
+    private static Set<String> identitySet() {
+        Map<String, Boolean> map = new IdentityHashMap<>();
+        return Collections.newSetFromMap(map);
+    }
+}